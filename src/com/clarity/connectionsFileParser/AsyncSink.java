@@ -0,0 +1,151 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes the results handed to it to another ResultSink on a thread of its
+ * own, so that the tailer goes on reading while a window is being written.
+ * Can be shared by several tailers, see TailerManager.
+ *
+ * Comments:
+ * The results wait in a bounded queue: if the output is slower than the
+ * tailers for long enough to fill it, the tailers block rather than the
+ * heap growing without bounds. A failure to write is reported by the next
+ * call, and by flush and close.
+ */
+public class AsyncSink implements ResultSink {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private interface Task {
+        void run(ResultSink sink) throws IOException;
+    }
+
+    private static final Task STOP = sink -> { };
+
+    private final ResultSink sink;
+    private final BlockingQueue<Task> queue;
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile boolean closed = false;
+
+    public AsyncSink(ResultSink sink) {
+        this(sink, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of results that can wait to be written.
+     */
+    public AsyncSink(ResultSink sink, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::drain, "result-sink");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void window(WindowResult window) throws IOException {
+        submit(s -> s.window(window));
+    }
+
+    @Override
+    public void clients(String host, byte[] names, int offset, int length,
+                        boolean last) throws IOException {
+        // names is reused by the caller.
+        byte[] copy = Arrays.copyOfRange(names, offset, offset + length);
+        submit(s -> s.clients(host, copy, 0, copy.length, last));
+    }
+
+    /* Waits until everything submitted so far is written and flushed. */
+    @Override
+    public void flush() throws IOException {
+        CountDownLatch flushed = new CountDownLatch(1);
+        submit(s -> {
+            try {
+                s.flush();
+            } finally {
+                flushed.countDown();
+            }
+        });
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        checkFailure();
+    }
+
+    /* Flushes, stops the writer thread and closes the sink. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            queue.add(STOP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sink.close();
+        }
+    }
+
+    private void submit(Task task) throws IOException {
+        checkFailure();
+        if (closed) {
+            throw new IOException("Sink closed");
+        }
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing results failed", failure);
+        }
+    }
+
+    /* The writer thread. */
+    private void drain() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) {
+                return;
+            }
+            try {
+                task.run(sink);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = new IOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary version of the connections file, and the text -> binary
+ * converter.
+ *
+ * Layout (big endian):
+ *      header: int MAGIC, int VERSION
+ *      blocks of at most BLOCK_RECORDS records:
+ *          int     length of the block after this field
+ *          long    min timestamp
+ *          long    max timestamp
+ *          int     number of records n
+ *          int     number of strings m
+ *          m x     (unsigned short length, bytes)   string table
+ *          n x     unsigned int timestamp - min     column
+ *          n x     unsigned short client string id  column
+ *          n x     unsigned short host string id    column
+ *
+ * Comments:
+ * Names are dictionary encoded per block, so a block is self contained and
+ * can be appended by a producer and read by a tailer on its own. A block
+ * has at most 2 * BLOCK_RECORDS different strings, so ids always fit in an
+ * unsigned short. Strings are stored as the raw bytes of the text file,
+ * output is therefore byte for byte the same as with the text file.
+ * Timestamps are fixed width, as an unsigned int offset from the min of the
+ * block (a block spans at most ~49 days, otherwise it is cut early), which
+ * brings a record down to 8 bytes against ~30 for a text line. The min/max
+ * in the block header let readers skip whole blocks outside of a window, and
+ * the columns are scanned sequentially which is as cheap as reading gets.
+ *
+ * usage: java BinaryConnectionsFormat <text_file> <binary_file>
+ */
+public class BinaryConnectionsFormat {
+
+    static final int MAGIC = 0x434F4E42; // "CONB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    static final int BLOCK_RECORDS = 32 * 1024;
+    static final long MAX_SPAN = 0xFFFFFFFFL;
+
+    private BinaryConnectionsFormat() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java BinaryConnectionsFormat " +
+                    "<text_file> <binary_file>");
+            throw new IllegalArgumentException();
+        }
+        File textFile = new File(args[0]);
+        if (!textFile.exists()) {
+            throw new FileNotFoundException(args[0] + ": no such file");
+        }
+        convert(textFile, new File(args[1]));
+    }
+
+    /**
+     * @return true if the file starts with the binary format header.
+     * @throws IOException
+     */
+    public static boolean isBinary(File connectionsFile) throws IOException {
+        if (connectionsFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(connectionsFile))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Writes the binary version of a text connections file.
+     * @throws IOException
+     */
+    public static void convert(File textFile, File binaryFile)
+            throws IOException {
+        // ISO_8859_1 maps bytes to chars one to one, so names are written
+        // back as the exact bytes they were read as.
+        NameCache names = new NameCache(StandardCharsets.ISO_8859_1);
+        try (RecordReader reader = new RecordReader(
+                new FileInputStream(textFile));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(binaryFile),
+                             1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            BlockWriter block = new BlockWriter();
+            RecordParser record = reader.record();
+            while (reader.next()) {
+                long tsc = record.timestamp();
+                if (!block.fits(tsc)) {
+                    block.writeTo(out);
+                }
+                block.add(tsc, record.client(names), record.host(names));
+            }
+            if (block.size() > 0) {
+                block.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Accumulates one block worth of records.
+     */
+    static class BlockWriter {
+
+        private final HashMap<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final long[] timestamps = new long[BLOCK_RECORDS];
+        private final int[] clients = new int[BLOCK_RECORDS];
+        private final int[] hosts = new int[BLOCK_RECORDS];
+        private int size = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        int size() {
+            return size;
+        }
+
+        /* false if the block must be written before adding tsc. */
+        boolean fits(long tsc) {
+            return size == 0 || (size < BLOCK_RECORDS &&
+                    Math.max(max, tsc) - Math.min(min, tsc) <= MAX_SPAN);
+        }
+
+        /* client and host are ISO_8859_1 decoded. */
+        void add(long tsc, String client, String host) {
+            timestamps[size] = tsc;
+            min = Math.min(min, tsc);
+            max = Math.max(max, tsc);
+            clients[size] = id(client);
+            hosts[size] = id(host);
+            size++;
+        }
+
+        private int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = strings.size();
+                ids.put(s, id);
+                strings.add(s);
+            }
+            return id;
+        }
+
+        /* Writes the block and resets the writer. */
+        void writeTo(DataOutputStream out) throws IOException {
+            int stringBytes = 0;
+            for (String s : strings) {
+                stringBytes += 2 + s.length();
+            }
+            out.writeInt(BLOCK_HEADER_SIZE - 4 + stringBytes + size * 8);
+            out.writeLong(min);
+            out.writeLong(max);
+            out.writeInt(size);
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                out.writeShort(s.length());
+                out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt((int) (timestamps[i] - min));
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeShort(clients[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeShort(hosts[i]);
+            }
+            ids.clear();
+            strings.clear();
+            size = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary connections file (see BinaryConnectionsFormat) block by
+ * block. The block header is read first so that a block can be skipped
+ * without reading its body.
+ *
+ * Not thread safe, one reader per thread.
+ */
+class BinaryConnectionsReader {
+
+    private final FileChannel channel;
+    private final ByteBuffer header =
+            ByteBuffer.allocate(BinaryConnectionsFormat.BLOCK_HEADER_SIZE);
+    private static final int BODY_SIZE = 1 << 20;
+    private ByteBuffer body;
+
+    private long position;
+    private long blockStart;
+    private long minTime;
+    private long maxTime;
+    private int size;
+    private int stringCount;
+    private boolean loaded;
+
+    // Offsets in body of the strings and of the columns.
+    private int[] stringOffsets = new int[1024];
+    private int timestamps;
+    private int clients;
+    private int hosts;
+
+    /**
+     * @param position the offset of the first block to read.
+     */
+    BinaryConnectionsReader(FileChannel channel, long position) {
+        this(channel, position, null);
+    }
+
+    /**
+     * @param body the buffer to read blocks into, see body(), or null for
+     *             a new one.
+     */
+    BinaryConnectionsReader(FileChannel channel, long position,
+                            ByteBuffer body) {
+        this.channel = channel;
+        this.position = position;
+        this.body = (body != null) ? body : ByteBuffer.allocateDirect(BODY_SIZE);
+    }
+
+    /* The block buffer, grown if needed, for the next reader to reuse. */
+    ByteBuffer body() {
+        return body;
+    }
+
+    /**
+     * Moves to the next block, if it has been completely written.
+     * @return false if there is no complete block left.
+     * @throws IOException
+     */
+    boolean nextBlock() throws IOException {
+        header.clear();
+        if (!readFully(header, position)) {
+            return false;
+        }
+        header.flip();
+        int length = header.getInt();
+        if (channel.size() < position + 4 + length) {
+            return false;
+        }
+        blockStart = position;
+        minTime = header.getLong();
+        maxTime = header.getLong();
+        size = header.getInt();
+        stringCount = header.getInt();
+        position += 4 + length;
+        loaded = false;
+        return true;
+    }
+
+    /**
+     * Reads the body of the current block.
+     * @throws IOException
+     */
+    void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        int length = (int) (position - blockStart) -
+                BinaryConnectionsFormat.BLOCK_HEADER_SIZE;
+        if (body.capacity() < length) {
+            body = ByteBuffer.allocateDirect(length);
+        }
+        body.clear().limit(length);
+        if (!readFully(body, blockStart +
+                BinaryConnectionsFormat.BLOCK_HEADER_SIZE)) {
+            throw new IOException("Truncated block at offset " + blockStart);
+        }
+        if (stringOffsets.length < stringCount + 1) {
+            stringOffsets = new int[stringCount + 1];
+        }
+        int offset = 0;
+        for (int i = 0; i < stringCount; i++) {
+            stringOffsets[i] = offset + 2;
+            offset += 2 + (body.getShort(offset) & 0xffff);
+        }
+        stringOffsets[stringCount] = offset + 2;
+        timestamps = offset;
+        clients = timestamps + size * 4;
+        hosts = clients + size * 2;
+        loaded = true;
+    }
+
+    /* Moves to the block starting at position. */
+    void position(long position) {
+        this.position = position;
+        loaded = false;
+    }
+
+    /* Offset of the first byte after the current block. */
+    long position() {
+        return position;
+    }
+
+    long blockStart() {
+        return blockStart;
+    }
+
+    long minTime() {
+        return minTime;
+    }
+
+    long maxTime() {
+        return maxTime;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long timestamp(int record) {
+        return minTime + (body.getInt(timestamps + record * 4) & 0xFFFFFFFFL);
+    }
+
+    int client(int record) {
+        return body.getShort(clients + record * 2) & 0xffff;
+    }
+
+    int host(int record) {
+        return body.getShort(hosts + record * 2) & 0xffff;
+    }
+
+    int stringLength(int id) {
+        return stringOffsets[id + 1] - 2 - stringOffsets[id];
+    }
+
+    byte stringByte(int id, int i) {
+        return body.get(stringOffsets[id] + i);
+    }
+
+    byte[] string(int id) {
+        byte[] bytes = new byte[stringLength(id)];
+        body.get(stringOffsets[id], bytes);
+        return bytes;
+    }
+
+    /* The string id, from names rather than copied out and decoded. */
+    String string(int id, NameCache names) {
+        return names.get(body, stringOffsets[id],
+                stringOffsets[id] + stringLength(id));
+    }
+
+    /**
+     * @return for each string of the current block, the id of the host it
+     * is in hosts, or -1. ids is reused if it is large enough.
+     */
+    int[] hostIds(HostTable hosts, int[] ids) {
+        if (ids.length < stringCount) {
+            ids = new int[stringCount];
+        }
+        for (int id = 0; id < stringCount; id++) {
+            ids[id] = hosts.find(body, stringOffsets[id],
+                    stringOffsets[id] + stringLength(id));
+        }
+        return ids;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, at);
+            if (n < 0) {
+                return false;
+            }
+            at += n;
+        }
+        return true;
+    }
+}
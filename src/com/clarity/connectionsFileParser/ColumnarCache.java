@@ -0,0 +1,79 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The connections files loaded by QueryServer, see ColumnarLog, the least
+ * recently used evicted first when they take more than maxBytes.
+ *
+ * Comments:
+ * A file that changed (length or modification time) since it was loaded
+ * is loaded again on its next query, so appending to a log never yields
+ * a stale answer. A file bigger than maxBytes on its own is answered but
+ * not kept.
+ * Loading holds the lock of the cache, so the queries of other files wait
+ * for it too. Loads are rare, and this way a file asked by several
+ * clients at once is only loaded once.
+ */
+class ColumnarCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<File, ColumnarLog> logs =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    ColumnarCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return file, as it is now.
+     * @throws IOException
+     */
+    synchronized ColumnarLog get(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        ColumnarLog log = logs.get(key);
+        if (log != null && log.isFresh(key)) {
+            hits++;
+            return log;
+        }
+        misses++;
+        if (log != null) {
+            logs.remove(key);
+            bytes -= log.memory();
+        }
+        log = ColumnarLog.load(key);
+        if (log.memory() > maxBytes) {
+            return log;
+        }
+        logs.put(key, log);
+        bytes += log.memory();
+        Iterator<Map.Entry<File, ColumnarLog>> eldest =
+                logs.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().getValue().memory();
+            eldest.remove();
+        }
+        return log;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
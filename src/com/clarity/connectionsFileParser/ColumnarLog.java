@@ -0,0 +1,320 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A connections file (text or binary) loaded in memory as columns: the
+ * timestamp of each record, and its client and host as ids in a dictionary
+ * of the names of the file. See ColumnarCache and QueryServer.
+ *
+ * Comments:
+ * The answer is the one of ConnectionsParser: the clients of the records
+ * of the window, in file order, up to the first record more than five
+ * minutes past its end. Two more columns make that cheap to find without
+ * reading the records of other hosts or times:
+ * - the greatest timestamp up to each record. It never decreases, so the
+ *   first record that may fall in the window and the stop record are
+ *   found by binary search. Every record before the first one is older
+ *   than the window, which is what WindowSeeker finds on disk.
+ * - the records of each host, in file order (a posting list), so a query
+ *   only reads the records of its hosts between those two.
+ * The names are kept as the bytes found in the file and written as they
+ * are. They are looked up by their bytes read as ISO-8859-1, which maps
+ * every byte to a char and so never merges two names.
+ *
+ * Immutable once loaded, and so safe to query from several threads.
+ */
+class ColumnarLog {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    // A HashMap entry, its String and its byte[], roughly.
+    private static final int NAME_OVERHEAD = 96;
+
+    // The file as it was when loaded, see isFresh.
+    private final long length;
+    private final long lastModified;
+
+    private int size = 0;
+    private long[] timestamps = new long[1024];
+    private long[] maxTimestamps;
+    private int[] clients = new int[1024];
+    private int[] hosts = new int[1024];
+    // The records of host h are rows[hostRows[h], hostRows[h + 1]).
+    private int[] hostRows;
+    private int[] rows;
+
+    private final ArrayList<byte[]> names = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private long nameBytes = 0;
+    private final RecordParser parser = new RecordParser();
+
+    private ColumnarLog(long length, long lastModified) {
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Reads the records of file, up to its length when called.
+     * @throws IOException
+     */
+    static ColumnarLog load(File file) throws IOException {
+        ColumnarLog log = new ColumnarLog(file.length(), file.lastModified());
+        if (BinaryConnectionsFormat.isBinary(file)) {
+            log.loadBinary(file);
+        } else if (CompressedConnectionsFormat.isCompressed(file)) {
+            try (InputStream in = CompressedConnectionsFormat.open(file,
+                    Long.MIN_VALUE)) {
+                log.loadText(in, Long.MAX_VALUE);
+            }
+        } else {
+            try (FileInputStream in = new FileInputStream(file)) {
+                log.loadText(in, log.length);
+            }
+        }
+        log.index();
+        return log;
+    }
+
+    /* Whether file is still the file that was loaded. */
+    boolean isFresh(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* An estimate of the heap used, in bytes. */
+    long memory() {
+        return size * (8L + 8 + 4 + 4 + 4) + hostRows.length * 4L +
+                nameBytes + names.size() * (long) NAME_OVERHEAD;
+    }
+
+    /**
+     * The clients who connected to each of hostNames between startTime
+     * and endTime, written to sink as ConnectionsParser does in multi host
+     * mode: one part per host, in the order of hostNames.
+     * @throws IOException
+     */
+    void connectedClients(long startTime, long endTime,
+                          List<String> hostNames, ResultSink sink)
+            throws IOException {
+        int first = first(startTime, true);
+        // Same bound as the scans, overflow included.
+        int stop = first(endTime + FIVE_MINUTES, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String hostName : hostNames) {
+            out.reset();
+            Integer host = ids.get(key(hostName));
+            if (host != null) {
+                int from = hostRows[host];
+                int to = hostRows[host + 1];
+                int row = lowerBound(rows, from, to, first);
+                for (; row < to && rows[row] < stop; row++) {
+                    long tsc = timestamps[rows[row]];
+                    if (tsc >= startTime && tsc <= endTime) {
+                        out.write(names.get(clients[rows[row]]));
+                        out.write(' ');
+                    }
+                }
+            }
+            byte[] bytes = out.toByteArray();
+            sink.clients(hostName, bytes, 0, bytes.length, true);
+        }
+    }
+
+    /**
+     * @return the first record at which some timestamp is > time (>= time
+     * if orEqual) so far, or size.
+     */
+    private int first(long time, boolean orEqual) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxTimestamps[mid] > time ||
+                    (orEqual && maxTimestamps[mid] == time)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /* The first index in a[from, to) whose value is >= value, or to. */
+    private static int lowerBound(int[] a, int from, int to, int value) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (a[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /* The first length bytes of in. */
+    private void loadText(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[INPUT_BUFFER_SIZE];
+        long offset = 0;    // Of buffer[0] in the text.
+        long remaining = length;
+        int start = 0;      // Of the current line.
+        int end = 0;
+        while (true) {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    addLine(buffer, start, i, offset + start);
+                    start = i + 1;
+                }
+            }
+            if (remaining == 0) {
+                break;
+            }
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                offset += start;
+                end -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                // A line longer than the buffer.
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, end, (int) Math.min(
+                    buffer.length - end, remaining));
+            if (n < 0) {
+                // The end of a compressed file, or a file truncated since
+                // we looked at its length.
+                break;
+            }
+            end += n;
+            remaining -= n;
+        }
+        if (start < end) {
+            // The last line has no newline yet.
+            addLine(buffer, start, end, offset + start);
+        }
+    }
+
+    /* See RecordParser. */
+    private void addLine(byte[] line, int start, int end, long offset) {
+        if (!parser.parse(line, start, end)) {
+            throw new NumberFormatException(parser.error() + " at offset " +
+                    offset);
+        }
+        add(parser.timestamp(), id(line, parser.clientStart(),
+                parser.clientEnd()), id(line, parser.hostStart(),
+                parser.hostEnd()));
+    }
+
+    private void loadBinary(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            BinaryConnectionsReader reader = new BinaryConnectionsReader(
+                    channel, BinaryConnectionsFormat.HEADER_SIZE);
+            // The id of each string of the current block, or -1.
+            int[] blockIds = new int[1024];
+            Arrays.fill(blockIds, -1);
+            int used = 0;
+            while (reader.position() < length && reader.nextBlock()) {
+                reader.load();
+                Arrays.fill(blockIds, 0, used, -1);
+                used = 0;
+                for (int i = 0; i < reader.size(); i++) {
+                    int client = reader.client(i);
+                    int host = reader.host(i);
+                    int max = Math.max(client, host);
+                    if (max >= blockIds.length) {
+                        int old = blockIds.length;
+                        blockIds = Arrays.copyOf(blockIds, Math.max(max + 1,
+                                old * 2));
+                        Arrays.fill(blockIds, old, blockIds.length, -1);
+                    }
+                    used = Math.max(used, max + 1);
+                    if (blockIds[client] < 0) {
+                        byte[] name = reader.string(client);
+                        blockIds[client] = id(name, 0, name.length);
+                    }
+                    if (blockIds[host] < 0) {
+                        byte[] name = reader.string(host);
+                        blockIds[host] = id(name, 0, name.length);
+                    }
+                    add(reader.timestamp(i), blockIds[client], blockIds[host]);
+                }
+            }
+        }
+    }
+
+    private int id(byte[] bytes, int start, int end) {
+        String key = new String(bytes, start, end - start,
+                StandardCharsets.ISO_8859_1);
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = names.size();
+            ids.put(key, id);
+            names.add(Arrays.copyOfRange(bytes, start, end));
+            nameBytes += 2L * (end - start);
+        }
+        return id;
+    }
+
+    private static String key(String name) {
+        return new String(name.getBytes(Charset.defaultCharset()),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    private void add(long tsc, int client, int host) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            clients = Arrays.copyOf(clients, capacity);
+            hosts = Arrays.copyOf(hosts, capacity);
+        }
+        timestamps[size] = tsc;
+        clients[size] = client;
+        hosts[size] = host;
+        size++;
+    }
+
+    /* Trims the columns and builds the running max and the posting lists. */
+    private void index() {
+        timestamps = Arrays.copyOf(timestamps, size);
+        clients = Arrays.copyOf(clients, size);
+        hosts = Arrays.copyOf(hosts, size);
+        maxTimestamps = new long[size];
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, timestamps[i]);
+            maxTimestamps[i] = max;
+        }
+        hostRows = new int[names.size() + 1];
+        for (int i = 0; i < size; i++) {
+            hostRows[hosts[i] + 1]++;
+        }
+        for (int h = 0; h < names.size(); h++) {
+            hostRows[h + 1] += hostRows[h];
+        }
+        rows = new int[size];
+        int[] next = Arrays.copyOf(hostRows, names.size());
+        for (int i = 0; i < size; i++) {
+            rows[next[hosts[i]]++] = i;
+        }
+    }
+}
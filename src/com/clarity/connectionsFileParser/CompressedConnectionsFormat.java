@@ -0,0 +1,432 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Block compressed version of the connections file, for archived logs, and
+ * the text -> compressed converter.
+ *
+ * Layout (big endian):
+ *      header: int MAGIC, int VERSION
+ *      blocks: the lines of the text file, cut in line aligned blocks of
+ *              about DEFAULT_BLOCK_SIZE bytes, each deflated on its own (raw
+ *              deflate, no zlib header)
+ *      footer, one entry per block:
+ *          long    offset of the block
+ *          int     compressed length
+ *          int     text length
+ *          long    min timestamp
+ *          long    max timestamp
+ *      trailer:
+ *          int     number of blocks
+ *          long    offset of the footer
+ *          int     MAGIC
+ *
+ * Comments:
+ * A gzip file can only be read from its start, so a query for the last
+ * hour of an archived day inflates the whole day, and decompressing it to
+ * disk first writes and reads it all again. Here every block is deflated
+ * on its own, and the footer gives the time range of each, so a scan only
+ * inflates the blocks that overlap its window, and can inflate them in
+ * parallel, see CompressedConnectionsScanner. The blocks hold the text as
+ * is, so the output is byte for byte the same as with the text file. The
+ * footer is written last, the converter does not need to know the number
+ * of blocks up front, and a file cut short is not a valid one.
+ *
+ * usage: java CompressedConnectionsFormat <text_file> <compressed_file>
+ */
+public class CompressedConnectionsFormat {
+
+    static final int MAGIC = 0x434F4E5A; // "CONZ"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int ENTRY_SIZE = 8 + 4 + 4 + 8 + 8;
+    static final int TRAILER_SIZE = 4 + 8 + 4;
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private CompressedConnectionsFormat() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java CompressedConnectionsFormat " +
+                    "<text_file> <compressed_file>");
+            throw new IllegalArgumentException();
+        }
+        File textFile = new File(args[0]);
+        if (!textFile.exists()) {
+            throw new FileNotFoundException(args[0] + ": no such file");
+        }
+        convert(textFile, new File(args[1]));
+    }
+
+    /**
+     * @return true if the file starts with the compressed format header.
+     * @throws IOException
+     */
+    public static boolean isCompressed(File connectionsFile)
+            throws IOException {
+        if (connectionsFile.length() < HEADER_SIZE + TRAILER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(connectionsFile))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    public static void convert(File textFile, File compressedFile)
+            throws IOException {
+        convert(textFile, compressedFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the compressed version of a text connections file, in blocks
+     * of about blockSize bytes of text.
+     * @throws IOException
+     */
+    public static void convert(File textFile, File compressedFile,
+                               int blockSize) throws IOException {
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(textFile), 1 << 16);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(
+                             new FileOutputStream(compressedFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            BlockWriter block = new BlockWriter(blockSize);
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(footer);
+            long offset = HEADER_SIZE;
+            int blocks = 0;
+            byte[] line = new byte[256];
+            int length = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = (byte) b;
+                if (b == '\n') {
+                    block.add(line, length);
+                    length = 0;
+                    if (block.isFull()) {
+                        offset += block.writeTo(out, offset, entries);
+                        blocks++;
+                    }
+                }
+            }
+            if (length > 0) {
+                // The last line has no newline.
+                block.add(line, length);
+            }
+            if (block.size() > 0) {
+                offset += block.writeTo(out, offset, entries);
+                blocks++;
+            }
+            block.end();
+            out.write(footer.toByteArray());
+            out.writeInt(blocks);
+            out.writeLong(offset);
+            out.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * The footer of a compressed file.
+     * @throws IOException if the file is not a complete compressed file.
+     */
+    static Index readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, size - TRAILER_SIZE);
+        int blocks = trailer.getInt();
+        long footer = trailer.getLong();
+        if (trailer.getInt() != MAGIC || blocks < 0 || footer < HEADER_SIZE ||
+                footer + (long) blocks * ENTRY_SIZE != size - TRAILER_SIZE) {
+            throw new IOException("Not a complete compressed connections " +
+                    "file");
+        }
+        ByteBuffer entries = ByteBuffer.allocate(blocks * ENTRY_SIZE);
+        readFully(channel, entries, footer);
+        Index index = new Index(blocks);
+        for (int i = 0; i < blocks; i++) {
+            index.offsets[i] = entries.getLong();
+            index.compressedLengths[i] = entries.getInt();
+            index.textLengths[i] = entries.getInt();
+            index.minTimes[i] = entries.getLong();
+            index.maxTimes[i] = entries.getLong();
+            index.textOffsets[i] = (i == 0) ? 0 :
+                    index.textOffsets[i - 1] + index.textLengths[i - 1];
+        }
+        return index;
+    }
+
+    /**
+     * The text of the blocks of a compressed file from the first one that
+     * may hold a line at or after startTime, inflated as it is read.
+     * @throws IOException
+     */
+    static InputStream open(File compressedFile, long startTime)
+            throws IOException {
+        FileChannel channel = FileChannel.open(compressedFile.toPath(),
+                StandardOpenOption.READ);
+        try {
+            Index index = readIndex(channel);
+            int from = index.firstBlock(startTime);
+            Enumeration<InputStream> blocks = new Enumeration<>() {
+                private int next = from;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return next < index.size();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    if (next >= index.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    int i = next++;
+                    Inflater inflater = new Inflater(true);
+                    return new InflaterInputStream(new BufferedInputStream(
+                            new BoundedInput(channel, index.offsets[i],
+                                    index.compressedLengths[i]), 1 << 16),
+                            inflater, 1 << 16) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            // Not ended by InflaterInputStream, as it was
+                            // handed to it.
+                            inflater.end();
+                        }
+                    };
+                }
+            };
+            return new SequenceInputStream(blocks) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        channel.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The text of block i, inflated into a buffer of its text length.
+     * Thread safe, the channel is read at absolute positions.
+     * @throws IOException
+     */
+    static ByteBuffer inflate(FileChannel channel, Index index, int i)
+            throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(
+                index.compressedLengths[i]);
+        readFully(channel, compressed, index.offsets[i]);
+        byte[] text = new byte[index.textLengths[i]];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array());
+            int n = 0;
+            while (n < text.length && !inflater.finished()) {
+                int inflated = inflater.inflate(text, n, text.length - n);
+                if (inflated == 0 && (inflater.needsInput() ||
+                        inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != text.length) {
+                throw new IOException("Truncated block at offset " +
+                        index.offsets[i]);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block at offset " +
+                    index.offsets[i], e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(text);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Truncated compressed connections " +
+                        "file");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * The block offsets, lengths and time ranges, by block in file order.
+     */
+    static class Index {
+        final long[] offsets;
+        final int[] compressedLengths;
+        final int[] textLengths;
+        final long[] minTimes;
+        final long[] maxTimes;
+        // Of the text of each block in the text file.
+        final long[] textOffsets;
+
+        Index(int blocks) {
+            offsets = new long[blocks];
+            compressedLengths = new int[blocks];
+            textLengths = new int[blocks];
+            minTimes = new long[blocks];
+            maxTimes = new long[blocks];
+            textOffsets = new long[blocks];
+        }
+
+        int size() {
+            return offsets.length;
+        }
+
+        /* The first block that may hold a line at or after startTime. */
+        int firstBlock(long startTime) {
+            int first = 0;
+            while (first < size() && maxTimes[first] < startTime) {
+                first++;
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Accumulates the lines of one block, and their time range.
+     */
+    private static class BlockWriter {
+
+        private final int blockSize;
+        private final Deflater deflater = new Deflater(
+                Deflater.DEFAULT_COMPRESSION, true);
+        private byte[] text;
+        private byte[] compressed = new byte[1 << 16];
+        private final RecordParser parser = new RecordParser();
+        private int size = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        BlockWriter(int blockSize) {
+            this.blockSize = blockSize;
+            this.text = new byte[blockSize];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isFull() {
+            return size >= blockSize;
+        }
+
+        /* A line, with its newline if it has one. */
+        void add(byte[] line, int length) {
+            int end = (length > 0 && line[length - 1] == '\n') ? length - 1 :
+                    length;
+            if (!parser.parse(line, 0, end)) {
+                throw new NumberFormatException(parser.error() + ": " +
+                        new String(line, 0, length).trim());
+            }
+            long tsc = parser.timestamp();
+            min = Math.min(min, tsc);
+            max = Math.max(max, tsc);
+            if (size + length > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2,
+                        size + length));
+            }
+            System.arraycopy(line, 0, text, size, length);
+            size += length;
+        }
+
+        /**
+         * Writes the block at offset, its entry to footer, and resets the
+         * writer.
+         * @return the compressed length.
+         */
+        int writeTo(DataOutputStream out, long offset, DataOutputStream footer)
+                throws IOException {
+            deflater.reset();
+            deflater.setInput(text, 0, size);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressed);
+                out.write(compressed, 0, n);
+                length += n;
+            }
+            footer.writeLong(offset);
+            footer.writeInt(length);
+            footer.writeInt(size);
+            footer.writeLong(min);
+            footer.writeLong(max);
+            size = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            return length;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /* length bytes of channel from position. */
+    private static class BoundedInput extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        BoundedInput(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off,
+                    (int) Math.min(len, remaining)), position);
+            if (n < 0) {
+                throw new EOFException("Truncated compressed connections " +
+                        "file");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+}
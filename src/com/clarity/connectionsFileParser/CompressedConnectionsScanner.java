@@ -0,0 +1,141 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a compressed connections file (see CompressedConnectionsFormat):
+ * only the blocks whose time range overlaps the window are inflated, on a
+ * ForkJoinPool, and their text is scanned by MappedConnectionsScanner.
+ *
+ * Comments:
+ * As in ParallelConnectionsScanner, each block writes its matches to its
+ * own buffers, written out in file order, so the output is byte for byte
+ * the one of the sequential scan of the text file. That scan stops at the
+ * first line past the window (+5m): the blocks after the first one whose
+ * max timestamp is past that bound are not read at all, and the output of
+ * the blocks after the one that actually stopped is dropped.
+ */
+class CompressedConnectionsScanner {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+
+    private final FileChannel channel;
+    private final long startTime;
+    private final long endTime;
+    private final HostTable hosts;
+    private final int parallelism;
+
+    CompressedConnectionsScanner(FileChannel channel, long startTime,
+                                 long endTime, HostTable hosts,
+                                 int parallelism) {
+        this.channel = channel;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.hosts = hosts;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Same as MappedConnectionsScanner.scan, over the whole file.
+     * @throws IOException
+     */
+    boolean scan(OutputStream[] outs) throws IOException {
+        CompressedConnectionsFormat.Index index =
+                CompressedConnectionsFormat.readIndex(channel);
+        long stop = (endTime > Long.MAX_VALUE - FIVE_MINUTES) ?
+                Long.MAX_VALUE : endTime + FIVE_MINUTES;
+        List<Integer> blocks = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            if (index.maxTimes[i] >= startTime &&
+                    (index.minTimes[i] <= endTime || index.maxTimes[i] > stop)) {
+                blocks.add(i);
+            }
+            if (index.maxTimes[i] > stop) {
+                // The sequential scan stops in this block at the latest.
+                break;
+            }
+        }
+        AtomicInteger firstStopped = new AtomicInteger(Integer.MAX_VALUE);
+        List<Callable<Block>> tasks = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            int task = i;
+            int block = blocks.get(i);
+            tasks.add(() -> scanBlock(task, index, block, firstStopped));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Block> future : pool.invokeAll(tasks)) {
+                Block block = future.get();
+                for (int i = 0; i < outs.length; i++) {
+                    block.outputs[i].writeTo(outs[i]);
+                }
+                if (block.stopped) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // A malformed line, as in the sequential scan. The pool may
+                // rethrow a copy of it, whose cause is the original.
+                if (cause.getCause() != null &&
+                        cause.getCause().getClass() == cause.getClass()) {
+                    cause = cause.getCause();
+                }
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Block scanBlock(int task, CompressedConnectionsFormat.Index index,
+                            int i, AtomicInteger firstStopped)
+            throws IOException {
+        Block block = new Block(hosts.size());
+        if (task > firstStopped.get()) {
+            // An earlier block stopped, this output would be dropped.
+            return block;
+        }
+        block.stopped = new MappedConnectionsScanner(channel, startTime,
+                endTime, hosts).scan(CompressedConnectionsFormat.inflate(
+                channel, index, i), index.textOffsets[i], block.outputs);
+        if (block.stopped) {
+            firstStopped.accumulateAndGet(task, Math::min);
+        }
+        return block;
+    }
+
+    private static class Block {
+        private final ByteArrayOutputStream[] outputs;
+        private boolean stopped = false;
+
+        Block(int hosts) {
+            outputs = new ByteArrayOutputStream[hosts];
+            for (int i = 0; i < hosts; i++) {
+                outputs[i] = new ByteArrayOutputStream();
+            }
+        }
+    }
+}
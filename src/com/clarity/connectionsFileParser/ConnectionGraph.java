@@ -0,0 +1,377 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The connection graph of a window, built in one pass: every client and
+ * host is a node, every (client, host) pair an edge with its number of
+ * connections. Reports the top pairs, the fan-in and fan-out of the names,
+ * see GraphResult. Used by the tailer (see WindowAggregate) and by the
+ * scanner (see ConnectionsParser.connectionGraph).
+ *
+ * Comments:
+ * A HashMap<String, HashMap<String, Long>> would cost a few hundred bytes
+ * per edge in entries, boxed counts and references, which is gigabytes
+ * for millions of edges. Here a name is interned once to an int id, and
+ * everything else is primitive arrays indexed by id:
+ * - nodes: connections and fans, as host and as client.
+ * - edges: client id, host id, count and error, found through an open
+ *   addressing table (linear probing, half full at most) of edge index + 1
+ *   keyed on the pair of ids. About 40 bytes per edge in all.
+ * The number of edges is bounded by maxEdges. Once there are that many,
+ * a new pair evicts the pair with the smallest count and inherits it as
+ * its error, as in SpaceSavingTopK: counts are never underestimated, and
+ * any pair with more than connections / maxEdges connections is kept. The
+ * min-heap that finds the smallest count is only built when the first
+ * pair is evicted, the exact case does not pay for it. The fan of a name
+ * counts the edges created for it, so an evicted pair that comes back is
+ * counted twice: fans are exact until the first eviction, upper bounds
+ * after it.
+ */
+class ConnectionGraph {
+
+    // ~40MB.
+    static final int DEFAULT_MAX_EDGES = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int topN;
+    private final int maxEdges;
+    private long connections = 0;
+
+    /* Nodes, by id. */
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] connectionsIn = new long[INITIAL_CAPACITY];
+    private long[] connectionsOut = new long[INITIAL_CAPACITY];
+    private long[] fanIn = new long[INITIAL_CAPACITY];
+    private long[] fanOut = new long[INITIAL_CAPACITY];
+    private int nodes = 0;
+
+    /* Edges, by index. */
+    private int[] clients = new int[INITIAL_CAPACITY];
+    private int[] hosts = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] errors = new long[INITIAL_CAPACITY];
+    private int edges = 0;
+    // Edge index + 1 by slot, 0 if empty.
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+    private int mask = table.length - 1;
+    // Min-heap of edge indexes by count, and the position of each edge in
+    // it. null until an edge is evicted.
+    private int[] heap;
+    private int[] heapIndex;
+
+    /**
+     * @param topN the number of pairs, and of names by fan-in and fan-out,
+     *             to report.
+     * @param maxEdges the number of edges kept at most.
+     */
+    ConnectionGraph(int topN, int maxEdges) {
+        this.topN = topN;
+        this.maxEdges = Math.max(1, maxEdges);
+    }
+
+    void add(String client, String host) {
+        int c = id(client);
+        int h = id(host);
+        connections++;
+        connectionsOut[c]++;
+        connectionsIn[h]++;
+        int slot = find(c, h);
+        int e = table[slot] - 1;
+        if (e >= 0) {
+            counts[e]++;
+            if (heap != null) {
+                siftDown(heapIndex[e]);
+            }
+            return;
+        }
+        fanOut[c]++;
+        fanIn[h]++;
+        if (edges < maxEdges) {
+            if (edges == clients.length) {
+                growEdges();
+                slot = find(c, h);
+            }
+            e = edges++;
+            clients[e] = c;
+            hosts[e] = h;
+            counts[e] = 1;
+            errors[e] = 0;
+            table[slot] = e + 1;
+            return;
+        }
+        // Full: the pair with the smallest count makes room.
+        if (heap == null) {
+            buildHeap();
+        }
+        e = heap[0];
+        unlink(find(clients[e], hosts[e]));
+        clients[e] = c;
+        hosts[e] = h;
+        errors[e] = counts[e];
+        counts[e]++;
+        table[find(c, h)] = e + 1;
+        siftDown(0);
+    }
+
+    /* The client with the most connections, as WindowAggregate reports. */
+    WindowResult.Count mostConnections() {
+        int best = -1;
+        for (int id = 0; id < nodes; id++) {
+            if (connectionsOut[id] > 0 && (best < 0 ||
+                    connectionsOut[id] > connectionsOut[best])) {
+                best = id;
+            }
+        }
+        return (best < 0) ? new WindowResult.Count(null, 0, 0) :
+                new WindowResult.Count(names[best], connectionsOut[best], 0);
+    }
+
+    /**
+     * @param hostNames the names whose fans are reported whatever they are.
+     */
+    GraphResult result(List<String> hostNames) {
+        List<GraphResult.Pair> topPairs = new ArrayList<>();
+        for (int e : top(edges, counts, null)) {
+            topPairs.add(new GraphResult.Pair(names[clients[e]],
+                    names[hosts[e]], counts[e], errors[e]));
+        }
+        List<GraphResult.Degree> topFanIn = new ArrayList<>();
+        for (int id : top(nodes, fanIn, connectionsIn)) {
+            topFanIn.add(degree(id));
+        }
+        List<GraphResult.Degree> topFanOut = new ArrayList<>();
+        for (int id : top(nodes, fanOut, connectionsOut)) {
+            topFanOut.add(degree(id));
+        }
+        List<GraphResult.Degree> degrees = new ArrayList<>();
+        for (String name : hostNames) {
+            Integer id = ids.get(name);
+            degrees.add((id != null) ? degree(id) :
+                    new GraphResult.Degree(name, 0, 0, 0, 0));
+        }
+        return new GraphResult(connections, nodes, edges, maxError(),
+                topPairs, topFanIn, topFanOut, degrees);
+    }
+
+    /* The largest count a pair that is not kept can have. */
+    private long maxError() {
+        return (heap == null) ? 0 : counts[heap[0]];
+    }
+
+    private GraphResult.Degree degree(int id) {
+        return new GraphResult.Degree(names[id], fanIn[id], fanOut[id],
+                connectionsIn[id], connectionsOut[id]);
+    }
+
+    /**
+     * @return the (at most) topN indexes in [0, n) with the largest
+     * non-zero values, then tie values, then the first seen.
+     */
+    private int[] top(int n, long[] values, long[] ties) {
+        PriorityQueue<Integer> smallest = new PriorityQueue<>(
+                (a, b) -> -compare(a, b, values, ties));
+        for (int i = 0; i < n; i++) {
+            if (values[i] == 0) {
+                continue;
+            }
+            if (smallest.size() < topN) {
+                smallest.add(i);
+            } else if (topN > 0 && compare(i, smallest.peek(), values,
+                    ties) < 0) {
+                smallest.poll();
+                smallest.add(i);
+            }
+        }
+        int[] top = new int[smallest.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = smallest.poll();
+        }
+        return top;
+    }
+
+    /* < 0 if a ranks before b. */
+    private static int compare(int a, int b, long[] values, long[] ties) {
+        int c = Long.compare(values[b], values[a]);
+        if (c == 0 && ties != null) {
+            c = Long.compare(ties[b], ties[a]);
+        }
+        return (c != 0) ? c : Integer.compare(a, b);
+    }
+
+    private int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (nodes == names.length) {
+            int capacity = nodes * 2;
+            names = Arrays.copyOf(names, capacity);
+            connectionsIn = Arrays.copyOf(connectionsIn, capacity);
+            connectionsOut = Arrays.copyOf(connectionsOut, capacity);
+            fanIn = Arrays.copyOf(fanIn, capacity);
+            fanOut = Arrays.copyOf(fanOut, capacity);
+        }
+        names[nodes] = name;
+        ids.put(name, nodes);
+        return nodes++;
+    }
+
+    /* The slot of the edge (c, h), or the empty slot where it goes. */
+    private int find(int c, int h) {
+        int slot = hash(c, h) & mask;
+        int e;
+        while ((e = table[slot] - 1) >= 0 &&
+                (clients[e] != c || hosts[e] != h)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Empties slot, moving back the edges probed past it. */
+    private void unlink(int slot) {
+        int free = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            int e = table[i] - 1;
+            if (e < 0) {
+                break;
+            }
+            int home = hash(clients[e], hosts[e]) & mask;
+            // The edge can move to free unless its home is in (free, i].
+            boolean stays = (free <= i) ? (free < home && home <= i) :
+                    (free < home || home <= i);
+            if (!stays) {
+                table[free] = table[i];
+                free = i;
+            }
+        }
+        table[free] = 0;
+    }
+
+    private void growEdges() {
+        int capacity = (int) Math.min((long) maxEdges, edges * 2L);
+        clients = Arrays.copyOf(clients, capacity);
+        hosts = Arrays.copyOf(hosts, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        errors = Arrays.copyOf(errors, capacity);
+        table = new int[Integer.highestOneBit(capacity - 1) << 2];
+        mask = table.length - 1;
+        for (int e = 0; e < edges; e++) {
+            table[find(clients[e], hosts[e])] = e + 1;
+        }
+    }
+
+    private static int hash(int c, int h) {
+        long key = ((long) c << 32) | (h & 0xFFFFFFFFL);
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private void buildHeap() {
+        heap = new int[edges];
+        heapIndex = new int[edges];
+        for (int e = 0; e < edges; e++) {
+            heap[e] = e;
+            heapIndex[e] = e;
+        }
+        for (int i = edges / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftDown(int i) {
+        int e = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= edges) {
+                break;
+            }
+            if (child + 1 < edges &&
+                    counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[e] <= counts[heap[child]]) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(e, i);
+    }
+
+    private void place(int e, int i) {
+        heap[i] = e;
+        heapIndex[e] = i;
+    }
+
+    /* Checkpoint, see TailingConnectionsParser. The heap is written in
+       order so that it is restored as is, and evicts the same pairs. */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(connections);
+        out.writeInt(nodes);
+        for (int id = 0; id < nodes; id++) {
+            out.writeUTF(names[id]);
+            out.writeLong(connectionsIn[id]);
+            out.writeLong(connectionsOut[id]);
+            out.writeLong(fanIn[id]);
+            out.writeLong(fanOut[id]);
+        }
+        out.writeInt(edges);
+        for (int e = 0; e < edges; e++) {
+            out.writeInt(clients[e]);
+            out.writeInt(hosts[e]);
+            out.writeLong(counts[e]);
+            out.writeLong(errors[e]);
+        }
+        out.writeBoolean(heap != null);
+        if (heap != null) {
+            for (int i = 0; i < edges; i++) {
+                out.writeInt(heap[i]);
+            }
+        }
+    }
+
+    void readFrom(DataInputStream in, SymbolTable symbols)
+            throws IOException {
+        connections = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int id = id(symbols.intern(in.readUTF()));
+            connectionsIn[id] = in.readLong();
+            connectionsOut[id] = in.readLong();
+            fanIn[id] = in.readLong();
+            fanOut[id] = in.readLong();
+        }
+        int m = in.readInt();
+        for (int e = 0; e < m; e++) {
+            if (edges == clients.length) {
+                growEdges();
+            }
+            clients[e] = in.readInt();
+            hosts[e] = in.readInt();
+            counts[e] = in.readLong();
+            errors[e] = in.readLong();
+            table[find(clients[e], hosts[e])] = e + 1;
+            edges++;
+        }
+        if (in.readBoolean()) {
+            heap = new int[edges];
+            heapIndex = new int[edges];
+            for (int i = 0; i < edges; i++) {
+                place(in.readInt(), i);
+            }
+        }
+    }
+}
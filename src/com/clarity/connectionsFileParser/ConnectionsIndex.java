@@ -0,0 +1,268 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sidecar index of a (closed) connections file, written next to it as
+ * <filename>.idx.
+ *
+ * Comments:
+ * The file is cut in line aligned blocks of roughly BLOCK_SIZE bytes. For
+ * each block we keep its byte range, the min and max timestamp of its lines
+ * and a Bloom filter of the hosts it contains. A query only scans the blocks
+ * that can hold both the window and the host, so running dozens of queries
+ * on the same file does not rescan the whole text every time.
+ *
+ * The index is only used if the length and modification time of the file
+ * are the ones it was built for, otherwise it is ignored (and should be
+ * rebuilt).
+ *
+ * usage: java ConnectionsIndex <filename>
+ */
+public class ConnectionsIndex {
+
+    public static final String SUFFIX = ".idx";
+    static final int MAGIC = 0x43494458; // "CIDX"
+    static final int VERSION = 1;
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    // ~1% false positives.
+    private static final int BITS_PER_HOST = 10;
+    private static final int HASHES = 7;
+
+    private final long[] offsets;
+    private final long[] minTimes;
+    private final long[] maxTimes;
+    private final long[][] blooms;
+
+    private ConnectionsIndex(long[] offsets, long[] minTimes, long[] maxTimes,
+                             long[][] blooms) {
+        this.offsets = offsets;
+        this.minTimes = minTimes;
+        this.maxTimes = maxTimes;
+        this.blooms = blooms;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: java ConnectionsIndex <filename>");
+            throw new IllegalArgumentException();
+        }
+        File connectionsFile = new File(args[0]);
+        if (!connectionsFile.exists()) {
+            throw new FileNotFoundException(args[0] + ": no such file");
+        }
+        build(connectionsFile);
+    }
+
+    public static File sidecar(File connectionsFile) {
+        return new File(connectionsFile.getPath() + SUFFIX);
+    }
+
+    public static void build(File connectionsFile) throws IOException {
+        build(connectionsFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Reads the connections file once and writes its sidecar index.
+     * @throws IOException
+     */
+    public static void build(File connectionsFile, int blockSize)
+            throws IOException {
+        long length = connectionsFile.length();
+        long lastModified = connectionsFile.lastModified();
+        File tmp = new File(connectionsFile.getPath() + SUFFIX + ".tmp");
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(connectionsFile), 1 << 16);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            List<long[]> blocks = new ArrayList<>();
+            List<long[]> blooms = new ArrayList<>();
+            Set<String> hosts = new HashSet<>();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long offset = 0;
+            long blockStart = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            int b;
+            while (offset < length) {
+                // One line.
+                line.reset();
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        break;
+                    }
+                    line.write(b);
+                }
+                if (b == -1) {
+                    offset = length;
+                }
+                String[] tokens = line.toString().trim().split(" ");
+                long tsc = Long.parseLong(tokens[0]);
+                min = Math.min(min, tsc);
+                max = Math.max(max, tsc);
+                hosts.add(tokens[2]);
+                if (offset - blockStart >= blockSize || offset == length) {
+                    blocks.add(new long[]{blockStart, min, max});
+                    blooms.add(bloom(hosts));
+                    blockStart = offset;
+                    min = Long.MAX_VALUE;
+                    max = Long.MIN_VALUE;
+                    hosts.clear();
+                }
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                long[] block = blocks.get(i);
+                long[] bloom = blooms.get(i);
+                out.writeLong(block[0]);
+                out.writeLong(block[1]);
+                out.writeLong(block[2]);
+                out.writeInt(bloom.length);
+                for (long word : bloom) {
+                    out.writeLong(word);
+                }
+            }
+        }
+        File sidecar = sidecar(connectionsFile);
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Could not write " + sidecar);
+        }
+    }
+
+    /**
+     * @return the index of the connections file, or null if there is none
+     * or it is not fresh.
+     * @throws IOException
+     */
+    static ConnectionsIndex load(File connectionsFile) throws IOException {
+        File sidecar = sidecar(connectionsFile);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    in.readLong() != connectionsFile.length() ||
+                    in.readLong() != connectionsFile.lastModified()) {
+                return null;
+            }
+            int count = in.readInt();
+            long[] offsets = new long[count + 1];
+            long[] minTimes = new long[count];
+            long[] maxTimes = new long[count];
+            long[][] blooms = new long[count][];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                minTimes[i] = in.readLong();
+                maxTimes[i] = in.readLong();
+                blooms[i] = new long[in.readInt()];
+                for (int w = 0; w < blooms[i].length; w++) {
+                    blooms[i][w] = in.readLong();
+                }
+            }
+            offsets[count] = connectionsFile.length();
+            return new ConnectionsIndex(offsets, minTimes, maxTimes, blooms);
+        }
+    }
+
+    /**
+     * Same contract as MappedConnectionsScanner.scan on the whole file, only
+     * reading the blocks that may match.
+     */
+    boolean scan(FileChannel channel, long startTime, long endTime,
+                 String hostName, OutputStream out) throws IOException {
+        return scan(channel, startTime, endTime, HostTable.of(hostName),
+                new OutputStream[]{out});
+    }
+
+    /**
+     * Same for several hosts, see MappedConnectionsScanner.scan. A block is
+     * read if it may contain any of them.
+     */
+    boolean scan(FileChannel channel, long startTime, long endTime,
+                 HostTable hosts, OutputStream[] outs) throws IOException {
+        long[][] hashes = new long[hosts.size()][];
+        for (int h = 0; h < hashes.length; h++) {
+            hashes[h] = hashes(hosts.name(h));
+        }
+        MappedConnectionsScanner scanner =
+                new MappedConnectionsScanner(channel, startTime, endTime,
+                        hosts);
+        for (int i = 0; i < minTimes.length; i++) {
+            boolean inWindow = maxTimes[i] >= startTime &&
+                    minTimes[i] <= endTime;
+            if (inWindow && mightContainAny(blooms[i], hashes)) {
+                if (scanner.scan(offsets[i], offsets[i + 1], outs)) {
+                    return true;
+                }
+            } else if (maxTimes[i] > endTime + FIVE_MINUTES) {
+                // The line where a scan would stop is in this block, and
+                // nothing before it in the block matches.
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Two base hashes (FNV-1a and a variant), combined as h1 + i * h2. */
+    private static long[] hashes(String host) {
+        byte[] bytes = host.getBytes(Charset.defaultCharset());
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x84222325cbf29ce4L;
+        for (byte b : bytes) {
+            h1 = (h1 ^ (b & 0xff)) * 0x100000001b3L;
+            h2 = (h2 ^ (b & 0xff)) * 0x9e3779b97f4a7c15L;
+        }
+        return new long[]{h1, h2 | 1};
+    }
+
+    private static long[] bloom(Set<String> hosts) {
+        int words = Math.max(1, (hosts.size() * BITS_PER_HOST + 63) / 64);
+        long[] bloom = new long[words];
+        long bits = words * 64L;
+        for (String host : hosts) {
+            long[] h = hashes(host);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(h[0] + i * h[1], bits);
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+        return bloom;
+    }
+
+    private static boolean mightContainAny(long[] bloom, long[][] hashes) {
+        for (long[] h : hashes) {
+            if (mightContain(bloom, h)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean mightContain(long[] bloom, long[] h) {
+        long bits = bloom.length * 64L;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(h[0] + i * h[1], bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
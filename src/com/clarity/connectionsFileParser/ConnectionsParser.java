@@ -3,43 +3,289 @@
 package com.clarity.connectionsFileParser;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 
 public class ConnectionsParser {
 
+    /**
+     * READER: sequential reads decoded by a RecordParser, see RecordReader.
+     * MAPPED: memory mapped, allocation free scan for large files.
+     * PARALLEL: MAPPED, split in segments scanned by several threads.
+     */
+    public enum ScanMode {
+        READER,
+        MAPPED,
+        PARALLEL
+    }
+
+    /**
+     * What an ordered scan does with the records of the window that come
+     * later than the disorder bound, out of order, see setOrdering:
+     * DROP: leaves them out of the answer.
+     * COUNT: leaves them out, and counts them (see getLateRecords, and the
+     * dropped records of the metrics).
+     * SIDE_OUTPUT: counts them, and writes their line to a side output.
+     */
+    public enum LatePolicy {
+        DROP,
+        COUNT,
+        SIDE_OUTPUT
+    }
+
     private static final long FIVE_MINUTES = 5 * 60 * 1000;
-    private static final int INPUT_BUFFER_SIZE = 4096 * 5;
-    private static final int OUTPUT_BUFFER_SIZE = INPUT_BUFFER_SIZE;
+    private static final int OUTPUT_BUFFER_SIZE = 4096 * 5;
 
     private File connectionsFile;
     private long startTime;
     private long endTime;
     private String hostName;
+    // Multi host mode if not null, see connectedClientsOfEachHost.
+    private List<String> hostNames;
+    private ScanMode scanMode;
+    private int parallelism;
+    // See setMetrics.
+    private Metrics metrics;
+    // See setSink.
+    private ResultSink sink = ResultSink.stdout(ResultSink.Format.TEXT);
+    // See setOrdering, unordered if negative.
+    private long disorderBound = -1;
+    private LatePolicy latePolicy = LatePolicy.DROP;
+    private OutputStream sideOutput;
+    private long lateRecords = 0;
 
     public ConnectionsParser(File connectionsFile,
-                             long startTime, long endTime, String hostName) {
+                             long startTime, long endTime, String hostName,
+                             ScanMode scanMode, int parallelism) {
 
         this.connectionsFile = connectionsFile;
         this.startTime = startTime;
         this.endTime = endTime;
         this.hostName = hostName;
+        this.scanMode = scanMode;
+        this.parallelism = parallelism;
+    }
+
+    public ConnectionsParser(File connectionsFile,
+                             long startTime, long endTime, String hostName,
+                             ScanMode scanMode) {
+        this(connectionsFile, startTime, endTime, hostName, scanMode,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConnectionsParser(File connectionsFile,
+                             long startTime, long endTime, String hostName) {
+        this(connectionsFile, startTime, endTime, hostName, ScanMode.READER);
+    }
+
+    /**
+     * Answers all of hostNames in a single pass over the file.
+     */
+    public ConnectionsParser(File connectionsFile,
+                             long startTime, long endTime,
+                             List<String> hostNames,
+                             ScanMode scanMode, int parallelism) {
+        this(connectionsFile, startTime, endTime, (String) null, scanMode,
+                parallelism);
+        this.hostNames = hostNames;
+    }
+
+    public ConnectionsParser(File connectionsFile,
+                             long startTime, long endTime,
+                             List<String> hostNames) {
+        this(connectionsFile, startTime, endTime, hostNames, ScanMode.MAPPED,
+                1);
     }
 
     /**
      * prints a list of client names that connected to the given host during the given window.
+     * Reading starts close to the window instead of byte 0, see WindowSeeker.
+     * If the file has a fresh sidecar index, only the blocks that may match
+     * are read, whatever the scan mode, see ConnectionsIndex.
+     * Binary files are detected from their header, see
+     * BinaryConnectionsFormat, and so are compressed files, of which only
+     * the blocks that overlap the window are inflated, by parallelism
+     * threads in PARALLEL mode and by all processors otherwise, see
+     * CompressedConnectionsFormat.
      */
     public void connectedClients() throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(connectionsFile),
-                INPUT_BUFFER_SIZE);
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE)) {
+        long t0 = System.nanoTime();
+        try {
+            scan();
+            sink.flush();
+        } finally {
+            if (metrics != null) {
+                metrics.scanned(System.nanoTime() - t0);
+            }
+        }
+    }
+
+    /**
+     * Writes the connection graph of the window to the sink, as a window
+     * of the tailer: the client with the most connections, the topN top
+     * (client, host) pairs, the topN names with the largest fan-in and
+     * fan-out, and the fans of the host(s) asked. At most maxEdges pairs
+     * are kept, see ConnectionGraph. Every record of the window is read,
+     * whatever the scan mode and the index.
+     */
+    public void connectionGraph(int topN, int maxEdges) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            ConnectionGraph graph = new ConnectionGraph(topN, maxEdges);
+            if (BinaryConnectionsFormat.isBinary(connectionsFile)) {
+                graphBinary(graph);
+            } else {
+                graphText(graph);
+            }
+            sink.window(new WindowResult(false, startTime, endTime, null,
+                    graph.mostConnections(), null, 0, List.of(),
+                    graph.result((hostNames != null) ? hostNames :
+                            List.of(hostName))));
+            sink.flush();
+        } finally {
+            if (metrics != null) {
+                metrics.scanned(System.nanoTime() - t0);
+            }
+        }
+    }
+
+    /* Same walk as the reader path of scan, over every host. */
+    private void graphText(ConnectionGraph graph) throws IOException {
+        NameCache names = new NameCache(Charset.defaultCharset());
+        try (RecordReader reader = readAtWindow()) {
+            RecordParser record = reader.record();
+            while (reader.next()) {
+                long tsc = record.timestamp();
+                if (tsc >= startTime && tsc <= endTime) {
+                    graph.add(record.client(names), record.host(names));
+                }
+                // Optimisation, we can stop as soon as we reach this bound.
+                if (tsc > endTime + FIVE_MINUTES) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Same walk as scanBinary, over every host. */
+    private void graphBinary(ConnectionGraph graph) throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ)) {
+            BinaryConnectionsReader reader = new BinaryConnectionsReader(
+                    channel, BinaryConnectionsFormat.HEADER_SIZE);
+            SymbolTable symbols = new SymbolTable();
+            while (reader.nextBlock()) {
+                if (reader.maxTime() < startTime) {
+                    continue;
+                }
+                reader.load();
+                for (int i = 0; i < reader.size(); i++) {
+                    long tsc = reader.timestamp(i);
+                    if (tsc >= startTime && tsc <= endTime) {
+                        graph.add(string(reader, reader.client(i), symbols),
+                                string(reader, reader.host(i), symbols));
+                    }
+                    if (tsc > endTime + FIVE_MINUTES) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static String string(BinaryConnectionsReader reader, int id,
+                                 SymbolTable symbols) {
+        return symbols.intern(new String(reader.string(id),
+                Charset.defaultCharset()));
+    }
+
+    /**
+     * Reports how long each connectedClients (or connectionGraph) takes
+     * to metrics, see Metrics, or nothing if null (the default).
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Where the clients are written, stdout as text by default. The sink
+     * is flushed after each connectedClients, but not closed.
+     */
+    public void setSink(ResultSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Makes connectedClients answer the clients in timestamp order rather
+     * than in the order of the file, for a file out of order by at most
+     * disorderBound ms (Long.MAX_VALUE if unknown: the answer is then
+     * held until the end of the file). The records of the window later
+     * than that go to latePolicy, their lines to sideOutput with
+     * SIDE_OUTPUT (null otherwise). To be called before connectedClients.
+     */
+    public void setOrdering(long disorderBound, LatePolicy latePolicy,
+                            OutputStream sideOutput) {
+        if (disorderBound < 0) {
+            throw new IllegalArgumentException(disorderBound + ": negative " +
+                    "disorder bound");
+        }
+        if ((latePolicy == LatePolicy.SIDE_OUTPUT) != (sideOutput != null)) {
+            throw new IllegalArgumentException("a side output is needed " +
+                    "with SIDE_OUTPUT, and only then");
+        }
+        this.disorderBound = disorderBound;
+        this.latePolicy = latePolicy;
+        this.sideOutput = sideOutput;
+    }
+
+    /**
+     * The records of the window that came too late for the last ordered
+     * connectedClients, 0 with DROP.
+     */
+    public long getLateRecords() {
+        return lateRecords;
+    }
+
+    private void scan() throws IOException {
+        if (disorderBound >= 0) {
+            scanOrdered();
+            return;
+        }
+        if (hostNames != null) {
+            connectedClientsOfEachHost();
+            return;
+        }
+        if (BinaryConnectionsFormat.isBinary(connectionsFile)) {
+            connectedClientsBinary();
+            return;
+        }
+        if (CompressedConnectionsFormat.isCompressed(connectionsFile)) {
+            connectedClientsCompressed();
+            return;
+        }
+        ConnectionsIndex index = ConnectionsIndex.load(connectionsFile);
+        if (index != null) {
+            connectedClientsIndexed(index);
+            return;
+        }
+        if (scanMode != ScanMode.READER) {
+            connectedClientsMapped();
+            return;
+        }
+        HostTable hosts = HostTable.of(hostName);
+        try (RecordReader reader = readAtWindow();
+             ClientsStream out = new ClientsStream(null)) {
+            RecordParser record = reader.record();
             boolean done = false;
-            String line;
-            String[] tokens;
-            while (!done && (line = reader.readLine()) != null) {
-                tokens = line.split(" ");
-                long tsc = Long.parseLong(tokens[0]);
-                String currentHost = tokens[2];
-                if ((tsc >= startTime && tsc <= endTime) && currentHost.equals(hostName)) {
-                    writer.write(tokens[1] + ' ');
+            while (!done && reader.next()) {
+                long tsc = record.timestamp();
+                if ((tsc >= startTime && tsc <= endTime) &&
+                        record.hostId(hosts) >= 0) {
+                    record.writeClient(out);
+                    out.write(' ');
                 }
                 // Optimisation, we can stop as soon as we reach this bound.
                 if (tsc > endTime + FIVE_MINUTES) {
@@ -48,4 +294,332 @@ public class ConnectionsParser {
             }
         }
     }
+
+    /**
+     * Multi host mode: prints one line "host: client client ..." per host,
+     * in the order of hostNames, after a single pass over the file. Every
+     * record is looked up once in a HostTable, so the cost of the pass
+     * barely depends on the number of hosts. READER mode scans as MAPPED.
+     */
+    private void connectedClientsOfEachHost() throws IOException {
+        HostTable hosts = new HostTable(hostNames);
+        ByteArrayOutputStream[] outs = new ByteArrayOutputStream[hosts.size()];
+        for (int i = 0; i < outs.length; i++) {
+            outs[i] = new ByteArrayOutputStream();
+        }
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ)) {
+            ConnectionsIndex index;
+            if (BinaryConnectionsFormat.isBinary(connectionsFile)) {
+                scanBinary(channel, hosts, outs);
+            } else if (CompressedConnectionsFormat.isCompressed(
+                    connectionsFile)) {
+                scanCompressed(channel, hosts, outs);
+            } else if ((index = ConnectionsIndex.load(connectionsFile)) !=
+                    null) {
+                index.scan(channel, startTime, endTime, hosts, outs);
+            } else {
+                scanMapped(channel, hosts, outs);
+            }
+        }
+        for (int i = 0; i < outs.length; i++) {
+            byte[] names = outs[i].toByteArray();
+            sink.clients(hosts.name(i), names, 0, names.length, true);
+        }
+    }
+
+    private void connectedClientsIndexed(ConnectionsIndex index)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ);
+             ClientsStream out = new ClientsStream(null)) {
+            index.scan(channel, startTime, endTime, hostName, out);
+        }
+    }
+
+    /**
+     * Same logic as the text paths on the columns of the binary format.
+     * Blocks that cannot match are skipped without reading their body.
+     */
+    private void connectedClientsBinary() throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ);
+             ClientsStream out = new ClientsStream(null)) {
+            scanBinary(channel, HostTable.of(hostName),
+                    new OutputStream[]{out});
+        }
+    }
+
+    /* The clients of the lines of host i are written to outs[i]. */
+    private void scanBinary(FileChannel channel, HostTable hosts,
+                            OutputStream[] outs) throws IOException {
+        BinaryConnectionsReader reader = new BinaryConnectionsReader(
+                channel, BinaryConnectionsFormat.HEADER_SIZE);
+        int[] hostIds = new int[0];
+        while (reader.nextBlock()) {
+            boolean matches = false;
+            if (reader.maxTime() >= startTime &&
+                    reader.minTime() <= endTime) {
+                reader.load();
+                hostIds = reader.hostIds(hosts, hostIds);
+                for (int id : hostIds) {
+                    matches |= id >= 0;
+                }
+            }
+            if (!matches) {
+                if (reader.maxTime() > endTime + FIVE_MINUTES) {
+                    return;
+                }
+                continue;
+            }
+            for (int i = 0; i < reader.size(); i++) {
+                long tsc = reader.timestamp(i);
+                int hostId = hostIds[reader.host(i)];
+                if ((tsc >= startTime && tsc <= endTime) && hostId >= 0) {
+                    outs[hostId].write(reader.string(reader.client(i)));
+                    outs[hostId].write(' ');
+                }
+                // Optimisation, we can stop as soon as we reach this bound.
+                if (tsc > endTime + FIVE_MINUTES) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ordered mode: the clients of each host of the window go through a
+     * ReorderBuffer, in the order of the records whatever the scan mode
+     * and the index. Reading starts where a record of the window may be
+     * given the disorder bound, and stops at the first record newer than
+     * the end of the window by more than the bound: every record of the
+     * window not read yet would be late.
+     */
+    private void scanOrdered() throws IOException {
+        HostTable hosts = (hostNames != null) ? new HostTable(hostNames) :
+                HostTable.of(hostName);
+        OutputStream[] outs = new OutputStream[hosts.size()];
+        for (int i = 0; i < outs.length; i++) {
+            outs[i] = (hostNames != null) ? new ByteArrayOutputStream() :
+                    new ClientsStream(null);
+        }
+        ReorderBuffer buffer = new ReorderBuffer(disorderBound,
+                (timestamp, client, host) -> {
+                    outs[host].write(client.getBytes());
+                    outs[host].write(' ');
+                },
+                (timestamp, client, host) -> {
+                    if (latePolicy == LatePolicy.SIDE_OUTPUT) {
+                        sideOutput.write((timestamp + " " + client + " " +
+                                hosts.name(host) + "\n").getBytes());
+                    }
+                });
+        long stop = (endTime > Long.MAX_VALUE - disorderBound) ?
+                Long.MAX_VALUE : endTime + disorderBound;
+        if (BinaryConnectionsFormat.isBinary(connectionsFile)) {
+            orderBinary(buffer, hosts, stop);
+        } else {
+            orderText(buffer, hosts, stop);
+        }
+        buffer.flush();
+        lateRecords = (latePolicy == LatePolicy.DROP) ? 0 :
+                buffer.getLateRecords();
+        if (metrics != null) {
+            metrics.recordsDropped(lateRecords);
+        }
+        if (hostNames == null) {
+            outs[0].close();
+            return;
+        }
+        for (int i = 0; i < outs.length; i++) {
+            byte[] clients = ((ByteArrayOutputStream) outs[i]).toByteArray();
+            sink.clients(hosts.name(i), clients, 0, clients.length, true);
+        }
+    }
+
+    private void orderText(ReorderBuffer buffer, HostTable hosts, long stop)
+            throws IOException {
+        NameCache names = new NameCache(Charset.defaultCharset());
+        try (RecordReader reader = readAtWindow(disorderBound)) {
+            RecordParser record = reader.record();
+            while (reader.next()) {
+                long tsc = record.timestamp();
+                int host = record.hostId(hosts);
+                if ((tsc >= startTime && tsc <= endTime) && host >= 0) {
+                    buffer.add(tsc, record.client(names), host);
+                } else {
+                    buffer.see(tsc);
+                }
+                if (tsc > stop) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void orderBinary(ReorderBuffer buffer, HostTable hosts, long stop)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ)) {
+            BinaryConnectionsReader reader = new BinaryConnectionsReader(
+                    channel, BinaryConnectionsFormat.HEADER_SIZE);
+            int[] hostIds = new int[0];
+            while (reader.nextBlock()) {
+                // Its records can neither match nor make one late.
+                if (reader.maxTime() < startTime) {
+                    continue;
+                }
+                reader.load();
+                hostIds = reader.hostIds(hosts, hostIds);
+                for (int i = 0; i < reader.size(); i++) {
+                    long tsc = reader.timestamp(i);
+                    int host = hostIds[reader.host(i)];
+                    if ((tsc >= startTime && tsc <= endTime) && host >= 0) {
+                        buffer.add(tsc, new String(reader.string(
+                                reader.client(i)), Charset.defaultCharset()),
+                                host);
+                    } else {
+                        buffer.see(tsc);
+                    }
+                    if (tsc > stop) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void connectedClientsCompressed() throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ);
+             ClientsStream out = new ClientsStream(null)) {
+            scanCompressed(channel, HostTable.of(hostName),
+                    new OutputStream[]{out});
+        }
+    }
+
+    private void scanCompressed(FileChannel channel, HostTable hosts,
+                                OutputStream[] outs) throws IOException {
+        new CompressedConnectionsScanner(channel, startTime, endTime, hosts,
+                (scanMode == ScanMode.PARALLEL) ? parallelism :
+                        Runtime.getRuntime().availableProcessors()).scan(outs);
+    }
+
+    /**
+     * Reads the connections file from the first line that may fall in the
+     * window. The text of a compressed file is inflated from the first
+     * block that may hold such a line.
+     */
+    private RecordReader readAtWindow() throws IOException {
+        return readAtWindow(FIVE_MINUTES);
+    }
+
+    /* For a file out of order by at most disorderBound ms. */
+    private RecordReader readAtWindow(long disorderBound) throws IOException {
+        if (CompressedConnectionsFormat.isCompressed(connectionsFile)) {
+            long offset;
+            try (FileChannel channel = FileChannel.open(
+                    connectionsFile.toPath(), StandardOpenOption.READ)) {
+                CompressedConnectionsFormat.Index index =
+                        CompressedConnectionsFormat.readIndex(channel);
+                offset = index.textOffsets[index.firstBlock(startTime)];
+            }
+            // The blocks skipped only hold lines older than startTime.
+            return new RecordReader(CompressedConnectionsFormat.open(
+                    connectionsFile, startTime), offset);
+        }
+        FileInputStream in = new FileInputStream(connectionsFile);
+        try {
+            long offset = WindowSeeker.seek(in.getChannel(), startTime,
+                    disorderBound);
+            in.getChannel().position(offset);
+            return new RecordReader(in, offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Same output as the reader path, see MappedConnectionsScanner and
+     * ParallelConnectionsScanner.
+     */
+    private void connectedClientsMapped() throws IOException {
+        try (FileChannel channel = FileChannel.open(connectionsFile.toPath(),
+                StandardOpenOption.READ);
+             ClientsStream out = new ClientsStream(null)) {
+            scanMapped(channel, HostTable.of(hostName),
+                    new OutputStream[]{out});
+        }
+    }
+
+    private void scanMapped(FileChannel channel, HostTable hosts,
+                            OutputStream[] outs) throws IOException {
+        long from = WindowSeeker.seek(channel, startTime);
+        if (scanMode == ScanMode.PARALLEL) {
+            new ParallelConnectionsScanner(channel, startTime, endTime,
+                    hosts, parallelism).scan(from, channel.size(), outs);
+        } else {
+            new MappedConnectionsScanner(channel, startTime, endTime,
+                    hosts).scan(from, channel.size(), outs);
+        }
+    }
+
+    /**
+     * Hands the names written to it to the sink, in parts of about
+     * OUTPUT_BUFFER_SIZE bytes cut after a space, the last one on close.
+     */
+    private class ClientsStream extends OutputStream {
+
+        private final String host;
+        private byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        private int length = 0;
+
+        ClientsStream(String host) {
+            this.host = host;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == buffer.length) {
+                writeNames();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length) {
+                    writeNames();
+                }
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /* Writes the complete names, keeps the partial last one. */
+        private void writeNames() throws IOException {
+            int end = length;
+            while (end > 0 && buffer[end - 1] != ' ') {
+                end--;
+            }
+            if (end == 0) {
+                // A name longer than the buffer.
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                return;
+            }
+            sink.clients(host, buffer, 0, end, false);
+            System.arraycopy(buffer, end, buffer, 0, length - end);
+            length -= end;
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.clients(host, buffer, 0, length, true);
+        }
+    }
 }
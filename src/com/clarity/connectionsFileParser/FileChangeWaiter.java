@@ -0,0 +1,122 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Blocks the tailer until the followed file may have changed.
+ *
+ * Comments:
+ * Sleeping a fixed downTime before every check adds up to downTime of
+ * latency to every record, and still wakes up for nothing when the file is
+ * idle. When the platform has native file events (inotify on Linux), we
+ * wait on a WatchService for ENTRY_MODIFY on the file instead, which wakes
+ * up within milliseconds of an append.
+ * Otherwise (or if the JDK only offers a polling WatchService, which checks
+ * every few seconds) we fall back to polling with an adaptive backoff: a
+ * short sleep right after data was seen, doubled on every idle check up to
+ * downTime.
+ * A whole directory can be watched as well, waking up for the files of
+ * interest only.
+ */
+class FileChangeWaiter implements Closeable {
+
+    static final long MIN_BACKOFF_MS = 1;
+
+    private final long maxWait;
+    private final Predicate<Path> watched;
+    private WatchService watchService;
+    private long backoff = MIN_BACKOFF_MS;
+
+    /**
+     * @param maxWait the longest time to block in await, in ms.
+     */
+    FileChangeWaiter(File file, long maxWait, boolean useEvents) {
+        this(file.toPath().toAbsolutePath().getParent(),
+                file.toPath().getFileName()::equals, maxWait, useEvents);
+    }
+
+    /**
+     * @param watched the names (relative to directory) of the files whose
+     *                changes wake up await.
+     */
+    FileChangeWaiter(Path directory, Predicate<Path> watched, long maxWait,
+                     boolean useEvents) {
+        this.maxWait = maxWait;
+        this.watched = watched;
+        if (useEvents) {
+            try {
+                WatchService service =
+                        directory.getFileSystem().newWatchService();
+                if (service.getClass().getSimpleName().contains("Polling")) {
+                    service.close();
+                } else {
+                    directory.register(service,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_CREATE);
+                    watchService = service;
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                watchService = null;
+            }
+        }
+    }
+
+    boolean isEventDriven() {
+        return watchService != null;
+    }
+
+    /**
+     * Called when new data was read, the next wait will be short.
+     */
+    void dataSeen() {
+        backoff = MIN_BACKOFF_MS;
+    }
+
+    /**
+     * Blocks until the file may have changed, or at most maxWait ms.
+     * Spurious wake ups are possible, the caller must check the file.
+     * @throws InterruptedException
+     */
+    void await() throws InterruptedException {
+        if (watchService == null) {
+            long sleep = Math.min(backoff, maxWait);
+            Thread.sleep(sleep);
+            backoff = Math.min(backoff * 2, Math.max(maxWait,
+                    MIN_BACKOFF_MS));
+            return;
+        }
+        long deadline = System.currentTimeMillis() + maxWait;
+        WatchKey key = (maxWait == 0) ? watchService.poll() :
+                watchService.poll(maxWait, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            boolean ours = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                ours |= (event.context() instanceof Path &&
+                        watched.test((Path) event.context())) ||
+                        event.kind() == StandardWatchEventKinds.OVERFLOW;
+            }
+            key.reset();
+            if (ours) {
+                return;
+            }
+            // Another file of the directory changed, keep waiting.
+            long remaining = deadline - System.currentTimeMillis();
+            key = (remaining <= 0) ? null :
+                    watchService.poll(remaining, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.util.List;
+
+/**
+ * The connection graph of a window, see ConnectionGraph: clients and hosts
+ * are the nodes, and every (client, host) pair seen is an edge counting
+ * its connections. Part of a WindowResult when asked for.
+ *
+ * The fan-in of a name is the number of distinct clients that connected
+ * to it, its fan-out the number of distinct hosts it connected to. When
+ * the graph outgrew its memory budget some edges were evicted (see
+ * getMaxError): the counts of the pairs are then overestimated by at most
+ * their error, and the fans may be overestimated too.
+ */
+public class GraphResult {
+
+    private final long connections;
+    private final int names;
+    private final int pairs;
+    private final long maxError;
+    private final List<Pair> topPairs;
+    private final List<Degree> topFanIn;
+    private final List<Degree> topFanOut;
+    private final List<Degree> hosts;
+
+    GraphResult(long connections, int names, int pairs, long maxError,
+                List<Pair> topPairs, List<Degree> topFanIn,
+                List<Degree> topFanOut, List<Degree> hosts) {
+        this.connections = connections;
+        this.names = names;
+        this.pairs = pairs;
+        this.maxError = maxError;
+        this.topPairs = topPairs;
+        this.topFanIn = topFanIn;
+        this.topFanOut = topFanOut;
+        this.hosts = hosts;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    /* Distinct clients and hosts. */
+    public int getNames() {
+        return names;
+    }
+
+    /* Distinct (client, host) pairs kept. */
+    public int getPairs() {
+        return pairs;
+    }
+
+    /* A pair that is not kept has at most this many connections. */
+    public long getMaxError() {
+        return maxError;
+    }
+
+    /* Most connections first. */
+    public List<Pair> getTopPairs() {
+        return topPairs;
+    }
+
+    /* The hosts with the largest fan-in, largest first. */
+    public List<Degree> getTopFanIn() {
+        return topFanIn;
+    }
+
+    /* The clients with the largest fan-out, largest first. */
+    public List<Degree> getTopFanOut() {
+        return topFanOut;
+    }
+
+    /* The monitored hosts, in their order. */
+    public List<Degree> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * The connections from client to host, between count - error and
+     * count.
+     */
+    public static class Pair {
+        private final String client;
+        private final String host;
+        private final long count;
+        private final long error;
+
+        Pair(String client, String host, long count, long error) {
+            this.client = client;
+            this.host = host;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Both sides of a name: as a host (fan-in, connections to it) and as
+     * a client (fan-out, connections from it).
+     */
+    public static class Degree {
+        private final String name;
+        private final long fanIn;
+        private final long fanOut;
+        private final long connectionsIn;
+        private final long connectionsOut;
+
+        Degree(String name, long fanIn, long fanOut, long connectionsIn,
+               long connectionsOut) {
+            this.name = name;
+            this.fanIn = fanIn;
+            this.fanOut = fanOut;
+            this.connectionsIn = connectionsIn;
+            this.connectionsOut = connectionsOut;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getFanIn() {
+            return fanIn;
+        }
+
+        public long getFanOut() {
+            return fanOut;
+        }
+
+        public long getConnectionsIn() {
+            return connectionsIn;
+        }
+
+        public long getConnectionsOut() {
+            return connectionsOut;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The set of monitored hosts, looked up straight from the raw bytes of a
+ * record. A host is identified by its index in the list it was built from.
+ *
+ * Comments:
+ * Answering many hosts in one pass means one lookup per field of every
+ * record, so the lookup must not depend on the number of hosts and must
+ * not allocate. This is an open addressing table (linear probing, load
+ * factor at most 1/4 so that a miss usually stops at the first empty slot)
+ * keyed on the encoded names and probed with an FNV-1a hash of the bytes
+ * of the field. Fields whose length is not the length of any host are
+ * rejected before hashing, which is the common case with a single host.
+ */
+class HostTable {
+
+    private final String[] names;
+    private final byte[][] keys;
+    // id + 1 of the host in each slot, 0 if empty.
+    private final int[] slots;
+    private final int mask;
+    private int minLength = Integer.MAX_VALUE;
+    private int maxLength = 0;
+
+    /**
+     * @throws IllegalArgumentException if a host is listed twice.
+     */
+    HostTable(Collection<String> hostNames) {
+        int n = hostNames.size();
+        names = hostNames.toArray(new String[0]);
+        keys = new byte[n][];
+        int capacity = Integer.highestOneBit(Math.max(1, n) * 4 - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < n; id++) {
+            byte[] key = names[id].getBytes(Charset.defaultCharset());
+            if (find(key, 0, key.length) >= 0) {
+                throw new IllegalArgumentException(names[id] + ": listed " +
+                        "twice");
+            }
+            keys[id] = key;
+            minLength = Math.min(minLength, key.length);
+            maxLength = Math.max(maxLength, key.length);
+            int slot = hash(key, 0, key.length) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    static HostTable of(String hostName) {
+        return new HostTable(List.of(hostName));
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the id of the host name, or -1.
+     */
+    int find(String name) {
+        byte[] bytes = name.getBytes(Charset.defaultCharset());
+        return find(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the id of the host bytes[start, end), or -1.
+     */
+    int find(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length < minLength || length > maxLength) {
+            return -1;
+        }
+        for (int slot = hash(bytes, start, end) & mask; slots[slot] != 0;
+             slot = (slot + 1) & mask) {
+            byte[] key = keys[slots[slot] - 1];
+            if (key.length == length &&
+                    Arrays.equals(key, 0, length, bytes, start, end)) {
+                return slots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the id of the host buffer[start, end) (absolute positions), or
+     * -1.
+     */
+    int find(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (length < minLength || length > maxLength) {
+            return -1;
+        }
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+        }
+        for (int slot = mix(hash) & mask; slots[slot] != 0;
+             slot = (slot + 1) & mask) {
+            byte[] key = keys[slots[slot] - 1];
+            if (key.length == length && matches(key, buffer, start)) {
+                return slots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int start) {
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* FNV-1a, then spread the high bits over the low bits used as slot. */
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Estimates the number of distinct names added, in 2^PRECISION bytes
+ * whatever that number is (Flajolet et al., with the small range
+ * correction). The standard error is 1.04 / sqrt(2^PRECISION), ~0.8% here.
+ */
+class HyperLogLog {
+
+    private static final int PRECISION = 14;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    void add(String name) {
+        long hash = hash(name);
+        int register = (int) (hash >>> (64 - PRECISION));
+        // Position of the first 1 bit in the remaining bits.
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) |
+                (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities.
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /* Checkpoint, see TailingConnectionsParser. Mostly empty registers
+       (few names) are written as (index, value) pairs. */
+    void writeTo(DataOutputStream out) throws IOException {
+        int used = 0;
+        for (byte r : registers) {
+            if (r != 0) {
+                used++;
+            }
+        }
+        out.writeInt(used);
+        if (used * 3 >= REGISTERS) {
+            out.write(registers);
+            return;
+        }
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != 0) {
+                out.writeShort(i);
+                out.writeByte(registers[i]);
+            }
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        int used = in.readInt();
+        if (used * 3 >= REGISTERS) {
+            in.readFully(registers);
+            return;
+        }
+        for (int i = 0; i < used; i++) {
+            registers[in.readUnsignedShort()] = in.readByte();
+        }
+    }
+
+    /* FNV-1a over the chars, then the murmur3 finalizer to spread bits. */
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h = (h ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,518 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Follows one connections file (text or binary) through rotation and
+ * truncation, and decodes the records appended to it.
+ *
+ * Comments:
+ * The followed file stays open for the whole run. Bytes read but not
+ * processed yet (e.g. a partial last line) are kept in readBuffer,
+ * filePointer is the offset of the first of them and readPosition the
+ * offset of the next byte to read.
+ *
+ * Rotation is detected from the file key (inode) rather than only from the
+ * length, a rotated log can be longer than the one we were reading. The
+ * old file stays open until everything in it has been read, only then is
+ * the new file opened, so nothing written just before the rotation is
+ * lost. When the file shrinks instead (copytruncate rotation), what was
+ * not read yet is taken from the copy, <file>.1, if it is there.
+ *
+ * A follower normally owns its read buffers (64KB, and 1MB for a binary
+ * file). When thousands of files are followed (see TailerManager), the
+ * buffers are shared instead, see ReadBuffers.
+ */
+class LogFollower {
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final String ROTATED_SUFFIX = ".1";
+    // File systems may store modification times to the second.
+    private static final long COPY_CLOCK_SLACK_MS = 2000;
+
+    /**
+     * Receives the records of the followed file.
+     */
+    interface RecordHandler {
+        /**
+         * @param clientId the id of client in the HostTable, or -1.
+         * @param hostId the id of host in the HostTable, or -1.
+         * @return true if reading must stop after this record, it resumes
+         * with the next record on the next poll.
+         */
+        boolean record(long tsc, String client, String host, int clientId,
+                       int hostId);
+    }
+
+    private final File file;
+    private final HostTable hosts;
+    private final RecordParser parser = new RecordParser();
+    private final NameCache names = new NameCache(Charset.defaultCharset());
+
+    private FileChannel channel;
+    private Object fileKey;
+    // Key of the file to open once the current channel is drained.
+    private Object pendingKey;
+    private ByteBuffer readBuffer;
+    // See ReadBuffers.
+    private ThreadLocal<ReadBuffers> sharedBuffers;
+    // With shared buffers, what was left in readBuffer after the last poll.
+    private byte[] carry = new byte[0];
+    private long readPosition = 0;
+    private long filePointer = 0;
+    private boolean binary = false;
+    private int recordInBlock = 0;
+    private BinaryConnectionsReader binaryReader;
+    // Host id (see HostTable) of each string of the current binary block.
+    private int[] blockHostIds = new int[0];
+    // When something was last read, to tell a fresh copy from an old one.
+    private long lastReadTime = 0;
+    // Bytes consumed since the follower was created, see Metrics.
+    private long bytesConsumed = 0;
+
+    /**
+     * The buffers a poll reads into, when a thread polls many followers in
+     * turn: one set per thread rather than per follower.
+     */
+    static class ReadBuffers {
+        private ByteBuffer text = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private ByteBuffer binary;
+    }
+
+    LogFollower(File file, HostTable hosts) {
+        this.file = file;
+        this.hosts = hosts;
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Followers polled on the same thread read into the same buffers, so a
+     * follower only keeps the partial line (or nothing, for a binary file)
+     * between polls instead of its own buffers.
+     */
+    LogFollower(File file, HostTable hosts,
+                ThreadLocal<ReadBuffers> sharedBuffers) {
+        this.file = file;
+        this.hosts = hosts;
+        this.sharedBuffers = sharedBuffers;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads what was appended since the last poll and hands the records to
+     * handler, until there is nothing left or handler asks to stop.
+     * @return true if anything was consumed.
+     * @throws IOException
+     */
+    boolean poll(RecordHandler handler) throws IOException {
+        if (sharedBuffers == null) {
+            return pollFile(handler);
+        }
+        ReadBuffers buffers = sharedBuffers.get();
+        readBuffer = buffers.text;
+        readBuffer.clear();
+        if (carry.length > readBuffer.capacity()) {
+            readBuffer = ByteBuffer.allocateDirect(carry.length * 2);
+        }
+        readBuffer.put(carry);
+        try {
+            return pollFile(handler);
+        } finally {
+            readBuffer.flip();
+            carry = new byte[readBuffer.remaining()];
+            readBuffer.get(carry);
+            buffers.text = readBuffer;
+            readBuffer = null;
+            if (binaryReader != null) {
+                buffers.binary = binaryReader.body();
+                binaryReader = null;
+            }
+        }
+    }
+
+    private boolean pollFile(RecordHandler handler) throws IOException {
+        long length = checkFile();
+        if (channel == null) {
+            return false;
+        }
+        if (pendingKey == null && length <= filePointer) {
+            return false;
+        }
+        long previousPointer = filePointer;
+        int previousRecord = recordInBlock;
+        filePointer = processFileChunk(handler);
+        bytesConsumed += filePointer - previousPointer;
+        if (filePointer != previousPointer ||
+                recordInBlock != previousRecord) {
+            lastReadTime = System.currentTimeMillis();
+            return true;
+        }
+        if (pendingKey != null) {
+            // Done with the old file, the next poll opens the new one.
+            reset();
+            return true;
+        }
+        // Only an incomplete line or block, wait for the rest.
+        return false;
+    }
+
+    /**
+     * Same as poll for the I/O stage of a TailingPipeline: the complete
+     * lines appended to the file are copied as they are into dest instead
+     * of being decoded.
+     * @return the number of bytes copied to dest, 0 if there was no
+     * complete line, -1 if the next line is longer than dest.
+     * @throws IOException also if the file is in the binary format, which
+     * the pipeline does not decode.
+     */
+    int readLines(byte[] dest) throws IOException {
+        long length = checkFile();
+        if (channel == null) {
+            return 0;
+        }
+        if (pendingKey == null && length <= filePointer) {
+            return 0;
+        }
+        if (filePointer == 0 && isBinary()) {
+            throw new IOException(file + ": binary files cannot be " +
+                    "followed by the pipeline");
+        }
+        long previousPointer = filePointer;
+        int copied = 0;
+        boolean full = false;
+        while (!full) {
+            // Copy the complete lines that fit.
+            readBuffer.flip();
+            int start = readBuffer.position();
+            int end = Math.min(readBuffer.limit(), start + dest.length - copied);
+            int last = end - 1;
+            while (last >= start && readBuffer.get(last) != '\n') {
+                last--;
+            }
+            readBuffer.get(dest, copied, last + 1 - start);
+            copied += last + 1 - start;
+            full = end < readBuffer.limit();
+            readBuffer.compact();
+            if (full && copied == 0) {
+                filePointer = readPosition - readBuffer.position();
+                bytesConsumed += filePointer - previousPointer;
+                return -1;
+            }
+            if (!full && !readBuffer.hasRemaining()) {
+                // A line longer than the buffer.
+                ByteBuffer bigger =
+                        ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+            if (!full) {
+                int n = channel.read(readBuffer, readPosition);
+                if (n <= 0) {
+                    break;
+                }
+                readPosition += n;
+            }
+        }
+        filePointer = readPosition - readBuffer.position();
+        bytesConsumed += filePointer - previousPointer;
+        if (copied > 0) {
+            lastReadTime = System.currentTimeMillis();
+        } else if (pendingKey != null) {
+            // Done with the old file, go on with the new one.
+            reset();
+            return readLines(dest);
+        }
+        return copied;
+    }
+
+    long getBytesConsumed() {
+        return bytesConsumed;
+    }
+
+    /**
+     * @return the bytes left to read: the rest of the file being read, and
+     * the new file when a rotated one is being drained.
+     * @throws IOException
+     */
+    long lag() throws IOException {
+        if (channel == null) {
+            return Math.max(0, file.length() - filePointer);
+        }
+        long lag = channel.size() - filePointer;
+        if (pendingKey != null) {
+            lag += file.length();
+        }
+        return Math.max(0, lag);
+    }
+
+    /* The position cannot be checkpointed while a rotated file or a copy
+       is being read, it may be gone after a restart. */
+    boolean isDraining() {
+        return pendingKey != null;
+    }
+
+    /**
+     * Checkpoint of the position, see TailingConnectionsParser. The file is
+     * identified by its key (inode), so that after a rotation it is still
+     * found as <file>.1.
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(String.valueOf(fileKey));
+        out.writeLong(filePointer);
+        out.writeBoolean(binary);
+        out.writeInt(recordInBlock);
+    }
+
+    /**
+     * Resumes at a checkpointed position, in the followed file or, if it
+     * was rotated meanwhile, in <file>.1 which is then read to the end
+     * before the new file.
+     * @return false if neither is the checkpointed file, reading then
+     * starts from the beginning of the followed file.
+     * @throws IOException
+     */
+    boolean readFrom(DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        long offset = in.readLong();
+        boolean wasBinary = in.readBoolean();
+        int record = in.readInt();
+        File copy = new File(file.getPath() + ROTATED_SUFFIX);
+        Object current = checkpointed(file, key, offset);
+        if (current != null) {
+            openChannel(current);
+        } else if ((current = checkpointed(copy, key, offset)) != null) {
+            channel = FileChannel.open(copy.toPath(), StandardOpenOption.READ);
+            fileKey = current;
+            pendingKey = new Object();
+        } else {
+            return false;
+        }
+        filePointer = offset;
+        readPosition = offset;
+        binary = wasBinary;
+        recordInBlock = record;
+        return true;
+    }
+
+    /* The key of f if it is the checkpointed file, null otherwise. */
+    private static Object checkpointed(File f, String key, long offset)
+            throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(f.toPath(),
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!String.valueOf(attributes.fileKey()).equals(key) ||
+                attributes.size() < offset) {
+            return null;
+        }
+        return (attributes.fileKey() != null) ? attributes.fileKey() :
+                new Object();
+    }
+
+    /**
+     * Opens the followed file if needed, and detects rotation and
+     * truncation.
+     * @return the length of the followed file, -1 if it does not exist.
+     * @throws IOException
+     */
+    private long checkFile() throws IOException {
+        if (pendingKey != null) {
+            // Still draining the previous file.
+            return -1;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+        Object key = attributes.fileKey();
+        if (channel == null) {
+            openChannel(key);
+        } else if (key != null && !key.equals(fileKey)) {
+            // Log was rotated, finish reading the old file first.
+            System.err.println("Log file has been rotated. Following the " +
+                    "new file");
+            pendingKey = key;
+        } else if (attributes.size() < filePointer) {
+            // Log was truncated or corrupted.
+            if (followCopy(key)) {
+                System.err.println("Log file has been truncated. Reading " +
+                        "the end of its copy first");
+            } else {
+                System.err.println("Log file has been deleted or reset. " +
+                        "Restarting");
+                reset();
+            }
+        }
+        return attributes.size();
+    }
+
+    /* After a copytruncate, continues reading from the copy if it was
+       written since our last read and has everything we read so far. */
+    private boolean followCopy(Object key) throws IOException {
+        File copy = new File(file.getPath() + ROTATED_SUFFIX);
+        if (binary || !copy.isFile() || copy.length() < readPosition ||
+                copy.lastModified() + COPY_CLOCK_SLACK_MS < lastReadTime) {
+            return false;
+        }
+        channel.close();
+        channel = FileChannel.open(copy.toPath(), StandardOpenOption.READ);
+        pendingKey = (key != null) ? key : new Object();
+        return true;
+    }
+
+    private void openChannel(Object key) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileKey = key;
+    }
+
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /* Start over from the beginning of a new file. */
+    private void reset() {
+        close();
+        pendingKey = null;
+        filePointer = 0;
+        readPosition = 0;
+        readBuffer.clear();
+        binary = false;
+        binaryReader = null;
+        recordInBlock = 0;
+    }
+
+    /**
+     * Hands the complete records available to handler.
+     * @return the new file pointer.
+     * @throws IOException
+     */
+    private long processFileChunk(RecordHandler handler) throws IOException {
+        if (filePointer == 0 && isBinary()) {
+            binary = true;
+            filePointer = BinaryConnectionsFormat.HEADER_SIZE;
+        }
+        if (binary) {
+            return processBinaryChunk(handler);
+        }
+        while (true) {
+            // Process the complete lines in the buffer.
+            readBuffer.flip();
+            boolean stop = false;
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit() && !stop; i++) {
+                if (readBuffer.get(i) == '\n') {
+                    stop = processLine(lineStart, i, handler);
+                    lineStart = i + 1;
+                }
+            }
+            // Carry what is left (a partial line) over to the next read.
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+            if (stop) {
+                break;
+            }
+            if (!readBuffer.hasRemaining()) {
+                // A line longer than the buffer.
+                ByteBuffer bigger =
+                        ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+            int n = channel.read(readBuffer, readPosition);
+            if (n <= 0) {
+                break;
+            }
+            readPosition += n;
+        }
+
+        /* Update file pointers */
+        return readPosition - readBuffer.position();
+    }
+
+    /* Decodes the line [start, end) of readBuffer (flipped), see
+       RecordParser. The client and host fields are looked up in hosts on
+       their raw bytes, and their Strings come from names. */
+    private boolean processLine(int start, int end, RecordHandler handler) {
+        if (!parser.parse(readBuffer, start, end)) {
+            // readBuffer holds the bytes up to readPosition.
+            throw new NumberFormatException(parser.error() + " at offset " +
+                    (readPosition - readBuffer.limit() + start));
+        }
+        return handler.record(parser.timestamp(), parser.client(names),
+                parser.host(names), parser.clientId(hosts),
+                parser.hostId(hosts));
+    }
+
+    private boolean isBinary() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BinaryConnectionsFormat.HEADER_SIZE);
+        return channel.read(header, 0) == BinaryConnectionsFormat.HEADER_SIZE &&
+                header.getInt(0) == BinaryConnectionsFormat.MAGIC;
+    }
+
+    /**
+     * Same as processFileChunk for the binary format: only complete blocks
+     * are read. If handler stops in the middle of a block, the file pointer
+     * stays on the block and recordInBlock remembers where to resume.
+     * @return the new file pointer.
+     * @throws IOException
+     */
+    private long processBinaryChunk(RecordHandler handler) throws IOException {
+        if (binaryReader == null) {
+            binaryReader = new BinaryConnectionsReader(channel, filePointer,
+                    (sharedBuffers != null) ? sharedBuffers.get().binary : null);
+        }
+        BinaryConnectionsReader reader = binaryReader;
+        reader.position(filePointer);
+        while (reader.nextBlock()) {
+            reader.load();
+            blockHostIds = reader.hostIds(hosts, blockHostIds);
+            for (int i = recordInBlock; i < reader.size(); i++) {
+                String client = reader.string(reader.client(i), names);
+                String host = reader.string(reader.host(i), names);
+                if (handler.record(reader.timestamp(i), client, host,
+                        blockHostIds[reader.client(i)],
+                        blockHostIds[reader.host(i)])) {
+                    recordInBlock = i + 1;
+                    if (recordInBlock < reader.size()) {
+                        return reader.blockStart();
+                    }
+                    recordInBlock = 0;
+                    return reader.position();
+                }
+            }
+            recordInBlock = 0;
+        }
+        return reader.position();
+    }
+}
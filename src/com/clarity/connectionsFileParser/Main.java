@@ -3,16 +3,87 @@
 package com.clarity.connectionsFileParser;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class Main {
 
     public static final String usage = """
-            usage: java Main <filename> -f <host_name>
-                   java Main <filename> <start_time> <end_time> <host_name>
+            usage: java Main [options] <filename> -f <host_name>
+                   java Main [options] <filename> <start_time> <end_time> <host_name>
+                   java Main [options] -serve <port> <directory>
+                   <host_name> may be a list <host>,<host>,... or @<file> with
+                   one host per line, all answered in a single pass
+                   with -f, <filename> may be a directory or a glob such as
+                   'logs/*.log': every producer file is followed through
+                   rotation and their records are merged by timestamp
+                   with -serve, queries "<start_time> <end_time> <host_name>
+                   <filename>" sent a line at a time to localhost:<port> are
+                   answered from files cached in memory, see QueryServer:
+                   only the files in <directory>, <filename> relative to it
+                   <filename> may be compressed by CompressedConnectionsFormat
+                   (not with -f): only the blocks of the window are inflated
+            options:
+                   -p <threads>   scan the file with <threads> threads
+                   -w <mode>      follow mode windows: tumbling (default),
+                                  watermark (late records counted in their
+                                  own window), hopping or sliding
+                   -size <ms>     follow mode window size (default 1 hour)
+                   -hop <ms>      hopping/sliding windows are reported every
+                                  <ms> (default size, size / 60 if sliding)
+                   -k <clients>   report the top <clients> clients of each
+                                  tumbling/watermark window, approximated in
+                                  bounded memory (default: exact top client)
+                   -graph <n>     report the connection graph instead of the
+                                  clients (scan) or along with the windows
+                                  (follow, tumbling/watermark): the top <n>
+                                  client/host pairs, the top <n> names by
+                                  fan-in and by fan-out, and the fans of
+                                  <host_name>
+                   -peers <mode>  tumbling/watermark clients and hosts of
+                                  <host_name>: names (default), stats (with
+                                  count, first and last time) or hll (only
+                                  an estimate of how many)
+                   -c <file>      follow mode checkpoint: resume from <file>
+                                  and save the position and windows in
+                                  progress to it every 10s and on exit
+                   -pipeline <n>  follow mode: read, parse (with <n> parser
+                                  threads) and aggregate on separate
+                                  threads, connected by bounded queues
+                   -m <threads>   follow mode with a directory or a glob:
+                                  report every file, new ones included, on
+                                  its own instead of merging them, all
+                                  followed by <threads> shared threads
+                                  (with -c, the checkpoint of each file is
+                                  <file>.<name>)
+                   -metrics <file> append the metrics of the tailer or the
+                                  scanner to <file> every 10s (and at the end
+                                  of a scan), they are also readable over JMX
+                   -o <file>      append the results to <file> instead of
+                                  printing them
+                   -format <fmt>  results as text (default), json (an object
+                                  per line) or binary
+                   -cache <MB>    with -serve, the memory the cached files
+                                  may take (default 256)
+                   -order <ms>    scan mode: write the clients in timestamp
+                                  order, for a file out of order by at most
+                                  <ms> (or "unbounded": held until the end
+                                  of the file)
+                   -late <policy> with -order, the records of the window
+                                  later than that: drop (default), count
+                                  (reported on stderr), or a file to append
+                                  their lines to
             """;
 
     public static final int NON_FOLLOW_ARGS = 4;
     public static final int FOLLOW_ARGS = 3;
+    private static final long METRICS_PERIOD_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final int OUTPUT_FLUSH_EVERY = 64;
+    private static final long OUTPUT_FLUSH_MS = TimeUnit.SECONDS.toMillis(1);
 
     public static void printUsage() {
         System.err.println(usage);
@@ -26,6 +97,137 @@ public class Main {
      * @throws IllegalArgumentException
      */
     public static void main(String[] args) throws FileNotFoundException, IllegalArgumentException {
+        int parallelism = 1;
+        TailingConnectionsParser.WindowMode windowMode =
+                TailingConnectionsParser.WindowMode.TUMBLING;
+        long windowSize = TimeUnit.HOURS.toMillis(1);
+        long hop = -1;
+        int topK = 0;
+        int graphTopN = 0;
+        TailingConnectionsParser.PeerTracking peerTracking =
+                TailingConnectionsParser.PeerTracking.NAMES;
+        File checkpointFile = null;
+        int pipelineParsers = 0;
+        int managerThreads = 0;
+        File metricsFile = null;
+        File outputFile = null;
+        ResultSink.Format format = ResultSink.Format.TEXT;
+        int serverPort = -1;
+        long cacheBytes = QueryServer.DEFAULT_CACHE_BYTES;
+        long disorderBound = -1;
+        String latePolicy = "drop";
+
+        // Leading options.
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            if (first + 1 >= args.length) {
+                printUsage();
+                throw new IllegalArgumentException();
+            }
+            String option = args[first];
+            String value = args[first + 1];
+            switch (option) {
+                case "-p":
+                    parallelism = parsePositiveInt(option, value);
+                    break;
+                case "-w":
+                    try {
+                        windowMode = TailingConnectionsParser.WindowMode
+                                .valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        printUsage();
+                        throw new IllegalArgumentException(value + ": " +
+                                "unknown window mode");
+                    }
+                    break;
+                case "-size":
+                    windowSize = parsePositiveLong(option, value);
+                    break;
+                case "-hop":
+                    hop = parsePositiveLong(option, value);
+                    break;
+                case "-k":
+                    topK = parsePositiveInt(option, value);
+                    break;
+                case "-graph":
+                    graphTopN = parsePositiveInt(option, value);
+                    break;
+                case "-peers":
+                    if (value.equalsIgnoreCase("hll")) {
+                        peerTracking = TailingConnectionsParser.PeerTracking
+                                .HYPERLOGLOG;
+                        break;
+                    }
+                    try {
+                        peerTracking = TailingConnectionsParser.PeerTracking
+                                .valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        printUsage();
+                        throw new IllegalArgumentException(value + ": " +
+                                "unknown peers mode");
+                    }
+                    break;
+                case "-c":
+                    checkpointFile = new File(value);
+                    break;
+                case "-pipeline":
+                    pipelineParsers = parsePositiveInt(option, value);
+                    break;
+                case "-m":
+                    managerThreads = parsePositiveInt(option, value);
+                    break;
+                case "-metrics":
+                    metricsFile = new File(value);
+                    break;
+                case "-o":
+                    outputFile = new File(value);
+                    break;
+                case "-format":
+                    try {
+                        format = ResultSink.Format.valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        printUsage();
+                        throw new IllegalArgumentException(value + ": " +
+                                "unknown format");
+                    }
+                    break;
+                case "-serve":
+                    serverPort = parsePositiveInt(option, value);
+                    break;
+                case "-cache":
+                    cacheBytes = parsePositiveLong(option, value) << 20;
+                    break;
+                case "-order":
+                    disorderBound = value.equals("unbounded") ?
+                            Long.MAX_VALUE : parsePositiveLong(option, value);
+                    break;
+                case "-late":
+                    latePolicy = value;
+                    break;
+                default:
+                    printUsage();
+                    throw new IllegalArgumentException(option + ": unknown " +
+                            "option");
+            }
+            first += 2;
+        }
+        args = Arrays.copyOfRange(args, first, args.length);
+
+        if (serverPort > 0) {
+            if (args.length != 1) {
+                printUsage();
+                throw new IllegalArgumentException();
+            }
+            File root = new File(args[0]);
+            if (!root.isDirectory()) {
+                printUsage();
+                throw new FileNotFoundException(args[0] + ": no such " +
+                        "directory");
+            }
+            serve(serverPort, root, cacheBytes, format, metricsFile);
+            return;
+        }
+
         if ((args.length != NON_FOLLOW_ARGS) && (args.length != FOLLOW_ARGS)) {
             printUsage();
             throw new IllegalArgumentException();
@@ -34,7 +236,10 @@ public class Main {
         String fileName = args[0];
         File connectionsFile = new File(fileName);
 
-        if (!connectionsFile.exists()) {
+        boolean glob = args.length == FOLLOW_ARGS &&
+                connectionsFile.getName().matches(".*[*?\\[{].*");
+        if (!connectionsFile.exists() && !(glob &&
+                connectionsFile.getAbsoluteFile().getParentFile().isDirectory())) {
             printUsage();
             throw new FileNotFoundException(fileName + ": " + "no such file");
         }
@@ -51,6 +256,16 @@ public class Main {
                 printUsage();
                 throw new IllegalArgumentException();
             }
+            try {
+                if (connectionsFile.isFile() && CompressedConnectionsFormat
+                        .isCompressed(connectionsFile)) {
+                    printUsage();
+                    throw new IllegalArgumentException(fileName + ": " +
+                            "compressed files cannot be followed");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
             hostName = args[2];
         } else {
             if (args.length != NON_FOLLOW_ARGS) {
@@ -68,6 +283,12 @@ public class Main {
             }
             hostName = args[3];
         }
+        if (managerThreads > 0 && !(follow && (glob ||
+                connectionsFile.isDirectory()))) {
+            printUsage();
+            throw new IllegalArgumentException("-m: only follows a " +
+                    "directory or a glob");
+        }
 
         /*
          * Separation of concerns/functionality.
@@ -80,20 +301,248 @@ public class Main {
          * sequentially and randomAccessFile better if the file is being
          * modified at same time.
          */
+        List<String> hostNames = parseHosts(hostName);
+        Metrics metrics = null;
+        if (metricsFile != null) {
+            metrics = new Metrics();
+            metrics.register(connectionsFile.getName());
+            metrics.report(metricsFile, METRICS_PERIOD_MS);
+        }
+        ResultSink sink;
+        try {
+            sink = (outputFile == null) ? ResultSink.stdout(format) :
+                    ResultSink.file(outputFile, format, OUTPUT_FLUSH_EVERY,
+                            OUTPUT_FLUSH_MS);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         if (!follow) {
-            ConnectionsParser cp =
-                    new ConnectionsParser(connectionsFile, startTime,
-                            endTime, hostName);
-            try {
-                cp.connectedClients();
+            ConnectionsParser cp;
+            if (hostNames != null) {
+                cp = new ConnectionsParser(connectionsFile, startTime, endTime,
+                        hostNames, (parallelism > 1) ?
+                        ConnectionsParser.ScanMode.PARALLEL :
+                        ConnectionsParser.ScanMode.MAPPED, parallelism);
+            } else {
+                cp = (parallelism > 1) ?
+                        new ConnectionsParser(connectionsFile, startTime,
+                                endTime, hostName,
+                                ConnectionsParser.ScanMode.PARALLEL,
+                                parallelism) :
+                        new ConnectionsParser(connectionsFile, startTime,
+                                endTime, hostName);
+            }
+            cp.setMetrics(metrics);
+            cp.setSink(sink);
+            OutputStream lateOutput = null;
+            try (sink) {
+                if (disorderBound > 0) {
+                    lateOutput = setOrdering(cp, disorderBound, latePolicy);
+                }
+                if (graphTopN > 0) {
+                    cp.connectionGraph(graphTopN,
+                            ConnectionGraph.DEFAULT_MAX_EDGES);
+                } else {
+                    cp.connectedClients();
+                }
+                if (lateOutput != null) {
+                    lateOutput.close();
+                }
+                if (disorderBound > 0 && latePolicy.equals("count")) {
+                    System.err.println(cp.getLateRecords() + " late records");
+                }
+                if (metrics != null) {
+                    metrics.append(metricsFile);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         } else {
-            TailingConnectionsParser tcp =
-                    new TailingConnectionsParser(connectionsFile, hostName);
-            new Thread(tcp).start(); // runs forever until terminated or
-            // until waited too long.
+            List<String> followedHosts = (hostNames != null) ? hostNames :
+                    List.of(hostName);
+            long windowHop = (hop > 0) ? hop :
+                    TailingConnectionsParser.defaultHop(windowSize, windowMode);
+            TailingConnectionsParser tcp = newTailer(connectionsFile,
+                    followedHosts, windowMode, windowSize, windowHop, topK,
+                    graphTopN, peerTracking, checkpointFile, pipelineParsers);
+            // Written on a thread of its own, shared by the tailers and
+            // closed (so flushed) when the JVM is stopped.
+            AsyncSink asyncSink = new AsyncSink(sink);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    asyncSink.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            tcp.setMetrics(metrics);
+            tcp.setSink(asyncSink);
+            if (managerThreads > 0) {
+                // One tailer per file, new files included, on shared
+                // threads until the JVM is stopped.
+                TailerManager manager = new TailerManager(managerThreads);
+                manager.followAll(tcp, fileTailers(followedHosts, windowMode,
+                        windowSize, windowHop, topK, graphTopN, peerTracking,
+                        checkpointFile, pipelineParsers, metrics, asyncSink));
+            } else {
+                new Thread(tcp).start(); // runs forever until terminated or
+                // until waited too long.
+            }
+        }
+    }
+
+    /**
+     * @return the file the late records are appended to, if latePolicy is
+     * neither drop nor count.
+     * @throws IOException
+     */
+    private static OutputStream setOrdering(ConnectionsParser cp,
+                                            long disorderBound,
+                                            String latePolicy)
+            throws IOException {
+        switch (latePolicy) {
+            case "drop":
+                cp.setOrdering(disorderBound,
+                        ConnectionsParser.LatePolicy.DROP, null);
+                return null;
+            case "count":
+                cp.setOrdering(disorderBound,
+                        ConnectionsParser.LatePolicy.COUNT, null);
+                return null;
+            default:
+                OutputStream out = new BufferedOutputStream(
+                        new FileOutputStream(latePolicy, true));
+                cp.setOrdering(disorderBound,
+                        ConnectionsParser.LatePolicy.SIDE_OUTPUT, out);
+                return out;
+        }
+    }
+
+    /* Answers queries until the JVM is stopped. */
+    private static void serve(int port, File root, long cacheBytes,
+                              ResultSink.Format format, File metricsFile) {
+        try {
+            QueryServer server = new QueryServer(port, root, cacheBytes);
+            try {
+                server.setFormat(format);
+            } catch (IllegalArgumentException e) {
+                printUsage();
+                throw e;
+            }
+            if (metricsFile != null) {
+                Metrics metrics = new Metrics();
+                metrics.register("server-" + port);
+                metrics.report(metricsFile, METRICS_PERIOD_MS);
+                server.setMetrics(metrics);
+            }
+            server.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The tailers of the files of a directory or a glob under -m: the
+     * checkpoint of each file is checkpointFile.<name>, and they share
+     * the metrics and the sink.
+     */
+    private static Function<File, TailingConnectionsParser> fileTailers(
+            List<String> hostNames,
+            TailingConnectionsParser.WindowMode windowMode, long windowSize,
+            long hop, int topK, int graphTopN,
+            TailingConnectionsParser.PeerTracking peers, File checkpointFile,
+            int pipelineParsers, Metrics metrics, ResultSink sink) {
+        return f -> {
+            TailingConnectionsParser tailer = newTailer(f, hostNames,
+                    windowMode, windowSize, hop, topK, graphTopN, peers,
+                    (checkpointFile == null) ? null :
+                            new File(checkpointFile.getPath() + "." +
+                                    f.getName()), pipelineParsers);
+            tailer.setMetrics(metrics);
+            tailer.setSink(sink);
+            return tailer;
+        };
+    }
+
+    private static TailingConnectionsParser newTailer(
+            File connectionsFile, List<String> hostNames,
+            TailingConnectionsParser.WindowMode windowMode, long windowSize,
+            long hop, int topK, int graphTopN,
+            TailingConnectionsParser.PeerTracking peers, File checkpointFile,
+            int pipelineParsers) {
+        TailingConnectionsParser tcp = new TailingConnectionsParser(
+                connectionsFile, hostNames, windowMode, windowSize, hop);
+        tcp.setTopK(topK);
+        if (graphTopN > 0) {
+            tcp.setGraph(graphTopN, ConnectionGraph.DEFAULT_MAX_EDGES);
+        }
+        tcp.setPeerTracking(peers);
+        if (checkpointFile != null) {
+            tcp.setCheckpoint(checkpointFile,
+                    TailingConnectionsParser.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        }
+        tcp.setPipeline(pipelineParsers);
+        return tcp;
+    }
+
+    /**
+     * @return the hosts of a list "a,b,c" or of a file "@hosts.txt", or null
+     * for a single host.
+     * @throws FileNotFoundException
+     */
+    private static List<String> parseHosts(String arg)
+            throws FileNotFoundException {
+        List<String> names = new ArrayList<>();
+        if (arg.startsWith("@")) {
+            File hostsFile = new File(arg.substring(1));
+            if (!hostsFile.exists()) {
+                printUsage();
+                throw new FileNotFoundException(hostsFile + ": no such file");
+            }
+            try (BufferedReader reader = new BufferedReader(
+                    new FileReader(hostsFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    names.add(line.trim());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else if (arg.contains(",")) {
+            names.addAll(Arrays.asList(arg.split(",")));
+        } else {
+            return null;
+        }
+        // A host listed twice is answered once.
+        names.removeIf(String::isEmpty);
+        if (names.isEmpty()) {
+            printUsage();
+            throw new IllegalArgumentException(arg + ": no host");
+        }
+        return new ArrayList<>(new LinkedHashSet<>(names));
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        long n = parsePositiveLong(option, value);
+        if (n > Integer.MAX_VALUE) {
+            printUsage();
+            throw new IllegalArgumentException(option + " " + value + ": " +
+                    "too large");
+        }
+        return (int) n;
+    }
+
+    private static long parsePositiveLong(String option, String value) {
+        try {
+            long n = Long.parseLong(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
         }
+        printUsage();
+        throw new IllegalArgumentException(option + " " + value + ": not a " +
+                "positive number");
     }
 }
@@ -0,0 +1,169 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Scans a connections file through memory mapped segments instead of a
+ * BufferedReader.
+ *
+ * Comments:
+ * readLine() + split(" ") allocate a String and an array for every single
+ * line, even though the vast majority of lines are thrown away. Here the
+ * timestamp is parsed as a long straight from the mapped bytes and the host
+ * field is looked up in a HostTable of pre-encoded names (see
+ * RecordParser), so nothing is allocated per line. Bytes are only copied
+ * out for the lines that actually match, to the output of the host they
+ * match.
+ *
+ * A mapping is limited to 2GB, so big files are mapped in segments. A line
+ * may straddle the end of a segment, in which case the next segment is
+ * mapped starting at that line.
+ */
+class MappedConnectionsScanner {
+
+    static final long DEFAULT_SEGMENT_SIZE = 1L << 28; // 256MB
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+
+    private final FileChannel channel;
+    private final long startTime;
+    private final long endTime;
+    private final HostTable hosts;
+    private final RecordParser parser = new RecordParser();
+    private long segmentSize;
+
+    MappedConnectionsScanner(FileChannel channel, long startTime,
+                             long endTime, String hostName) {
+        this(channel, startTime, endTime, HostTable.of(hostName));
+    }
+
+    MappedConnectionsScanner(FileChannel channel, long startTime,
+                             long endTime, HostTable hosts) {
+        this(channel, startTime, endTime, hosts, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MappedConnectionsScanner(FileChannel channel, long startTime,
+                             long endTime, HostTable hosts,
+                             long segmentSize) {
+        this.channel = channel;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.hosts = hosts;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Writes the client names of the matching lines that *start* in the
+     * byte range [from, to) to out, each followed by a space.
+     * from must be the start of a line.
+     * @return true if a line past the end of the window (+5m) was met, in
+     * which case nothing after it needs to be read.
+     * @throws IOException
+     */
+    boolean scan(long from, long to, OutputStream out) throws IOException {
+        return scan(from, to, new OutputStream[]{out});
+    }
+
+    /**
+     * Same as scan, the client names of the lines of host i are written to
+     * outs[i].
+     * @throws IOException
+     */
+    boolean scan(long from, long to, OutputStream[] outs) throws IOException {
+        long fileSize = channel.size();
+        to = Math.min(to, fileSize);
+        long position = from;
+        while (position < to) {
+            long size = Math.min(segmentSize, fileSize - position);
+            MappedByteBuffer segment =
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            int limit = (int) Math.min(size, to - position);
+            boolean lastSegment = position + size == fileSize;
+            int consumed = scanSegment(segment, position, (int) size, limit,
+                    lastSegment, outs);
+            if (consumed < 0) {
+                return true;
+            }
+            if (consumed == 0) {
+                // A single line is longer than a segment, map a bigger one.
+                segmentSize *= 2;
+            }
+            position += consumed;
+        }
+        return false;
+    }
+
+    /**
+     * Same as scan, on the text of a whole buffer rather than a range of
+     * the file, see CompressedConnectionsScanner.
+     * @param offset the offset of text in the text file, for the errors.
+     * @throws IOException
+     */
+    boolean scan(ByteBuffer text, long offset, OutputStream[] outs)
+            throws IOException {
+        return scanSegment(text, offset, text.limit(), text.limit(), true,
+                outs) < 0;
+    }
+
+    /**
+     * Scans the complete lines of the segment, at offset in the file, that
+     * start before limit.
+     * @return the number of bytes consumed, or -1 if the stop bound was
+     * reached.
+     */
+    private int scanSegment(ByteBuffer segment, long offset, int size,
+                            int limit, boolean lastSegment,
+                            OutputStream[] outs)
+            throws IOException {
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < size && segment.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == size && !lastSegment) {
+                // Incomplete line, it will be read by the next segment.
+                return lineStart;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && segment.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (scanLine(segment, offset, lineStart, lineEnd, outs)) {
+                return -1;
+            }
+            lineStart = next;
+        }
+        return Math.min(lineStart, size);
+    }
+
+    /**
+     * Same logic as the reader path of ConnectionsParser, on the raw bytes
+     * of the line [start, end), see RecordParser.
+     * @return true if the stop bound was reached.
+     */
+    private boolean scanLine(ByteBuffer segment, long offset, int start,
+                             int end, OutputStream[] outs)
+            throws IOException {
+        if (!parser.parse(segment, start, end)) {
+            throw new NumberFormatException(parser.error() + " at offset " +
+                    (offset + start));
+        }
+        long tsc = parser.timestamp();
+        if (tsc >= startTime && tsc <= endTime) {
+            int id = parser.hostId(hosts);
+            if (id >= 0) {
+                OutputStream out = outs[id];
+                parser.writeClient(out);
+                out.write(' ');
+            }
+        }
+        // Optimisation, we can stop as soon as we reach this bound.
+        return tsc > endTime + FIVE_MINUTES;
+    }
+}
@@ -0,0 +1,381 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the tailers and the scanner are doing: records and bytes read, how
+ * far behind the end of the followed files they are, late and dropped
+ * records, how long emitting a window and a scan take, and the largest
+ * window (in distinct clients). Readable over JMX (see register) and
+ * appended to a file periodically (see report), latencies in microseconds.
+ *
+ * Comments:
+ * Metrics are off unless a Metrics is given to the tailer or the scanner
+ * (setMetrics), and then the hot path is not touched: the tailer counts
+ * records and late records in plain fields it owns, and adds them here
+ * once per poll, see TailingConnectionsParser.reportRecords (and
+ * reportPosition for the bytes and the lag). Counters are LongAdders, so
+ * the tailers of a TailerManager can share a Metrics without contending on
+ * a single cache line. The lags are kept per tailer, as each one reports
+ * its own, and then added up in bytes, or taken from the tailer furthest
+ * behind in ms: a tenant that is up to date does not hide a stalled one.
+ * A tailer is forgotten once it stops (see stopped). Latencies go to Histograms with a bounded relative
+ * error, as HdrHistogram does, in fixed memory.
+ */
+public class Metrics implements MetricsMXBean, Closeable {
+
+    private static final String DOMAIN = "com.clarity.connectionsFileParser";
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder lateRecords = new LongAdder();
+    private final LongAdder droppedRecords = new LongAdder();
+    // The last lag and largest timestamp reported by each tailer.
+    private final ConcurrentHashMap<Object, Long> lagBytes =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, Long> lastTimestamps =
+            new ConcurrentHashMap<>();
+    // Largest value reported by any tailer.
+    private final LongAccumulator largestWindow =
+            new LongAccumulator(Math::max, 0);
+    private final Histogram emitLatency = new Histogram();
+    private final Histogram scanLatency = new Histogram();
+
+    // See getRecordsPerSecond.
+    private long sampleTime = System.nanoTime();
+    private long sampleRecords = 0;
+    private double recordsPerSecond = 0;
+
+    private ObjectName name;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * @param tailer the tailer reporting.
+     * @param n records processed since the last call, late ones included.
+     * @param timestamp the largest timestamp processed so far by tailer,
+     *                  Long.MIN_VALUE if none.
+     */
+    void recordsProcessed(Object tailer, long n, long late, long timestamp) {
+        records.add(n);
+        lateRecords.add(late);
+        if (timestamp != Long.MIN_VALUE) {
+            lastTimestamps.put(tailer, timestamp);
+        }
+    }
+
+    void recordsDropped(long n) {
+        droppedRecords.add(n);
+    }
+
+    void bytesRead(long n) {
+        bytes.add(n);
+    }
+
+    /* What is left to read in the files followed by tailer. */
+    void lag(Object tailer, long bytes) {
+        lagBytes.put(tailer, bytes);
+    }
+
+    /* The tailer is done: it is not behind anymore. */
+    void stopped(Object tailer) {
+        lagBytes.remove(tailer);
+        lastTimestamps.remove(tailer);
+    }
+
+    /**
+     * @param nanos how long the dump took.
+     * @param clients the number of distinct clients whose connections the
+     *                window counted, the clients monitored by its top-K
+     *                if it has one. The largest window is the largest such
+     *                number, whatever the window mode.
+     */
+    void windowEmitted(long nanos, long clients) {
+        emitLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        largestWindow.accumulate(clients);
+    }
+
+    void scanned(long nanos) {
+        scanLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Makes the metrics readable over JMX, as
+     * com.clarity.connectionsFileParser:type=Metrics,name=<name>.
+     * @throws IllegalStateException if it cannot be registered.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN +
+                    ":type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(name + ": cannot register " +
+                    "metrics", e);
+        }
+    }
+
+    /**
+     * Appends the metrics to file every period ms, as a JSON object per
+     * line, on a daemon thread.
+     */
+    public void report(File file, long period) {
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            try {
+                append(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends the metrics to file now, see report.
+     * @throws IOException
+     */
+    public void append(File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file, true)) {
+            writer.write(toJson() + "\n");
+        }
+    }
+
+    /* Stops reporting, and unregisters from JMX. */
+    @Override
+    public void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /* Over the last second or more, since the previous call. */
+    @Override
+    public synchronized double getRecordsPerSecond() {
+        long time = System.nanoTime();
+        if (time - sampleTime >= TimeUnit.SECONDS.toNanos(1)) {
+            long n = records.sum();
+            recordsPerSecond = (n - sampleRecords) *
+                    (double) TimeUnit.SECONDS.toNanos(1) / (time - sampleTime);
+            sampleTime = time;
+            sampleRecords = n;
+        }
+        return recordsPerSecond;
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /* Older than a record read before them. */
+    @Override
+    public long getLateRecords() {
+        return lateRecords.sum();
+    }
+
+    /* Later than the allowed lateness, not counted in any window. */
+    @Override
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /* What is left to read, by all the tailers. */
+    @Override
+    public long getLagBytes() {
+        long sum = 0;
+        for (long bytes : lagBytes.values()) {
+            sum += bytes;
+        }
+        return sum;
+    }
+
+    /* Now minus the largest timestamp read by the tailer furthest behind,
+       0 before the first record. */
+    @Override
+    public long getLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (long timestamp : lastTimestamps.values()) {
+            oldest = Math.min(oldest, timestamp);
+        }
+        return (oldest == Long.MAX_VALUE) ? 0 :
+                Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    @Override
+    public long getLargestWindow() {
+        return largestWindow.get();
+    }
+
+    @Override
+    public long getWindowsEmitted() {
+        return emitLatency.count();
+    }
+
+    @Override
+    public long getEmitLatencyP50() {
+        return emitLatency.percentile(50);
+    }
+
+    @Override
+    public long getEmitLatencyP99() {
+        return emitLatency.percentile(99);
+    }
+
+    @Override
+    public long getEmitLatencyMax() {
+        return emitLatency.max();
+    }
+
+    @Override
+    public long getScans() {
+        return scanLatency.count();
+    }
+
+    @Override
+    public long getScanLatencyP50() {
+        return scanLatency.percentile(50);
+    }
+
+    @Override
+    public long getScanLatencyMax() {
+        return scanLatency.max();
+    }
+
+    public Histogram getEmitLatency() {
+        return emitLatency;
+    }
+
+    public Histogram getScanLatency() {
+        return scanLatency;
+    }
+
+    /* A snapshot, on one line. */
+    public String toJson() {
+        return "{\"time\": " + System.currentTimeMillis() +
+                ", \"records\": " + getRecords() +
+                ", \"recordsPerSecond\": " + Math.round(getRecordsPerSecond()) +
+                ", \"bytes\": " + getBytes() +
+                ", \"lateRecords\": " + getLateRecords() +
+                ", \"droppedRecords\": " + getDroppedRecords() +
+                ", \"lagBytes\": " + getLagBytes() +
+                ", \"lagMillis\": " + getLagMillis() +
+                ", \"largestWindow\": " + getLargestWindow() +
+                ", \"emitLatencyMicros\": " + emitLatency.toJson() +
+                ", \"scanLatencyMicros\": " + scanLatency.toJson() + "}";
+    }
+
+    /**
+     * Counts of non-negative values in log-linear buckets: values below
+     * 2^SUB_BUCKET_BITS have a bucket each, above that every power of two
+     * is cut in 2^(SUB_BUCKET_BITS - 1) buckets. A percentile is thus off
+     * by less than 1 / 2^(SUB_BUCKET_BITS - 1) (about 6%), whatever the
+     * range, in under a thousand buckets.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(
+                SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param p in [0, 100].
+         * @return the value p% of the values are at most, 0 if there is
+         * none.
+         */
+        public long percentile(double p) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + (shift - 1) * HALF +
+                    (int) (value >>> shift) - HALF;
+        }
+
+        /* The largest value of bucket i. */
+        static long highest(int i) {
+            if (i < SUB_BUCKETS) {
+                return i;
+            }
+            int shift = (i - SUB_BUCKETS) / HALF + 1;
+            long top = (i - SUB_BUCKETS) % HALF + HALF;
+            return ((top + 1) << shift) - 1;
+        }
+
+        String toJson() {
+            return "{\"count\": " + count() + ", \"p50\": " + percentile(50) +
+                    ", \"p99\": " + percentile(99) + ", \"max\": " + max() + "}";
+        }
+    }
+}
@@ -0,0 +1,24 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+/**
+ * The JMX view of Metrics, latencies in microseconds.
+ */
+public interface MetricsMXBean {
+    long getRecords();
+    double getRecordsPerSecond();
+    long getBytes();
+    long getLateRecords();
+    long getDroppedRecords();
+    long getLagBytes();
+    long getLagMillis();
+    long getWindowsEmitted();
+    long getEmitLatencyP50();
+    long getEmitLatencyP99();
+    long getEmitLatencyMax();
+    long getLargestWindow();
+    long getScans();
+    long getScanLatencyP50();
+    long getScanLatencyMax();
+}
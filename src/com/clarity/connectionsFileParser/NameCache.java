@@ -0,0 +1,139 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The String of a name from its bytes, decoded once and then found again
+ * without allocating, see RecordParser and BinaryConnectionsReader.
+ *
+ * Comments:
+ * A SymbolTable needs the String before it can find the one it already
+ * has, so every record would still decode two Strings. Here the lookup is
+ * on the bytes: an open addressing table (linear probing, half full at
+ * most) of the encoded names, their hashes and their Strings. It lives as
+ * long as its reader, across windows and rotations, so it is bounded: when
+ * it holds MAX_NAMES names it is cleared and starts over, which only costs
+ * decoding them again.
+ *
+ * Not thread safe, one cache per reader.
+ */
+class NameCache {
+
+    static final int MAX_NAMES = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Charset charset;
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int size = 0;
+    // The bytes of the name being looked up, in one or the other.
+    private byte[] array;
+    private ByteBuffer buffer;
+
+    NameCache(Charset charset) {
+        this.charset = charset;
+    }
+
+    /* The name in the bytes [start, end) of bytes. */
+    String get(byte[] bytes, int start, int end) {
+        array = bytes;
+        buffer = null;
+        return get(start, end);
+    }
+
+    /* Same as get, at absolute positions of bytes. */
+    String get(ByteBuffer bytes, int start, int end) {
+        array = null;
+        buffer = bytes;
+        return get(start, end);
+    }
+
+    private String get(int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + at(i);
+        }
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && matches(keys[slot], start, end)) {
+                return names[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] key = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            key[i - start] = at(i);
+        }
+        String name = new String(key, charset);
+        if (size == MAX_NAMES) {
+            clear();
+        } else if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        put(key, hash, name);
+        return name;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void put(byte[] key, int hash, String name) {
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        hashes[slot] = hash;
+        names[slot] = name;
+        size++;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        String[] oldNames = names;
+        keys = new byte[oldKeys.length * 2][];
+        hashes = new int[oldKeys.length * 2];
+        names = new String[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                put(oldKeys[i], oldHashes[i], oldNames[i]);
+            }
+        }
+    }
+
+    private void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(names, null);
+        size = 0;
+    }
+
+    private byte at(int i) {
+        return (array != null) ? array[i] : buffer.get(i);
+    }
+
+    private boolean matches(byte[] key, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != at(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
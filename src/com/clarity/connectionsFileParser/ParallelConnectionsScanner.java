@@ -0,0 +1,160 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a byte range of the connections file into line aligned segments
+ * and scans them with MappedConnectionsScanner on a ForkJoinPool.
+ *
+ * Comments:
+ * Each segment writes its matches to its own buffer, and the buffers are
+ * written out in file order, so the output is byte for byte the one of the
+ * sequential scan. The sequential scan stops at the first line past the
+ * window (+5m), so the output of the segments after the segment holding
+ * that line is dropped, and segments that have not started yet are skipped.
+ * With several hosts, each segment has one buffer per host.
+ */
+class ParallelConnectionsScanner {
+
+    // More segments than workers so that a slow segment does not leave the
+    // other workers idle.
+    private static final int SEGMENTS_PER_WORKER = 4;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long startTime;
+    private final long endTime;
+    private final HostTable hosts;
+    private final int parallelism;
+
+    ParallelConnectionsScanner(FileChannel channel, long startTime,
+                               long endTime, String hostName,
+                               int parallelism) {
+        this(channel, startTime, endTime, HostTable.of(hostName),
+                parallelism);
+    }
+
+    ParallelConnectionsScanner(FileChannel channel, long startTime,
+                               long endTime, HostTable hosts,
+                               int parallelism) {
+        this.channel = channel;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.hosts = hosts;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Same contract as MappedConnectionsScanner.scan.
+     */
+    boolean scan(long from, long to, OutputStream out) throws IOException {
+        return scan(from, to, new OutputStream[]{out});
+    }
+
+    /**
+     * Same contract as MappedConnectionsScanner.scan.
+     */
+    boolean scan(long from, long to, OutputStream[] outs) throws IOException {
+        List<long[]> segments = split(from, to);
+        AtomicInteger firstStopped = new AtomicInteger(Integer.MAX_VALUE);
+        List<Callable<Segment>> tasks = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            int index = i;
+            long[] segment = segments.get(i);
+            tasks.add(() -> scanSegment(index, segment[0], segment[1],
+                    firstStopped));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Segment> future : pool.invokeAll(tasks)) {
+                Segment segment = future.get();
+                for (int i = 0; i < outs.length; i++) {
+                    segment.outputs[i].writeTo(outs[i]);
+                }
+                if (segment.stopped) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // A malformed line, as in the sequential scan. The pool may
+                // rethrow a copy of it, whose cause is the original.
+                if (cause.getCause() != null &&
+                        cause.getCause().getClass() == cause.getClass()) {
+                    cause = cause.getCause();
+                }
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Segment scanSegment(int index, long from, long to,
+                                AtomicInteger firstStopped) throws IOException {
+        Segment segment = new Segment(hosts.size());
+        if (index > firstStopped.get()) {
+            // An earlier segment stopped, this output would be dropped.
+            return segment;
+        }
+        segment.stopped = new MappedConnectionsScanner(channel, startTime,
+                endTime, hosts).scan(from, to, segment.outputs);
+        if (segment.stopped) {
+            firstStopped.accumulateAndGet(index, Math::min);
+        }
+        return segment;
+    }
+
+    /* Cuts [from, to) into segments that start on a line boundary. */
+    private List<long[]> split(long from, long to) throws IOException {
+        to = Math.min(to, channel.size());
+        int count = parallelism * SEGMENTS_PER_WORKER;
+        long size = Math.max(MIN_SEGMENT_SIZE, (to - from) / count + 1);
+        List<long[]> segments = new ArrayList<>();
+        long start = from;
+        while (start < to) {
+            long end = (to - start <= size) ? to :
+                    WindowSeeker.nextLineStart(channel, start + size);
+            if (end < 0 || end > to) {
+                end = to;
+            }
+            segments.add(new long[]{start, end});
+            start = end;
+        }
+        return segments;
+    }
+
+    private static class Segment {
+        private final ByteArrayOutputStream[] outputs;
+        private boolean stopped = false;
+
+        Segment(int hosts) {
+            outputs = new ByteArrayOutputStream[hosts];
+            for (int i = 0; i < hosts; i++) {
+                outputs[i] = new ByteArrayOutputStream();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers the queries of ConnectionsParser from a long running process,
+ * on a localhost TCP port, out of an in memory cache of the files asked
+ * (see ColumnarCache), which must be in the served directory.
+ *
+ * The protocol is a line per query, any number per connection:
+ *      <start_time> <end_time> <host>[,<host>...] <filename>
+ * <filename> being relative to the served directory (or absolute, and in
+ * it), answered by a line per host, as printed by the scanner for a list of
+ * hosts ("host: client client ..." as text, or a JSON object, see
+ * setFormat), then an empty line. A query that cannot be answered gets
+ * "ERROR <reason>" instead, then the empty line.
+ *
+ * Comments:
+ * Every `java Main <file> <start> <end> <host>` pays for starting a JVM,
+ * for the JIT warming up on its only scan, and for reading the file from
+ * a cold page cache: far more than the scan itself on a small window.
+ * Here the file is parsed once into columns, and a query then reads only
+ * the records of its hosts in its window: microseconds. A Unix socket
+ * would spare the TCP stack, but needs a more recent JDK than this
+ * project targets (JDK 13). The server only listens on the loopback
+ * interface, but any local user can connect to it: it only reads files
+ * under the served directory, once symbolic links and ".." are resolved,
+ * not every file its own user can read.
+ */
+public class QueryServer implements Runnable, Closeable {
+
+    public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+    // Between failed accepts, e.g. out of file descriptors.
+    private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+
+    private final ServerSocket serverSocket;
+    // The served directory, as given and with its links resolved.
+    private final Path root;
+    private final Path realRoot;
+    private final ColumnarCache cache;
+    private final ExecutorService connections;
+    // See setFormat.
+    private ResultSink.Format format = ResultSink.Format.TEXT;
+    // See setMetrics.
+    private Metrics metrics;
+
+    /**
+     * @param port 0 for any free port, see getPort.
+     * @param root the directory of the files that may be queried.
+     * @param cacheBytes the memory the cached files may take, roughly.
+     * @throws IOException if root is not a directory, or if the port
+     * cannot be bound.
+     */
+    public QueryServer(int port, File root, long cacheBytes)
+            throws IOException {
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException(root + ": no such directory");
+        }
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.realRoot = this.root.toRealPath();
+        this.serverSocket = new ServerSocket(port, 50,
+                InetAddress.getLoopbackAddress());
+        this.cache = new ColumnarCache(cacheBytes);
+        AtomicInteger count = new AtomicInteger();
+        this.connections = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "query-server-" +
+                    count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * TEXT (the default) or JSON, to be called before run.
+     * @throws IllegalArgumentException for BINARY, whose answers could not
+     * be told apart from the empty line that ends them.
+     */
+    public void setFormat(ResultSink.Format format) {
+        if (format == ResultSink.Format.BINARY) {
+            throw new IllegalArgumentException("The query server answers " +
+                    "text or json");
+        }
+        this.format = format;
+    }
+
+    /**
+     * Reports how long each query takes to metrics, see Metrics, or
+     * nothing if null (the default). To be called before run.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getCacheHits() {
+        return cache.hits();
+    }
+
+    public long getCacheMisses() {
+        return cache.misses();
+    }
+
+    public long getCachedBytes() {
+        return cache.bytes();
+    }
+
+    /**
+     * Accepts connections until closed, each served on a thread of its
+     * own. While accept fails (e.g. out of file descriptors) it is retried
+     * after a backoff, up to MAX_ACCEPT_BACKOFF_MS, and the failure is
+     * only printed once.
+     */
+    @Override
+    public void run() {
+        long backoff = 0;
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                if (backoff == 0) {
+                    e.printStackTrace();
+                }
+                backoff = Math.min(Math.max(backoff * 2, 1),
+                        MAX_ACCEPT_BACKOFF_MS);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            backoff = 0;
+            connections.execute(() -> serve(socket));
+        }
+    }
+
+    /* Stops accepting, and drops the connections. */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            // An answer may take two writes (the sink flushes its own), and
+            // Nagle's algorithm would hold the second until the first is
+            // acknowledged: 40ms with delayed ACKs.
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            // Slower, still correct.
+        }
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     socket.getInputStream(), Charset.defaultCharset()));
+             OutputStream out = new BufferedOutputStream(
+                     socket.getOutputStream())) {
+            // Never flushed on its own, closing it leaves out open.
+            ResultSink sink = StreamSink.of(format, out, false, 0, 0);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                long t0 = System.nanoTime();
+                try {
+                    answer(line, sink);
+                    sink.flush();
+                } catch (IOException | RuntimeException e) {
+                    sink.flush();
+                    String reason = (e.getMessage() != null) ?
+                            e.getMessage() : e.toString();
+                    out.write(("ERROR " + reason.replace('\n', ' '))
+                            .getBytes(Charset.defaultCharset()));
+                    out.write('\n');
+                }
+                out.write('\n');
+                out.flush();
+                if (metrics != null) {
+                    metrics.scanned(System.nanoTime() - t0);
+                }
+            }
+        } catch (SocketException e) {
+            // The client went away, or close.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void answer(String query, ResultSink sink) throws IOException {
+        String[] tokens = query.split(" ", 4);
+        if (tokens.length != 4) {
+            throw new IllegalArgumentException("expected <start_time> " +
+                    "<end_time> <host>[,<host>...] <filename>");
+        }
+        long startTime;
+        long endTime;
+        try {
+            startTime = Long.parseLong(tokens[0]);
+            endTime = Long.parseLong(tokens[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(tokens[0] + " or " +
+                    tokens[1] + " is not a number");
+        }
+        // A host listed twice is answered once, as by Main.
+        List<String> hostNames = new ArrayList<>(new LinkedHashSet<>(
+                List.of(tokens[2].split(","))));
+        hostNames.removeIf(String::isEmpty);
+        if (hostNames.isEmpty()) {
+            throw new IllegalArgumentException(tokens[2] + ": no host");
+        }
+        cache.get(file(tokens[3])).connectedClients(startTime, endTime,
+                hostNames, sink);
+    }
+
+    /**
+     * @return the file name, in the served directory.
+     * @throws IllegalArgumentException if it is outside of it, even
+     * through a symbolic link.
+     * @throws FileNotFoundException
+     */
+    private File file(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new IllegalArgumentException(name + ": not in " + root);
+        }
+        if (!path.toFile().isFile()) {
+            throw new FileNotFoundException(name + ": no such file");
+        }
+        Path real = path.toRealPath();
+        if (!real.startsWith(realRoot)) {
+            throw new IllegalArgumentException(name + ": not in " + root);
+        }
+        return real.toFile();
+    }
+}
@@ -0,0 +1,175 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a line "<timestamp> <client> <host>" of a connections file in
+ * place, from a byte[] or a ByteBuffer, into a view of the last record
+ * parsed: the timestamp as a long, the client and host as byte ranges of
+ * the line. Shared by every reader of text files: the scanners (see
+ * MappedConnectionsScanner and RecordReader), the tailer (see LogFollower
+ * and TailingPipeline), the query server and the converters.
+ *
+ * Comments:
+ * readLine() + split(" ") + Long.parseLong allocate a String per line, an
+ * array and a String per field, so five objects per record, most of them
+ * for lines that are then thrown away. Here nothing is allocated: the
+ * parser is reused from line to line, the host is looked up in a HostTable
+ * on its bytes, the client is copied out on its bytes, and when a String
+ * is needed it comes from a NameCache, which only allocates the first
+ * time a name is seen. A malformed line makes parse return false rather
+ * than throw, so the caller decides how to report it (error() tells why),
+ * and the common case pays for no exception machinery.
+ *
+ * Not thread safe, one parser per thread.
+ */
+class RecordParser {
+
+    // The line of the last parse, in one or the other.
+    private byte[] array;
+    private ByteBuffer buffer;
+    private String error;
+
+    private long timestamp;
+    private int clientStart;
+    private int clientEnd;
+    private int hostStart;
+    private int hostEnd;
+
+    /**
+     * Parses the line [start, end) of line, without its newline (a
+     * trailing '\r' is ignored).
+     * @return false if the line is malformed, see error.
+     */
+    boolean parse(byte[] line, int start, int end) {
+        array = line;
+        buffer = null;
+        return parse(start, end);
+    }
+
+    /**
+     * Same as parse, at absolute positions of line.
+     */
+    boolean parse(ByteBuffer line, int start, int end) {
+        array = null;
+        buffer = line;
+        return parse(start, end);
+    }
+
+    private boolean parse(int start, int end) {
+        if (end > start && at(end - 1) == '\r') {
+            end--;
+        }
+        int i = start;
+        boolean negative = i < end && at(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int digits = i;
+        long value = 0;
+        byte b;
+        while (i < end && (b = at(i)) != ' ') {
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 ||
+                    value > (Long.MAX_VALUE - digit) / 10) {
+                error = "Malformed timestamp";
+                return false;
+            }
+            value = value * 10 + digit;
+            i++;
+        }
+        if (i == digits || i == end) {
+            error = "Malformed line";
+            return false;
+        }
+        timestamp = negative ? -value : value;
+        clientStart = ++i;
+        while (i < end && at(i) != ' ') {
+            i++;
+        }
+        if (i == end) {
+            error = "Malformed line";
+            return false;
+        }
+        clientEnd = i;
+        hostStart = ++i;
+        while (i < end && at(i) != ' ') {
+            i++;
+        }
+        hostEnd = i;
+        return true;
+    }
+
+    private byte at(int i) {
+        return (array != null) ? array[i] : buffer.get(i);
+    }
+
+    /* Why the last parse failed. */
+    String error() {
+        return error;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    /* The client and host as ranges of the line. */
+    int clientStart() {
+        return clientStart;
+    }
+
+    int clientEnd() {
+        return clientEnd;
+    }
+
+    int hostStart() {
+        return hostStart;
+    }
+
+    int hostEnd() {
+        return hostEnd;
+    }
+
+    /* The id of the client in hosts, or -1. */
+    int clientId(HostTable hosts) {
+        return find(hosts, clientStart, clientEnd);
+    }
+
+    /* The id of the host in hosts, or -1. */
+    int hostId(HostTable hosts) {
+        return find(hosts, hostStart, hostEnd);
+    }
+
+    private int find(HostTable hosts, int start, int end) {
+        return (array != null) ? hosts.find(array, start, end) :
+                hosts.find(buffer, start, end);
+    }
+
+    String client(NameCache names) {
+        return name(names, clientStart, clientEnd);
+    }
+
+    String host(NameCache names) {
+        return name(names, hostStart, hostEnd);
+    }
+
+    private String name(NameCache names, int start, int end) {
+        return (array != null) ? names.get(array, start, end) :
+                names.get(buffer, start, end);
+    }
+
+    /* Writes the bytes of the client. */
+    void writeClient(OutputStream out) throws IOException {
+        if (array != null) {
+            out.write(array, clientStart, clientEnd - clientStart);
+            return;
+        }
+        for (int i = clientStart; i < clientEnd; i++) {
+            out.write(buffer.get(i));
+        }
+    }
+}
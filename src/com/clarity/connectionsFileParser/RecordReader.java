@@ -0,0 +1,113 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a text connections file from a stream, one line at
+ * a time, decoded by a RecordParser: the allocation free replacement of
+ * BufferedReader.readLine() + split(" ") for the sequential readers (the
+ * READER scan, the connection graph, the ordered scan and the binary
+ * converter).
+ *
+ * Not thread safe.
+ */
+class RecordReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final RecordParser parser = new RecordParser();
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private long offset;        // Of buffer[0] in the file.
+    private int start = 0;      // Of the next line in buffer.
+    private int end = 0;        // Of the bytes read in buffer.
+    private long lineOffset;
+    private boolean eof = false;
+
+    RecordReader(InputStream in) {
+        this(in, 0);
+    }
+
+    /**
+     * @param offset the offset in the file of the first byte of in, so
+     *               that errors give the offset of the line in the file.
+     */
+    RecordReader(InputStream in, long offset) {
+        this.in = in;
+        this.offset = offset;
+    }
+
+    /**
+     * Moves to the next line, the last one may have no newline.
+     * @return false at the end of the stream.
+     * @throws NumberFormatException if the line is malformed.
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+        while (true) {
+            int newline = -1;
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0 && !eof) {
+                fill();
+                continue;
+            }
+            if (newline < 0 && start == end) {
+                return false;
+            }
+            int lineEnd = (newline < 0) ? end : newline;
+            int lineStart = start;
+            start = (newline < 0) ? end : newline + 1;
+            lineOffset = offset + lineStart;
+            if (!parser.parse(buffer, lineStart, lineEnd)) {
+                throw new NumberFormatException(parser.error() +
+                        " at offset " + lineOffset);
+            }
+            return true;
+        }
+    }
+
+    /* The view of the current line. */
+    RecordParser record() {
+        return parser;
+    }
+
+    /* The offset of the current line in the file. */
+    long lineOffset() {
+        return lineOffset;
+    }
+
+    /* Reads more, keeping the partial line at start. */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            offset += start;
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            // A line longer than the buffer.
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n < 0) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,190 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Puts back in timestamp order records that are out of order by at most
+ * disorderBound ms: a record is held until a record disorderBound ms newer
+ * has been seen, then emitted. Records older than that when they arrive
+ * are late, they cannot be emitted in order any more and are handed to the
+ * late output instead. Used by the ordered scans of ConnectionsParser.
+ *
+ * Comments:
+ * Sorting the window would hold all of it, and only answer once the last
+ * record is read. Here the records wait in a min-heap keyed on (timestamp,
+ * arrival), so only the records of the last disorderBound ms are held
+ * and they come out in the order of the file among equal timestamps. The
+ * heap is primitive arrays, as in ConnectionGraph, grown as needed.
+ * Records that are only passed to see move the watermark without being
+ * held, so the records of other hosts or outside the window cost nothing.
+ */
+class ReorderBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /* Where the records come out. */
+    interface Output {
+        void record(long timestamp, String client, int host)
+                throws IOException;
+    }
+
+    private final long disorderBound;
+    private final Output ordered;
+    private final Output late;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long arrivals = 0;
+    private long lateRecords = 0;
+
+    /* The heap. */
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private String[] clients = new String[INITIAL_CAPACITY];
+    private int[] hosts = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private int maxSize = 0;
+
+    /**
+     * @param disorderBound Long.MAX_VALUE if unknown: nothing is late, and
+     *                      everything is held until flush.
+     */
+    ReorderBuffer(long disorderBound, Output ordered, Output late) {
+        this.disorderBound = disorderBound;
+        this.ordered = ordered;
+        this.late = late;
+    }
+
+    /**
+     * Holds a record, or hands it to the late output if older than the
+     * watermark, then emits the records the watermark has passed.
+     * @throws IOException
+     */
+    void add(long timestamp, String client, int host) throws IOException {
+        if (timestamp < watermark()) {
+            lateRecords++;
+            late.record(timestamp, client, host);
+            return;
+        }
+        if (size == timestamps.length) {
+            grow();
+        }
+        timestamps[size] = timestamp;
+        sequences[size] = arrivals++;
+        clients[size] = client;
+        hosts[size] = host;
+        siftUp(size++);
+        maxSize = Math.max(maxSize, size);
+        see(timestamp);
+    }
+
+    /**
+     * A record that is not held, only moves the watermark.
+     * @throws IOException
+     */
+    void see(long timestamp) throws IOException {
+        if (timestamp <= maxTimestamp) {
+            return;
+        }
+        maxTimestamp = timestamp;
+        long watermark = watermark();
+        while (size > 0 && timestamps[0] <= watermark) {
+            emit();
+        }
+    }
+
+    /* Emits every record held, at the end of the input. */
+    void flush() throws IOException {
+        while (size > 0) {
+            emit();
+        }
+    }
+
+    /* Records older than this are late. */
+    long watermark() {
+        // Saturated, disorderBound may be Long.MAX_VALUE.
+        return (maxTimestamp < Long.MIN_VALUE + disorderBound) ?
+                Long.MIN_VALUE : maxTimestamp - disorderBound;
+    }
+
+    long getLateRecords() {
+        return lateRecords;
+    }
+
+    /* The most records held at once. */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    private void emit() throws IOException {
+        long timestamp = timestamps[0];
+        String client = clients[0];
+        int host = hosts[0];
+        size--;
+        move(size, 0);
+        clients[size] = null;
+        siftDown(0);
+        ordered.record(timestamp, client, host);
+    }
+
+    private boolean before(int i, int j) {
+        return timestamps[i] < timestamps[j] || (timestamps[i] ==
+                timestamps[j] && sequences[i] < sequences[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(i, parent)) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && before(child + 1, child)) {
+                child++;
+            }
+            if (!before(child, i)) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long timestamp = timestamps[i];
+        long sequence = sequences[i];
+        String client = clients[i];
+        int host = hosts[i];
+        move(j, i);
+        timestamps[j] = timestamp;
+        sequences[j] = sequence;
+        clients[j] = client;
+        hosts[j] = host;
+    }
+
+    private void move(int from, int to) {
+        timestamps[to] = timestamps[from];
+        sequences[to] = sequences[from];
+        clients[to] = clients[from];
+        hosts[to] = hosts[from];
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        clients = Arrays.copyOf(clients, capacity);
+        hosts = Arrays.copyOf(hosts, capacity);
+    }
+}
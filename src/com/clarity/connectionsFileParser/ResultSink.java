@@ -0,0 +1,72 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Where the results of the tailer (windows) and of the scanner (clients of
+ * a host) are written. By default they are printed to stdout as text, as
+ * they always have been, see stdout and file for the other sinks.
+ *
+ * Comments:
+ * Results used to be printed straight to System.out, by the thread that
+ * reads the log. Now a result is encoded in one go and written with a
+ * single write, and the sink decides when to flush. Wrapped in an
+ * AsyncSink, the writing happens on another thread, so that a slow
+ * terminal or disk does not hold back the tailer.
+ */
+public interface ResultSink extends Closeable {
+
+    /**
+     * TEXT: as printed before sinks existed.
+     * JSON: a JSON object per line.
+     * BINARY: DataOutputStream records, see StreamSink.Binary.
+     */
+    enum Format {
+        TEXT,
+        JSON,
+        BINARY
+    }
+
+    void window(WindowResult window) throws IOException;
+
+    /**
+     * Part of the answer of a scan: the clients who connected to host, as
+     * names each followed by a space, in names[offset, offset + length).
+     * The answer for a host may come in several parts, which never split
+     * a name, the last one with last set.
+     * @param host null when a single host was asked, the text output then
+     *             only has the names.
+     */
+    void clients(String host, byte[] names, int offset, int length,
+                 boolean last) throws IOException;
+
+    /* Writes out what was handed to the sink so far. */
+    void flush() throws IOException;
+
+    /**
+     * Writes to System.out (whatever it is when writing), flushed after
+     * every result. Closing it does not close System.out.
+     */
+    static ResultSink stdout(Format format) {
+        return StreamSink.of(format, new StreamSink.Stdout(), false, 1, 0);
+    }
+
+    /**
+     * Appends to file, flushed every flushEvery results or every
+     * flushInterval ms (when a result is written), whichever comes first,
+     * and on flush and close. 0 to ignore either.
+     * @throws IOException
+     */
+    static ResultSink file(File file, Format format, int flushEvery,
+                           long flushInterval) throws IOException {
+        return StreamSink.of(format, new BufferedOutputStream(
+                        new FileOutputStream(file, true), 1 << 16), true,
+                flushEvery, flushInterval);
+    }
+}
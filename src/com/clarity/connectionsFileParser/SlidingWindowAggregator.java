@@ -0,0 +1,376 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hopping (and sliding) windows for the tailer: a window of size ms is
+ * reported every hop ms, e.g. "top client over the last 60 minutes,
+ * updated every minute".
+ *
+ * Comments:
+ * Recomputing every window from the raw records would process each record
+ * size / hop times. Instead time is cut in slices of hop ms, each record
+ * only updates the partial aggregate of its slice (counts per client and
+ * distinct host sets), and a window is the merge of its size / hop
+ * slices. The cost of an emit depends on the number of slices and of
+ * distinct names, not on the event rate.
+ *
+ * Slices live in a ring. As in WindowMode.WATERMARK, a window is emitted
+ * once the watermark (largest timestamp seen - allowed lateness) passes its
+ * end, so the ring also holds the slices that can still receive late
+ * records. Slices are numbered from the first record seen, slice k covers
+ * [origin + k * hop, origin + (k+1) * hop).
+ */
+class SlidingWindowAggregator {
+
+    private final HostTable hosts;
+    private final long hop;
+    private final long allowedLateness;
+    private final int slicesPerWindow;
+    private final Slice[] ring;
+    private final long[] ringSlices;
+
+    private boolean started = false;
+    private long origin;
+    private long watermark = Long.MIN_VALUE;
+    // Slice number right after the next window to emit.
+    private long nextEnd;
+    private long droppedRecords = 0;
+    // Records added so far, see Slice.
+    private long sequence = 0;
+    // Named in the dumps if not null, see WindowAggregate.dump.
+    private String source;
+    // See TailingConnectionsParser.setMetrics.
+    private Metrics metrics;
+    // See TailingConnectionsParser.setSink.
+    private ResultSink sink = ResultSink.stdout(ResultSink.Format.TEXT);
+
+    SlidingWindowAggregator(String hostName, long size, long hop,
+                            long allowedLateness) {
+        this(HostTable.of(hostName), size, hop, allowedLateness);
+    }
+
+    SlidingWindowAggregator(HostTable hosts, long size, long hop,
+                            long allowedLateness) {
+        if (hop <= 0 || size < hop || size % hop != 0) {
+            throw new IllegalArgumentException("Window size " + size +
+                    " must be a multiple of hop " + hop);
+        }
+        this.hosts = hosts;
+        this.hop = hop;
+        this.allowedLateness = allowedLateness;
+        this.slicesPerWindow = (int) (size / hop);
+        int ringSize = slicesPerWindow + (int) (allowedLateness / hop) + 2;
+        this.ring = new Slice[ringSize];
+        this.ringSlices = new long[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Slice();
+            ringSlices[i] = Long.MIN_VALUE;
+        }
+    }
+
+    void setSource(String source) {
+        this.source = source;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setSink(ResultSink sink) {
+        this.sink = sink;
+    }
+
+    /* Same as WindowAggregate.add. */
+    void add(long tsc, String client, String host, int clientId,
+             int hostId) {
+        if (!started) {
+            started = true;
+            origin = tsc;
+            nextEnd = 1;
+        }
+        // Emit first: the windows ending before the new watermark do not
+        // contain tsc, and this frees the ring slots they were using.
+        watermark = Math.max(watermark, tsc - allowedLateness);
+        emitUpToWatermark();
+
+        long slice = Math.floorDiv(tsc - origin, hop);
+        if (slice < nextEnd - slicesPerWindow) {
+            // All the windows it belongs to have been emitted.
+            droppedRecords++;
+            return;
+        }
+        int i = (int) Math.floorMod(slice, (long) ring.length);
+        if (ringSlices[i] != slice) {
+            ring[i].clear();
+            ringSlices[i] = slice;
+        }
+        ring[i].add(client, host, clientId, hostId, ++sequence);
+    }
+
+    private void emitUpToWatermark() {
+        while (origin + nextEnd * hop <= watermark) {
+            // Windows ending before the oldest live slice are empty.
+            long oldest = oldestSliceFrom(nextEnd - slicesPerWindow);
+            if (oldest == Long.MAX_VALUE) {
+                // Nothing left, every window up to the watermark is empty.
+                nextEnd = Math.floorDiv(watermark - origin, hop) + 1;
+                break;
+            }
+            if (oldest >= nextEnd) {
+                nextEnd = oldest + 1;
+                continue;
+            }
+            emit(nextEnd);
+            nextEnd++;
+        }
+    }
+
+    long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /**
+     * Checkpoint, see TailingConnectionsParser. It is read back into an
+     * aggregator built with the same hosts, size, hop and lateness.
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeBoolean(started);
+        out.writeLong(origin);
+        out.writeLong(watermark);
+        out.writeLong(nextEnd);
+        out.writeLong(droppedRecords);
+        out.writeLong(sequence);
+        out.writeInt(ring.length);
+        for (int i = 0; i < ring.length; i++) {
+            out.writeLong(ringSlices[i]);
+            if (ringSlices[i] != Long.MIN_VALUE) {
+                ring[i].writeTo(out);
+            }
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        started = in.readBoolean();
+        origin = in.readLong();
+        watermark = in.readLong();
+        nextEnd = in.readLong();
+        droppedRecords = in.readLong();
+        sequence = in.readLong();
+        if (in.readInt() != ring.length) {
+            throw new IOException("Checkpoint of other sliding windows");
+        }
+        for (int i = 0; i < ring.length; i++) {
+            ringSlices[i] = in.readLong();
+            ring[i].clear();
+            if (ringSlices[i] != Long.MIN_VALUE) {
+                ring[i].readFrom(in);
+            }
+        }
+    }
+
+    private long oldestSliceFrom(long first) {
+        long oldest = Long.MAX_VALUE;
+        for (long slice : ringSlices) {
+            if (slice >= first && slice < oldest) {
+                oldest = slice;
+            }
+        }
+        return oldest;
+    }
+
+    /* Merges the slices [end - slicesPerWindow, end) and writes them to
+       the sink. */
+    private void emit(long end) {
+        long t0 = (metrics != null) ? System.nanoTime() : 0;
+        Slice window = new Slice();
+        for (int i = 0; i < ring.length; i++) {
+            if (ringSlices[i] >= end - slicesPerWindow &&
+                    ringSlices[i] < end) {
+                window.merge(ring[i]);
+            }
+        }
+        try {
+            sink.window(window.result(origin + (end - slicesPerWindow) * hop,
+                    origin + end * hop));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (metrics != null) {
+            metrics.windowEmitted(System.nanoTime() - t0,
+                    window.connectionsPerClient.size());
+        }
+    }
+
+    /**
+     * The partial aggregate of one slice. The peers of a monitored host are
+     * only created once it shows up in the slice. Each peer keeps the
+     * sequence number of the last record it was seen in, so that a window
+     * lists them last seen first, as WindowAggregate does.
+     */
+    private class Slice {
+
+        // Mutable counts, see WindowAggregate.
+        private final HashMap<String, int[]> connectionsPerClient =
+                new HashMap<>();
+        private final HashMap<Integer, HashMap<String, long[]>>
+                connectedToHost = new HashMap<>();
+        private final HashMap<Integer, HashMap<String, long[]>>
+                hostConnectedTo = new HashMap<>();
+
+        void add(String client, String host, int clientId, int hostId,
+                 long seq) {
+            if (hostId >= 0) {
+                see(connectedToHost, hostId, client, seq);
+            }
+            if (clientId >= 0) {
+                see(hostConnectedTo, clientId, host, seq);
+            }
+            count(client)[0]++;
+        }
+
+        private void see(HashMap<Integer, HashMap<String, long[]>> peers,
+                         int id, String name, long seq) {
+            HashMap<String, long[]> names = peers.computeIfAbsent(id,
+                    k -> new HashMap<>());
+            long[] last = names.get(name);
+            if (last == null) {
+                names.put(name, new long[]{seq});
+            } else {
+                last[0] = Math.max(last[0], seq);
+            }
+        }
+
+        private int[] count(String client) {
+            int[] count = connectionsPerClient.get(client);
+            if (count == null) {
+                count = new int[1];
+                connectionsPerClient.put(client, count);
+            }
+            return count;
+        }
+
+        void merge(Slice other) {
+            for (Map.Entry<String, int[]> entry :
+                    other.connectionsPerClient.entrySet()) {
+                count(entry.getKey())[0] += entry.getValue()[0];
+            }
+            merge(connectedToHost, other.connectedToHost);
+            merge(hostConnectedTo, other.hostConnectedTo);
+        }
+
+        private void merge(HashMap<Integer, HashMap<String, long[]>> peers,
+                           HashMap<Integer, HashMap<String, long[]>> others) {
+            for (Map.Entry<Integer, HashMap<String, long[]>> entry :
+                    others.entrySet()) {
+                for (Map.Entry<String, long[]> name :
+                        entry.getValue().entrySet()) {
+                    see(peers, entry.getKey(), name.getKey(),
+                            name.getValue()[0]);
+                }
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(connectionsPerClient.size());
+            for (Map.Entry<String, int[]> entry :
+                    connectionsPerClient.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue()[0]);
+            }
+            writeSets(out, connectedToHost);
+            writeSets(out, hostConnectedTo);
+        }
+
+        private void writeSets(DataOutputStream out,
+                               HashMap<Integer, HashMap<String, long[]>> sets)
+                throws IOException {
+            out.writeInt(sets.size());
+            for (Map.Entry<Integer, HashMap<String, long[]>> entry :
+                    sets.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, long[]> name :
+                        entry.getValue().entrySet()) {
+                    out.writeUTF(name.getKey());
+                    out.writeLong(name.getValue()[0]);
+                }
+            }
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            int clients = in.readInt();
+            for (int i = 0; i < clients; i++) {
+                connectionsPerClient.put(in.readUTF(),
+                        new int[]{in.readInt()});
+            }
+            readSets(in, connectedToHost);
+            readSets(in, hostConnectedTo);
+        }
+
+        private void readSets(DataInputStream in,
+                              HashMap<Integer, HashMap<String, long[]>> sets)
+                throws IOException {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                HashMap<String, long[]> set = new HashMap<>();
+                sets.put(in.readInt(), set);
+                int names = in.readInt();
+                for (int j = 0; j < names; j++) {
+                    set.put(in.readUTF(), new long[]{in.readLong()});
+                }
+            }
+        }
+
+        void clear() {
+            connectionsPerClient.clear();
+            connectedToHost.clear();
+            hostConnectedTo.clear();
+        }
+
+        WindowResult result(long from, long to) {
+            String top = null;
+            int max = 0;
+            for (Map.Entry<String, int[]> entry :
+                    connectionsPerClient.entrySet()) {
+                if (top == null || entry.getValue()[0] > max) {
+                    top = entry.getKey();
+                    max = entry.getValue()[0];
+                }
+            }
+            List<WindowResult.HostPeers> hostPeers = new ArrayList<>();
+            for (int id = 0; id < hosts.size(); id++) {
+                hostPeers.add(new WindowResult.HostPeers(hosts.name(id),
+                        lastSeenFirst(connectedToHost.get(id)), -1,
+                        lastSeenFirst(hostConnectedTo.get(id)), -1));
+            }
+            return new WindowResult(true, from, to, source,
+                    new WindowResult.Count(top, max, 0), null, 0, hostPeers);
+        }
+
+        private List<WindowResult.Peer> lastSeenFirst(
+                HashMap<String, long[]> names) {
+            List<WindowResult.Peer> peers = new ArrayList<>();
+            if (names != null) {
+                List<Map.Entry<String, long[]>> entries =
+                        new ArrayList<>(names.entrySet());
+                entries.sort((a, b) -> Long.compare(b.getValue()[0],
+                        a.getValue()[0]));
+                for (Map.Entry<String, long[]> entry : entries) {
+                    peers.add(new WindowResult.Peer(entry.getKey(), 0, 0, 0));
+                }
+            }
+            return peers;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Bounded memory top-K heavy hitters, using the Space-Saving algorithm
+ * (Metwally, Agrawal, El Abbadi).
+ *
+ * Comments:
+ * Counting every client exactly needs one HashMap entry per distinct
+ * client, and finding the top one walks the whole map at every dump. Here
+ * at most capacity clients are monitored. When a client that is not
+ * monitored shows up, it replaces the monitored client with the smallest
+ * count and inherits that count, which is remembered as its error. So:
+ *      - a count is never underestimated, and overestimated by at most its
+ *        error,
+ *      - any client with more than N / capacity connections is monitored.
+ * The counters are kept in a min-heap indexed by position, so finding the
+ * smallest count is O(1) and a record costs O(log capacity).
+ */
+class SpaceSavingTopK {
+
+    // Monitored clients per requested top client, the larger the more
+    // accurate.
+    static final int DEFAULT_CAPACITY_FACTOR = 10;
+
+    private final int k;
+    private final int capacity;
+    private final HashMap<String, Counter> counters;
+    private final Counter[] heap;
+    private int size = 0;
+    private long total = 0;
+
+    SpaceSavingTopK(int k) {
+        this(k, k * DEFAULT_CAPACITY_FACTOR);
+    }
+
+    SpaceSavingTopK(int k, int capacity) {
+        this.k = k;
+        this.capacity = Math.max(k, capacity);
+        this.counters = new HashMap<>(this.capacity * 2);
+        this.heap = new Counter[this.capacity];
+    }
+
+    static class Counter {
+        private String item;
+        private long count;
+        private long error;
+        private int index;
+
+        String getItem() {
+            return item;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /* count - error is a lower bound of the real count. */
+        long getError() {
+            return error;
+        }
+    }
+
+    void add(String item) {
+        total++;
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter();
+            counter.item = item;
+            counter.count = 1;
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(item, counter);
+            siftUp(counter.index);
+            return;
+        }
+        // Replace the client with the smallest count.
+        counter = heap[0];
+        counters.remove(counter.item);
+        counter.item = item;
+        counter.error = counter.count;
+        counter.count++;
+        counters.put(item, counter);
+        siftDown(0);
+    }
+
+    /* The clients monitored, at most capacity. */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the (at most) k clients with the largest counts, largest first.
+     */
+    List<Counter> top() {
+        List<Counter> top = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            top.add(heap[i]);
+        }
+        top.sort(Comparator.comparingLong(Counter::getCount).reversed());
+        return top.subList(0, Math.min(k, top.size()));
+    }
+
+    /**
+     * @return the largest count a client that is not monitored can have.
+     */
+    long maxError() {
+        return (size < capacity) ? 0 : heap[0].count;
+    }
+
+    long total() {
+        return total;
+    }
+
+    /* Checkpoint, see TailingConnectionsParser. The heap is written in
+       order so that it is restored as is. */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(total);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(heap[i].item);
+            out.writeLong(heap[i].count);
+            out.writeLong(heap[i].error);
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        total = in.readLong();
+        size = in.readInt();
+        if (size > capacity) {
+            throw new IOException("Top " + k + " checkpoint holds " + size +
+                    " counters, more than " + capacity);
+        }
+        counters.clear();
+        for (int i = 0; i < size; i++) {
+            Counter counter = new Counter();
+            counter.item = in.readUTF();
+            counter.count = in.readLong();
+            counter.error = in.readLong();
+            counter.index = i;
+            heap[i] = counter;
+            counters.put(counter.item, counter);
+        }
+    }
+
+    private void siftUp(int i) {
+        Counter counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        Counter counter = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(Counter counter, int i) {
+        heap[i] = counter;
+        counter.index = i;
+    }
+}
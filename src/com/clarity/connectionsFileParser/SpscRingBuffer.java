@@ -0,0 +1,87 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue between exactly one producer thread and one consumer
+ * thread, see TailingPipeline.
+ *
+ * Comments:
+ * The slots are allocated once, offer and poll never allocate or lock. The
+ * two threads only share two counters: tail (next slot to fill, written by
+ * the producer) and head (next slot to empty, written by the consumer),
+ * each published with an ordered write (lazySet) after the slot itself, so
+ * the other side never sees a counter before the slot it covers. Each side
+ * keeps the last value it read of the other counter and only reads it
+ * again when the ring looks full (or empty), so in the common case a
+ * thread touches no cache line written by the other one. For the same
+ * reason head and tail are 128 bytes apart in a padded array instead of
+ * two neighbouring fields.
+ */
+class SpscRingBuffer<E> {
+
+    // Longs, so 128 bytes apart and from the ends of the array.
+    private static final int HEAD = 15;
+    private static final int TAIL = 31;
+    private static final int PADDED_LENGTH = 47;
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLongArray counters = new AtomicLongArray(PADDED_LENGTH);
+    // Producer side.
+    private long cachedHead = 0;
+    // Consumer side.
+    private long cachedTail = 0;
+
+    /**
+     * @param capacity rounded up to a power of 2.
+     */
+    SpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Producer only.
+     * @return false if the ring is full.
+     */
+    boolean offer(E item) {
+        long tail = counters.get(TAIL);
+        if (tail - cachedHead >= slots.length) {
+            cachedHead = counters.get(HEAD);
+            if (tail - cachedHead >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int) tail & mask] = item;
+        counters.lazySet(TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * @return the oldest item, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long head = counters.get(HEAD);
+        if (head >= cachedTail) {
+            cachedTail = counters.get(TAIL);
+            if (head >= cachedTail) {
+                return null;
+            }
+        }
+        int slot = (int) head & mask;
+        E item = (E) slots[slot];
+        slots[slot] = null;
+        counters.lazySet(HEAD, head + 1);
+        return item;
+    }
+}
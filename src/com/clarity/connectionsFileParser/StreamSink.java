@@ -0,0 +1,566 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A ResultSink writing to an OutputStream, in one of the formats of
+ * ResultSink.Format.
+ *
+ * Comments:
+ * Each result is encoded in memory first and handed to the stream in a
+ * single write: results written to stdout by several tailers (see
+ * TailerManager) do not interleave, and a file gets one write per result
+ * instead of one per line. Flushing is left to the flush policy.
+ */
+abstract class StreamSink implements ResultSink {
+
+    private final OutputStream out;
+    // Closed along with the sink.
+    private final boolean ownsOut;
+    private final int flushEvery;
+    private final long flushInterval;
+    private int unflushed = 0;
+    private long lastFlush = System.currentTimeMillis();
+
+    StreamSink(OutputStream out, boolean ownsOut, int flushEvery,
+               long flushInterval) {
+        this.out = out;
+        this.ownsOut = ownsOut;
+        this.flushEvery = flushEvery;
+        this.flushInterval = flushInterval;
+    }
+
+    static StreamSink of(Format format, OutputStream out, boolean ownsOut,
+                         int flushEvery, long flushInterval) {
+        switch (format) {
+            case JSON:
+                return new JsonLines(out, ownsOut, flushEvery, flushInterval);
+            case BINARY:
+                return new Binary(out, ownsOut, flushEvery, flushInterval);
+            default:
+                return new Text(out, ownsOut, flushEvery, flushInterval);
+        }
+    }
+
+    abstract byte[] encode(WindowResult window) throws IOException;
+
+    abstract byte[] encode(String host, byte[] names, int offset, int length,
+                           boolean last) throws IOException;
+
+    @Override
+    public synchronized void window(WindowResult window) throws IOException {
+        write(encode(window));
+    }
+
+    @Override
+    public synchronized void clients(String host, byte[] names, int offset,
+                                     int length, boolean last)
+            throws IOException {
+        write(encode(host, names, offset, length, last));
+    }
+
+    private void write(byte[] result) throws IOException {
+        out.write(result);
+        unflushed++;
+        if ((flushEvery > 0 && unflushed >= flushEvery) ||
+                (flushInterval > 0 &&
+                        System.currentTimeMillis() - lastFlush >= flushInterval)) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        if (ownsOut) {
+            out.close();
+        }
+    }
+
+    /**
+     * System.out as it is when writing: tests and benchmarks replace it.
+     */
+    static class Stdout extends OutputStream {
+        @Override
+        public void write(int b) {
+            System.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+    }
+
+    /**
+     * As printed before sinks existed: a block of lines per window, then
+     * an empty line. The clients of a single host are the names alone,
+     * those of one of several hosts a line "host: names".
+     */
+    static class Text extends StreamSink {
+
+        private final Charset charset = Charset.defaultCharset();
+        // The part of the answer of a host was written.
+        private boolean inClients = false;
+
+        Text(OutputStream out, boolean ownsOut, int flushEvery,
+             long flushInterval) {
+            super(out, ownsOut, flushEvery, flushInterval);
+        }
+
+        @Override
+        byte[] encode(WindowResult window) {
+            StringBuilder out = new StringBuilder();
+            out.append(window.isHopping() ? "Results for window " :
+                    "Results for hour ").append(window.getFrom())
+                    .append(" to ").append(window.getTo())
+                    .append((window.getSource() != null) ?
+                            " (" + window.getSource() + ")" : "")
+                    .append(":\n");
+            out.append("\tMost connections generated by: ");
+            appendCount(out, window.getMostConnections()).append('\n');
+            List<WindowResult.Count> top = window.getTopClients();
+            if (top != null) {
+                out.append("\tTop ").append(top.size()).append(" clients " +
+                        "(unlisted clients have at most ")
+                        .append(window.getTopClientsMaxError()).append("):\n");
+                for (WindowResult.Count count : top) {
+                    appendCount(out.append("\t\t- "), count).append('\n');
+                }
+            }
+            for (WindowResult.HostPeers host : window.getHosts()) {
+                out.append("\tClients who connected to: ")
+                        .append(host.getHost()).append(":\n");
+                appendPeers(out, host.getClients(), host.getClientsEstimate());
+                out.append("\tHosts who ").append(host.getHost())
+                        .append(" connected to:\n");
+                appendPeers(out, host.getConnectedTo(),
+                        host.getConnectedToEstimate());
+            }
+            if (window.getGraph() != null) {
+                appendGraph(out, window.getGraph());
+            }
+            return out.append('\n').toString().getBytes(charset);
+        }
+
+        private static void appendGraph(StringBuilder out, GraphResult graph) {
+            out.append("\tConnection graph: ").append(graph.getConnections())
+                    .append(" connections, ").append(graph.getNames())
+                    .append(" names, ").append(graph.getPairs())
+                    .append(" pairs");
+            if (graph.getMaxError() > 0) {
+                out.append(" (unlisted pairs have at most ")
+                        .append(graph.getMaxError()).append(')');
+            }
+            out.append('\n');
+            out.append("\tTop ").append(graph.getTopPairs().size())
+                    .append(" pairs:\n");
+            for (GraphResult.Pair pair : graph.getTopPairs()) {
+                out.append("\t\t- ").append(pair.getClient()).append(" -> ")
+                        .append(pair.getHost()).append('(');
+                if (pair.getError() > 0) {
+                    out.append(pair.getCount() - pair.getError())
+                            .append("..");
+                }
+                out.append(pair.getCount()).append(")\n");
+            }
+            out.append("\tTop ").append(graph.getTopFanIn().size())
+                    .append(" hosts by fan-in:\n");
+            for (GraphResult.Degree degree : graph.getTopFanIn()) {
+                appendDegree(out.append("\t\t- "), degree);
+            }
+            out.append("\tTop ").append(graph.getTopFanOut().size())
+                    .append(" clients by fan-out:\n");
+            for (GraphResult.Degree degree : graph.getTopFanOut()) {
+                appendDegree(out.append("\t\t- "), degree);
+            }
+            for (GraphResult.Degree degree : graph.getHosts()) {
+                appendDegree(out.append("\tFans of "), degree);
+            }
+        }
+
+        /* name: in N clients (M connections), out N hosts (M connections) */
+        private static void appendDegree(StringBuilder out,
+                                         GraphResult.Degree degree) {
+            out.append(degree.getName()).append(": in ")
+                    .append(degree.getFanIn()).append(" clients (")
+                    .append(degree.getConnectionsIn())
+                    .append(" connections), out ")
+                    .append(degree.getFanOut()).append(" hosts (")
+                    .append(degree.getConnectionsOut())
+                    .append(" connections)\n");
+        }
+
+        /* client(count), or client(min..max) if the count is approximate. */
+        private static StringBuilder appendCount(StringBuilder out,
+                                                 WindowResult.Count count) {
+            out.append(count.getName()).append('(');
+            if (count.getError() > 0) {
+                out.append(count.getCount() - count.getError()).append("..");
+            }
+            return out.append(count.getCount()).append(')');
+        }
+
+        private static void appendPeers(StringBuilder out,
+                                        List<WindowResult.Peer> peers,
+                                        long estimate) {
+            if (estimate >= 0) {
+                out.append("\t\t~").append(estimate).append(" distinct\n");
+                return;
+            }
+            for (WindowResult.Peer peer : peers) {
+                out.append("\t\t- ").append(peer.getName());
+                if (peer.getCount() > 0) {
+                    out.append(" (").append(peer.getCount())
+                            .append(" connections, ").append(peer.getFirstSeen())
+                            .append(" to ").append(peer.getLastSeen())
+                            .append(')');
+                }
+                out.append('\n');
+            }
+        }
+
+        @Override
+        byte[] encode(String host, byte[] names, int offset, int length,
+                      boolean last) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length + 64);
+            if (host != null && !inClients) {
+                out.writeBytes((host + ": ").getBytes(charset));
+            }
+            out.write(names, offset, length);
+            if (host != null && last) {
+                out.write('\n');
+            }
+            inClients = !last;
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * A JSON object per line: {"type": "window", ...} with the fields of
+     * WindowResult, or {"type": "clients", "host": ..., "clients": [...],
+     * "last": ...} for each part of the answer of a scan. Optional fields
+     * (source, topClients, graph, the estimates) are left out when unset.
+     */
+    static class JsonLines extends StreamSink {
+
+        JsonLines(OutputStream out, boolean ownsOut, int flushEvery,
+                  long flushInterval) {
+            super(out, ownsOut, flushEvery, flushInterval);
+        }
+
+        @Override
+        byte[] encode(WindowResult window) {
+            StringBuilder out = new StringBuilder("{\"type\": \"window\"");
+            out.append(", \"hopping\": ").append(window.isHopping())
+                    .append(", \"from\": ").append(window.getFrom())
+                    .append(", \"to\": ").append(window.getTo());
+            if (window.getSource() != null) {
+                appendString(out.append(", \"source\": "), window.getSource());
+            }
+            appendCount(out.append(", \"mostConnections\": "),
+                    window.getMostConnections());
+            if (window.getTopClients() != null) {
+                out.append(", \"topClients\": [");
+                String separator = "";
+                for (WindowResult.Count count : window.getTopClients()) {
+                    appendCount(out.append(separator), count);
+                    separator = ", ";
+                }
+                out.append("], \"topClientsMaxError\": ")
+                        .append(window.getTopClientsMaxError());
+            }
+            out.append(", \"hosts\": [");
+            String separator = "";
+            for (WindowResult.HostPeers host : window.getHosts()) {
+                appendString(out.append(separator).append("{\"host\": "),
+                        host.getHost());
+                appendPeers(out, "clients", host.getClients(),
+                        host.getClientsEstimate());
+                appendPeers(out, "connectedTo", host.getConnectedTo(),
+                        host.getConnectedToEstimate());
+                out.append('}');
+                separator = ", ";
+            }
+            out.append(']');
+            if (window.getGraph() != null) {
+                appendGraph(out.append(", \"graph\": "), window.getGraph());
+            }
+            return out.append("}\n").toString()
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void appendCount(StringBuilder out,
+                                        WindowResult.Count count) {
+            appendString(out.append("{\"name\": "), count.getName());
+            out.append(", \"count\": ").append(count.getCount());
+            if (count.getError() > 0) {
+                out.append(", \"error\": ").append(count.getError());
+            }
+            out.append('}');
+        }
+
+        private static void appendGraph(StringBuilder out, GraphResult graph) {
+            out.append("{\"connections\": ").append(graph.getConnections())
+                    .append(", \"names\": ").append(graph.getNames())
+                    .append(", \"pairs\": ").append(graph.getPairs())
+                    .append(", \"maxError\": ").append(graph.getMaxError())
+                    .append(", \"topPairs\": [");
+            String separator = "";
+            for (GraphResult.Pair pair : graph.getTopPairs()) {
+                appendString(out.append(separator).append("{\"client\": "),
+                        pair.getClient());
+                appendString(out.append(", \"host\": "), pair.getHost());
+                out.append(", \"count\": ").append(pair.getCount());
+                if (pair.getError() > 0) {
+                    out.append(", \"error\": ").append(pair.getError());
+                }
+                out.append('}');
+                separator = ", ";
+            }
+            appendDegrees(out.append("], \"topFanIn\": "), graph.getTopFanIn());
+            appendDegrees(out.append(", \"topFanOut\": "),
+                    graph.getTopFanOut());
+            appendDegrees(out.append(", \"hosts\": "), graph.getHosts());
+            out.append('}');
+        }
+
+        private static void appendDegrees(StringBuilder out,
+                                          List<GraphResult.Degree> degrees) {
+            out.append('[');
+            String separator = "";
+            for (GraphResult.Degree degree : degrees) {
+                appendString(out.append(separator).append("{\"name\": "),
+                        degree.getName());
+                out.append(", \"fanIn\": ").append(degree.getFanIn())
+                        .append(", \"fanOut\": ").append(degree.getFanOut())
+                        .append(", \"connectionsIn\": ")
+                        .append(degree.getConnectionsIn())
+                        .append(", \"connectionsOut\": ")
+                        .append(degree.getConnectionsOut()).append('}');
+                separator = ", ";
+            }
+            out.append(']');
+        }
+
+        private static void appendPeers(StringBuilder out, String key,
+                                        List<WindowResult.Peer> peers,
+                                        long estimate) {
+            out.append(", \"").append(key).append("\": [");
+            String separator = "";
+            for (WindowResult.Peer peer : peers) {
+                appendString(out.append(separator).append("{\"name\": "),
+                        peer.getName());
+                if (peer.getCount() > 0) {
+                    out.append(", \"count\": ").append(peer.getCount())
+                            .append(", \"firstSeen\": ")
+                            .append(peer.getFirstSeen())
+                            .append(", \"lastSeen\": ")
+                            .append(peer.getLastSeen());
+                }
+                out.append('}');
+                separator = ", ";
+            }
+            out.append(']');
+            if (estimate >= 0) {
+                out.append(", \"").append(key).append("Estimate\": ")
+                        .append(estimate);
+            }
+        }
+
+        @Override
+        byte[] encode(String host, byte[] names, int offset, int length,
+                      boolean last) {
+            StringBuilder out = new StringBuilder("{\"type\": \"clients\"");
+            if (host != null) {
+                appendString(out.append(", \"host\": "), host);
+            }
+            out.append(", \"clients\": [");
+            String separator = "";
+            int start = offset;
+            for (int i = offset; i < offset + length; i++) {
+                if (names[i] == ' ') {
+                    appendString(out.append(separator), new String(names,
+                            start, i - start, Charset.defaultCharset()));
+                    separator = ", ";
+                    start = i + 1;
+                }
+            }
+            out.append("], \"last\": ").append(last).append("}\n");
+            return out.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void appendString(StringBuilder out, String s) {
+            if (s == null) {
+                out.append("null");
+                return;
+            }
+            out.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+
+    /**
+     * DataOutputStream records, each starting with its type:
+     *      'W' (window): boolean hopping, long from, long to, string
+     *          source, count mostConnections, int number of top clients
+     *          (-1 if not tracked) and as many counts, long max error of
+     *          the top clients, int number of hosts, and for each: string
+     *          host, peers clients, peers connectedTo, then a boolean
+     *          (false if there is no graph) and the graph: long
+     *          connections, int names, int pairs, long max error, int
+     *          number of top pairs and for each: string client, string
+     *          host, long count, long error, then three lists of degrees
+     *          (top fan-in, top fan-out, monitored hosts), each an int
+     *          number of degrees and for each: string name, long fan-in,
+     *          long fan-out, long connections in, long connections out.
+     *      'C' (clients): string host, int length, the names (each
+     *          followed by a space), boolean last.
+     * A string is a boolean (false for null) then writeUTF, a count a
+     * string name, long count, long error, peers an int number of peers,
+     * each a string name, long count, long first seen, long last seen,
+     * then a long estimate (-1 if none).
+     */
+    static class Binary extends StreamSink {
+
+        Binary(OutputStream out, boolean ownsOut, int flushEvery,
+               long flushInterval) {
+            super(out, ownsOut, flushEvery, flushInterval);
+        }
+
+        @Override
+        byte[] encode(WindowResult window) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte('W');
+            out.writeBoolean(window.isHopping());
+            out.writeLong(window.getFrom());
+            out.writeLong(window.getTo());
+            writeString(out, window.getSource());
+            writeCount(out, window.getMostConnections());
+            List<WindowResult.Count> top = window.getTopClients();
+            out.writeInt((top != null) ? top.size() : -1);
+            if (top != null) {
+                for (WindowResult.Count count : top) {
+                    writeCount(out, count);
+                }
+            }
+            out.writeLong(window.getTopClientsMaxError());
+            out.writeInt(window.getHosts().size());
+            for (WindowResult.HostPeers host : window.getHosts()) {
+                writeString(out, host.getHost());
+                writePeers(out, host.getClients(), host.getClientsEstimate());
+                writePeers(out, host.getConnectedTo(),
+                        host.getConnectedToEstimate());
+            }
+            GraphResult graph = window.getGraph();
+            out.writeBoolean(graph != null);
+            if (graph != null) {
+                writeGraph(out, graph);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static void writeGraph(DataOutputStream out,
+                                       GraphResult graph) throws IOException {
+            out.writeLong(graph.getConnections());
+            out.writeInt(graph.getNames());
+            out.writeInt(graph.getPairs());
+            out.writeLong(graph.getMaxError());
+            out.writeInt(graph.getTopPairs().size());
+            for (GraphResult.Pair pair : graph.getTopPairs()) {
+                writeString(out, pair.getClient());
+                writeString(out, pair.getHost());
+                out.writeLong(pair.getCount());
+                out.writeLong(pair.getError());
+            }
+            for (List<GraphResult.Degree> degrees : List.of(
+                    graph.getTopFanIn(), graph.getTopFanOut(),
+                    graph.getHosts())) {
+                out.writeInt(degrees.size());
+                for (GraphResult.Degree degree : degrees) {
+                    writeString(out, degree.getName());
+                    out.writeLong(degree.getFanIn());
+                    out.writeLong(degree.getFanOut());
+                    out.writeLong(degree.getConnectionsIn());
+                    out.writeLong(degree.getConnectionsOut());
+                }
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s)
+                throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+
+        private static void writeCount(DataOutputStream out,
+                                       WindowResult.Count count)
+                throws IOException {
+            writeString(out, count.getName());
+            out.writeLong(count.getCount());
+            out.writeLong(count.getError());
+        }
+
+        private static void writePeers(DataOutputStream out,
+                                       List<WindowResult.Peer> peers,
+                                       long estimate) throws IOException {
+            out.writeInt(peers.size());
+            for (WindowResult.Peer peer : peers) {
+                writeString(out, peer.getName());
+                out.writeLong(peer.getCount());
+                out.writeLong(peer.getFirstSeen());
+                out.writeLong(peer.getLastSeen());
+            }
+            out.writeLong(estimate);
+        }
+
+        @Override
+        byte[] encode(String host, byte[] names, int offset, int length,
+                      boolean last) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length +
+                    64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte('C');
+            writeString(out, host);
+            out.writeInt(length);
+            out.write(names, offset, length);
+            out.writeBoolean(last);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.util.HashMap;
+
+/**
+ * Interns names so that a name seen many times in a window is stored once,
+ * and every data structure of the window shares the same String.
+ *
+ * Comments:
+ * String.intern() would work too, but its pool is global and lives as long
+ * as the JVM, whereas this table is released along with its window.
+ */
+class SymbolTable {
+
+    private final HashMap<String, String> symbols = new HashMap<>();
+
+    String intern(String name) {
+        String symbol = symbols.putIfAbsent(name, name);
+        return (symbol == null) ? name : symbol;
+    }
+
+    int size() {
+        return symbols.size();
+    }
+}
@@ -0,0 +1,410 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Follows many connections files (e.g. one per tenant) from one JVM: the
+ * tailers registered with follow all run on a few shared threads, and can
+ * be added and removed at any time.
+ *
+ * Comments:
+ * TailingConnectionsParser.run spends nearly all its time waiting for its
+ * file to grow, on a thread of its own that costs a stack and a
+ * WatchService: a few thousand files would be a few thousand sleeping
+ * threads. Virtual threads would make that wait cheap, but they need a
+ * more recent JDK than this project targets (JDK 13). Instead a managed
+ * tailer never blocks: its iterations (see followOnce) are tasks of a
+ * ScheduledThreadPoolExecutor. When an iteration reads nothing, the next
+ * one is scheduled after an adaptive backoff (as in FileChangeWaiter, up to
+ * the downTime of the tailer), and a single WatchService watching the
+ * directories of all the tailers reschedules it right away when its file
+ * changes. The read buffers belong to the worker threads and are lent to
+ * the tailer for each iteration (see LogFollower.ReadBuffers), so an idle
+ * followed file only costs its open channel, its partial line and its
+ * windows: kilobytes.
+ * New files of a directory or a glob are followed as they appear (see
+ * followAll): when the WatchService reports their creation, and in any
+ * case at the next periodic listing of the directory, as the files of a
+ * tailer of the whole directory are discovered.
+ * An iteration of a tailer runs on one thread at a time, not always the
+ * same one. Unlike run, a managed tailer does not give up when its file
+ * stays idle, it is followed until removed, terminated, or the manager is
+ * closed.
+ */
+public class TailerManager implements Closeable {
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadLocal<LogFollower.ReadBuffers> buffers =
+            ThreadLocal.withInitial(LogFollower.ReadBuffers::new);
+    // The registry, by followed file.
+    private final ConcurrentHashMap<File, Entry> entries =
+            new ConcurrentHashMap<>();
+    // For the WatchService: single file tailers by path, the others (a
+    // directory or a glob) by directory.
+    private final ConcurrentHashMap<Path, Entry> byPath =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, Set<Entry>> byDirectory =
+            new ConcurrentHashMap<>();
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private final List<Discovery> discoveries = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+    private WatchService watchService;
+
+    public TailerManager(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(threads, r ->
+                new Thread(r, "tailer-manager-" + count.getAndIncrement()));
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            // Same as FileChangeWaiter, a polling service is no better than
+            // our backoff.
+            if (service.getClass().getSimpleName().contains("Polling")) {
+                service.close();
+            } else {
+                watchService = service;
+                Thread watcher = new Thread(this::dispatchEvents,
+                        "tailer-manager-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            watchService = null;
+        }
+    }
+
+    /**
+     * Starts following the file of tailer, which must not have been run.
+     * @throws IllegalArgumentException if its file is already followed.
+     */
+    public void follow(TailingConnectionsParser tailer) {
+        File file = tailer.getConnectionsFile();
+        Entry entry = new Entry(tailer);
+        if (entries.putIfAbsent(file, entry) != null) {
+            throw new IllegalArgumentException(file + ": already followed");
+        }
+        // Only once it is accepted, a rejected tailer is left as it was.
+        tailer.manage(buffers);
+        Path directory = tailer.getDirectory();
+        if (tailer.isSingleFile()) {
+            byPath.put(file.toPath().toAbsolutePath(), entry);
+        } else {
+            byDirectory.computeIfAbsent(directory,
+                    d -> ConcurrentHashMap.newKeySet()).add(entry);
+        }
+        watch(directory);
+        entry.schedule(0);
+    }
+
+    /**
+     * Follows every producer file of pattern, a tailer of a directory or a
+     * glob that is not run itself, each with a tailer of its own made by
+     * newTailer: the files there now, and from then on the new ones, at
+     * most downTime (of pattern) ms after they appear. A file is only
+     * discovered once: unfollowed or stopped, it is not followed again.
+     * @throws IllegalArgumentException if pattern follows a single file.
+     */
+    public void followAll(TailingConnectionsParser pattern,
+                          Function<File, TailingConnectionsParser> newTailer) {
+        if (pattern.isSingleFile()) {
+            throw new IllegalArgumentException(pattern.getConnectionsFile() +
+                    ": neither a directory nor a glob");
+        }
+        Discovery discovery = new Discovery(pattern, newTailer);
+        discoveries.add(discovery);
+        watch(pattern.getDirectory());
+        discovery.run();
+        long period = Math.max(pattern.getDownTime(),
+                FileChangeWaiter.MIN_BACKOFF_MS);
+        discovery.schedule(period);
+    }
+
+    /**
+     * Stops following file: what was read is processed (and checkpointed,
+     * see TailingConnectionsParser.setCheckpoint) on a worker thread.
+     * @return false if file was not followed.
+     */
+    public boolean unfollow(File file) {
+        Entry entry = entries.remove(file);
+        if (entry == null) {
+            return false;
+        }
+        entry.tailer.terminate();
+        entry.wake();
+        return true;
+    }
+
+    public List<File> getFollowedFiles() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Stops following every file, and waits for the tailers to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Discovery discovery : discoveries) {
+            discovery.cancel();
+        }
+        List<Entry> stopping = new ArrayList<>(entries.values());
+        for (Entry entry : stopping) {
+            unfollow(entry.tailer.getConnectionsFile());
+        }
+        try {
+            for (Entry entry : stopping) {
+                entry.stopped.await();
+            }
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private void watch(Path directory) {
+        if (watchService == null || !watchedDirectories.add(directory)) {
+            return;
+        }
+        try {
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            // The tailers of directory poll with their backoff.
+            e.printStackTrace();
+        }
+    }
+
+    /* The watcher thread: wakes up the tailers of the files that changed. */
+    private void dispatchEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (!(event.context() instanceof Path)) {
+                        // OVERFLOW, wake up everyone in the directory.
+                        wakeAll(directory);
+                        continue;
+                    }
+                    Path name = (Path) event.context();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        discover(directory, name);
+                    }
+                    Entry entry = byPath.get(directory.resolve(name));
+                    if (entry != null) {
+                        entry.wake();
+                    }
+                    for (Entry e : byDirectory.getOrDefault(directory,
+                            Set.of())) {
+                        if (e.tailer.isFollowed(name)) {
+                            e.wake();
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    /* name was created in directory. */
+    private void discover(Path directory, Path name) {
+        for (Discovery discovery : discoveries) {
+            if (discovery.pattern.getDirectory().equals(directory) &&
+                    discovery.pattern.isFollowed(name)) {
+                File file = directory.resolve(name).toFile();
+                if (file.isFile()) {
+                    discovery.found(file);
+                }
+            }
+        }
+    }
+
+    private void wakeAll(Path directory) {
+        for (Entry entry : entries.values()) {
+            if (entry.tailer.getDirectory().equals(directory)) {
+                entry.wake();
+            }
+        }
+    }
+
+    /**
+     * The producer files of a directory or a glob, see followAll.
+     */
+    private class Discovery {
+
+        private final TailingConnectionsParser pattern;
+        private final Function<File, TailingConnectionsParser> newTailer;
+        /* Guarded by this. */
+        private final Set<File> known = new HashSet<>();
+        private ScheduledFuture<?> periodic;
+
+        Discovery(TailingConnectionsParser pattern,
+                  Function<File, TailingConnectionsParser> newTailer) {
+            this.pattern = pattern;
+            this.newTailer = newTailer;
+        }
+
+        /* Follows the files that appeared since the last look. */
+        synchronized void run() {
+            for (File file : pattern.listProducerFiles()) {
+                found(file);
+            }
+        }
+
+        synchronized void found(File file) {
+            if (closed || !known.add(file)) {
+                return;
+            }
+            try {
+                follow(newTailer.apply(file));
+            } catch (IllegalArgumentException e) {
+                // Already followed, by a tailer of its own.
+            }
+        }
+
+        synchronized void schedule(long period) {
+            if (!closed) {
+                periodic = scheduler.scheduleWithFixedDelay(this::run,
+                        period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /* Once closed: no file is followed after that. */
+        synchronized void cancel() {
+            if (periodic != null) {
+                periodic.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A followed file and the scheduling of its tailer.
+     */
+    private class Entry {
+
+        private final TailingConnectionsParser tailer;
+        private final long maxBackoff;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private boolean started = false;
+        /* Guarded by this. */
+        private ScheduledFuture<?> next;
+        // Of next: an iteration cancelled by wake may have started anyway.
+        private long generation = 0;
+        private boolean running = false;
+        private boolean wokenUp = false;
+        private long backoff = FileChangeWaiter.MIN_BACKOFF_MS;
+
+        Entry(TailingConnectionsParser tailer) {
+            this.tailer = tailer;
+            this.maxBackoff = Math.max(tailer.getDownTime(),
+                    FileChangeWaiter.MIN_BACKOFF_MS);
+        }
+
+        /* One iteration of the tailer, on a worker thread. */
+        private void run(long scheduled) {
+            synchronized (this) {
+                if (scheduled != generation) {
+                    // Superseded by the iteration wake scheduled instead.
+                    return;
+                }
+                running = true;
+                wokenUp = false;
+                next = null;
+            }
+            boolean progress = false;
+            boolean done = !tailer.isRunning();
+            if (!done) {
+                try {
+                    if (!started) {
+                        started = true;
+                        tailer.restoreCheckpoint();
+                    }
+                    progress = tailer.followOnce();
+                } catch (Exception e) {
+                    System.err.println(tailer.getConnectionsFile() + ": Fatal");
+                    e.printStackTrace();
+                    done = true;
+                }
+            }
+            if (done) {
+                stop();
+                return;
+            }
+            synchronized (this) {
+                running = false;
+                if (progress || wokenUp) {
+                    backoff = FileChangeWaiter.MIN_BACKOFF_MS;
+                    schedule(0);
+                } else {
+                    schedule(backoff);
+                    backoff = Math.min(backoff * 2, maxBackoff);
+                }
+            }
+        }
+
+        private synchronized void schedule(long delay) {
+            long scheduled = ++generation;
+            next = scheduler.schedule(() -> run(scheduled), delay,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /* Runs the tailer as soon as possible, or again right after the
+           iteration in progress. */
+        synchronized void wake() {
+            if (running) {
+                wokenUp = true;
+            } else if (next != null && next.cancel(false)) {
+                backoff = FileChangeWaiter.MIN_BACKOFF_MS;
+                schedule(0);
+            }
+        }
+
+        private void stop() {
+            try {
+                tailer.finish();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                tailer.closeFiles();
+                File file = tailer.getConnectionsFile();
+                entries.remove(file, this);
+                byPath.remove(file.toPath().toAbsolutePath(), this);
+                Set<Entry> inDirectory = byDirectory.get(tailer.getDirectory());
+                if (inDirectory != null) {
+                    inDirectory.remove(this);
+                }
+                stopped.countDown();
+            }
+        }
+    }
+}
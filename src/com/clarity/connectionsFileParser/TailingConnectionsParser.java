@@ -3,39 +3,224 @@
 package com.clarity.connectionsFileParser;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 public class TailingConnectionsParser implements Runnable {
 
     private static final long DEFAULT_BLOCKING_TIME_MS = 2000;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS =
+            TimeUnit.SECONDS.toMillis(10);
+    static final int CHECKPOINT_MAGIC = 0x434B5054; // "CKPT"
+    static final int CHECKPOINT_VERSION = 3;
+    // Records read ahead per file when merging several files.
+    private static final int MERGE_QUEUE_SIZE = 4096;
+    // How out of order a producer file may be, see pollMerged.
+    private static final long MERGE_DISORDER_BOUND_MS =
+            TimeUnit.MINUTES.toMillis(5);
+    // connections.log.1, ... are read by the follower of connections.log.
+    private static final Pattern ROTATED = Pattern.compile(".*\\.[0-9]+");
+    private static final long DEFAULT_ALLOWED_LATENESS_MS =
+            TimeUnit.MINUTES.toMillis(5);
     private long downTime = DEFAULT_BLOCKING_TIME_MS;
     private int MAX_RETRIES_AT_TAIL = 5;
     private AtomicBoolean run = new AtomicBoolean(true);
 
-    private long filePointer = 0;
+    /* The followed files, see LogFollower. Only connectionsFile, unless
+       it is a directory or a glob, in which case every producer file in it
+       is followed and their records are merged, see pollMerged. */
+    private final List<Source> sources = new ArrayList<>();
+    private final Set<File> followedFiles = new HashSet<>();
+    private Path directory;
+    private PathMatcher matcher;
+    private long lastDiscovery = 0;
+
+    /* Checkpoints, see setCheckpoint. */
+    private File checkpointFile;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL_MS;
+    private long lastCheckpoint = 0;
+
+    /* Pipeline mode, see setPipeline. */
+    private int pipelineParsers = 0;
+    private TailingPipeline pipeline;
+    private String pipelineStats;
+
+    /* See setSink. */
+    private ResultSink sink = ResultSink.stdout(ResultSink.Format.TEXT);
+
+    /* Managed mode, see TailerManager. */
+    private ThreadLocal<LogFollower.ReadBuffers> sharedBuffers;
+    // Named in the dumps, tailers of a TailerManager share stdout.
+    private String source;
+
+    /* See setMetrics. Counted by the thread that aggregates (the records)
+       and the one that reads (the bytes), added to metrics once per poll. */
+    private Metrics metrics;
+    private long recordsProcessed = 0;
+    private long lateRecords = 0;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long reportedDropped = 0;
+    private long reportedBytes = 0;
+
     private long interval;
+    private long hop;
     private long now = 0;
     private long lastDumpTime = 0;
-    private LinkedList<String> hostConnectedTo = new LinkedList<>();
-    private LinkedList<String> connectedToHost = new LinkedList<>();
-    private HashMap<String, Integer> connectionsPerClient =
-            new HashMap<>();
+    private WindowAggregate aggregate;
+    // 0: count every client exactly, otherwise report the topK clients.
+    private int topK = 0;
+    private PeerTracking peerTracking = PeerTracking.NAMES;
+    // 0: no connection graph, see setGraph.
+    private int graphTopN = 0;
+    private int graphMaxEdges = ConnectionGraph.DEFAULT_MAX_EDGES;
+
+    /* WATERMARK mode: the windows still open, by start time. */
+    private WindowMode windowMode;
+    private long allowedLateness;
+    private TreeMap<Long, WindowAggregate> windows = new TreeMap<>();
+    private long origin = 0;
+    private long watermark = Long.MIN_VALUE;
+    private long droppedRecords = 0;
+
+    /* HOPPING and SLIDING modes. */
+    private SlidingWindowAggregator slidingWindows;
 
     private File connectionsFile;
-    private String hostName;
+    // The monitored hosts, each gets its own results.
+    private HostTable hosts;
 
 
-    public TailingConnectionsParser(long downTime, long interval,
+    /**
+     * TUMBLING: option 1 of run(), late records are counted in the current
+     * window.
+     * WATERMARK: option 2 of run(), records are counted in the window of
+     * their own timestamp.
+     * HOPPING: windows of interval ms reported every hop ms, late records
+     * are handled as in WATERMARK, see SlidingWindowAggregator.
+     * SLIDING: HOPPING with a small hop (interval / 60 by default), a
+     * window that slides along with the log.
+     */
+    public enum WindowMode {
+        TUMBLING,
+        WATERMARK,
+        HOPPING,
+        SLIDING
+    }
+
+    /**
+     * What is kept about the clients who connected to hostName and the
+     * hosts hostName connected to, in TUMBLING and WATERMARK windows.
+     * NAMES: the distinct names.
+     * STATS: the distinct names, with count and first/last time seen.
+     * HYPERLOGLOG: only an estimate of how many distinct names, in fixed
+     * memory, for huge cardinalities.
+     */
+    public enum PeerTracking {
+        NAMES,
+        STATS,
+        HYPERLOGLOG
+    }
+
+    /**
+     * Follows all of hostNames in a single pass, see HostTable.
+     */
+    public TailingConnectionsParser(long downTime, long interval, long hop,
                                     File connectionsFile,
-                                    String hostName) {
+                                    List<String> hostNames,
+                                    WindowMode windowMode,
+                                    long allowedLateness) {
         this.downTime = downTime;
         this.interval = interval;
-        this.hostName = hostName;
+        this.hosts = new HostTable(hostNames);
         this.connectionsFile = connectionsFile;
+        Path path = connectionsFile.toPath().toAbsolutePath();
+        String name = connectionsFile.getName();
+        if (connectionsFile.isDirectory()) {
+            this.directory = path;
+            this.matcher = p -> true;
+        } else {
+            this.directory = path.getParent();
+            if (name.matches(".*[*?\\[{].*")) {
+                this.matcher = FileSystems.getDefault().getPathMatcher(
+                        "glob:" + name);
+            }
+        }
+        this.windowMode = windowMode;
+        this.allowedLateness = allowedLateness;
+        this.hop = hop;
+        this.aggregate = newAggregate();
+        if (windowMode == WindowMode.HOPPING ||
+                windowMode == WindowMode.SLIDING) {
+            slidingWindows = new SlidingWindowAggregator(hosts, interval,
+                    hop, allowedLateness);
+        }
+    }
+
+    public TailingConnectionsParser(long downTime, long interval, long hop,
+                                    File connectionsFile,
+                                    String hostName, WindowMode windowMode,
+                                    long allowedLateness) {
+        this(downTime, interval, hop, connectionsFile, List.of(hostName),
+                windowMode, allowedLateness);
+    }
+
+    public TailingConnectionsParser(long downTime, long interval,
+                                    File connectionsFile,
+                                    String hostName, WindowMode windowMode,
+                                    long allowedLateness) {
+        this(downTime, interval, defaultHop(interval, windowMode),
+                connectionsFile, hostName, windowMode, allowedLateness);
+    }
+
+    public TailingConnectionsParser(long downTime, long interval,
+                                    File connectionsFile,
+                                    String hostName) {
+        this(downTime, interval, connectionsFile, hostName,
+                WindowMode.TUMBLING, DEFAULT_ALLOWED_LATENESS_MS);
+    }
+
+    public TailingConnectionsParser(File connectionsFile,
+                                    String hostName, WindowMode windowMode) {
+        this(DEFAULT_BLOCKING_TIME_MS, TimeUnit.HOURS.toMillis(1),
+                connectionsFile, hostName, windowMode,
+                DEFAULT_ALLOWED_LATENESS_MS);
+    }
+
+    public TailingConnectionsParser(File connectionsFile,
+                                    String hostName, WindowMode windowMode,
+                                    long interval, long hop) {
+        this(connectionsFile, List.of(hostName), windowMode, interval, hop);
+    }
+
+    public TailingConnectionsParser(File connectionsFile,
+                                    List<String> hostNames,
+                                    WindowMode windowMode,
+                                    long interval, long hop) {
+        this(DEFAULT_BLOCKING_TIME_MS, interval, hop, connectionsFile,
+                hostNames, windowMode, DEFAULT_ALLOWED_LATENESS_MS);
+    }
+
+    /* A SLIDING window moves by 1/60th of its size, e.g. every minute for
+       an hour. */
+    public static long defaultHop(long interval, WindowMode windowMode) {
+        if (windowMode == WindowMode.SLIDING) {
+            return Math.max(1, interval / 60);
+        }
+        return interval;
     }
 
     public TailingConnectionsParser(File connectionsFile,
@@ -83,74 +268,586 @@ public class TailingConnectionsParser implements Runnable {
      *      will run behind by 5m, and the drift will become large very quickly.
      *      However, this option is better is strict correctness is necessary.
      *
-     *      I chose to implement option 1, although could have implemented 2
-     *      if necessary.
+     *      I chose to implement option 1 by default. Option 2 is available
+     *      as WindowMode.WATERMARK: rather than two sets of data structures
+     *      it keeps one WindowAggregate per window still open, keyed by
+     *      window start, and only dumps a window once the watermark (the
+     *      largest timestamp seen minus the allowed lateness) passes its
+     *      end, see processRecordWithWatermark. Memory stays bounded since
+     *      at most interval + lateness worth of windows are open.
      */
     @Override
     public void run() {
-        try {
+        try (FileChangeWaiter waiter = new FileChangeWaiter(directory,
+                this::isFollowed, downTime, true)) {
             /* Wait MAX_RETRIES_AT_TAIL * downTime MS
                to see if new content has arrived and otherwise assume
                producer has finished.  */
-            int numTries = MAX_RETRIES_AT_TAIL;
+            long maxIdleTime = MAX_RETRIES_AT_TAIL * downTime;
+            long idleSince = -1;
+            restoreCheckpoint();
+            startPipeline();
             while (run.get()) {
-                // Check if we need to log.
-                if ((now - lastDumpTime) > interval) {
-                    dumpResults(lastDumpTime, now);
-                    lastDumpTime = now;
-                    renewDataStructures();
-                }
-                /* Important for this thread to sleep an amount of time on
-                * every loop instead of busy waiting, otherwise we would
-                * WASTE CPU TIME. This downTime needs to be set accordingly. */
-                Thread.sleep(downTime);
-                long len = connectionsFile.length();
-                if (len < filePointer) {
-                    // Log was deleted or corrupted.
-                    System.err.println("Log file has been deleted or reset. " +
-                            "Restarting");
-                    filePointer = len;
-                } else if (len > filePointer) {
+                if (followOnce()) {
                     // Producer must have added content to log.
-                    // Read a new chunk of data.
-                    numTries = MAX_RETRIES_AT_TAIL;
-                    filePointer = processFileChunk();
-                } else {
-                    if (--numTries == 0) {
-                        break;
-                    }
+                    // Check again right away as more may have been written
+                    // meanwhile.
+                    idleSince = -1;
+                    waiter.dataSeen();
+                    continue;
+                }
+                long time = System.currentTimeMillis();
+                if (idleSince < 0) {
+                    idleSince = time;
+                } else if (time - idleSince >= maxIdleTime) {
+                    break;
                 }
+                /* Important for this thread to block on every idle loop
+                * instead of busy waiting, otherwise we would WASTE CPU
+                * TIME. We wake up as soon as the file is modified (or after
+                * an adaptive backoff if file events are not available), and
+                * at most after downTime, see FileChangeWaiter. */
+                waiter.await();
             }
+            finish();
         } catch (Exception e) {
             System.err.println("Fatal");
             e.printStackTrace();
+            if (pipeline != null) {
+                pipeline.abort(e);
+            }
+        } finally {
+            if (pipeline != null) {
+                pipelineStats = pipeline.getStats();
+                System.err.println(pipelineStats);
+                pipeline = null;
+            }
+            closeFiles();
+        }
+    }
+
+    /**
+     * One iteration of run, without the waiting: dumps what is due and
+     * reads what was appended to the followed files.
+     * @return true if anything was read.
+     * @throws IOException
+     */
+    boolean followOnce() throws IOException {
+        if (pipeline == null) {
+            // Check if we need to log.
+            dumpResultsIfIntervalOver();
+            checkpointIfDue();
+            discoverFiles();
+        }
+        boolean progress = pollFiles();
+        if (metrics != null) {
+            reportPosition();
+            if (pipeline == null) {
+                reportRecords();
+            }
+        }
+        return progress;
+    }
+
+    /* The end of run: what was read is processed and checkpointed, and
+       the results are written out. */
+    void finish() throws IOException {
+        if (pipeline != null) {
+            pipeline.close();
+        } else if (checkpointFile != null) {
+            // The records held by pollMerged are in the checkpoint.
+            saveCheckpoint();
+        } else {
+            merge(Long.MAX_VALUE);
+        }
+        sink.flush();
+    }
+
+    void closeFiles() {
+        for (Source source : sources) {
+            source.follower.close();
+        }
+        if (metrics != null) {
+            metrics.stopped(this);
+        }
+    }
+
+    boolean isRunning() {
+        return run.get();
+    }
+
+    /**
+     * Prepares the tailer to be run by a TailerManager rather than by run:
+     * the followers read into buffers shared by the tailers polled on the
+     * same thread, and the dumps name the followed file.
+     */
+    void manage(ThreadLocal<LogFollower.ReadBuffers> sharedBuffers) {
+        this.sharedBuffers = sharedBuffers;
+        this.source = connectionsFile.getPath();
+        if (slidingWindows != null) {
+            slidingWindows.setSource(source);
+        }
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    File getConnectionsFile() {
+        return connectionsFile;
+    }
+
+    /* Neither a directory nor a glob. */
+    boolean isSingleFile() {
+        return matcher == null;
+    }
+
+    long getDownTime() {
+        return downTime;
+    }
+
+    /**
+     * Reads, parses and aggregates the followed file on separate threads,
+     * see TailingPipeline: a slow dump to stdout does not hold back the
+     * reading anymore, and several parsers can decode the records. To be
+     * called before run.
+     * Only for a single followed file in the text format, and without
+     * checkpoints: otherwise run reads on its own thread as usual.
+     * @param parsers number of parser threads, 0 to read on the thread of
+     *                run.
+     */
+    public void setPipeline(int parsers) {
+        pipelineParsers = parsers;
+    }
+
+    /**
+     * @return the throughput and waiting time of each stage of the last
+     * pipelined run, or null.
+     */
+    public String getPipelineStats() {
+        return pipelineStats;
+    }
+
+    private void startPipeline() {
+        if (pipelineParsers <= 0) {
+            return;
+        }
+        if (matcher != null || checkpointFile != null) {
+            System.err.println("Pipeline only follows a single file without " +
+                    "checkpoints, reading on a single thread");
+            return;
+        }
+        discoverFiles();
+        // From now on the windows belong to the aggregator thread.
+        pipeline = new TailingPipeline(sources.get(0).follower, hosts,
+                pipelineParsers, this::processBatch);
+    }
+
+    /* The aggregator stage of the pipeline. */
+    private void processBatch(TailingPipeline.RecordBatch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            if (processRecord(batch.tsc[i], batch.client[i], batch.host[i],
+                    batch.clientId[i], batch.hostId[i])) {
+                dumpResultsIfIntervalOver();
+            }
+        }
+        if (metrics != null) {
+            reportRecords();
+        }
+    }
+
+    /* Whether changes to the file name (in directory) concern us. */
+    boolean isFollowed(Path name) {
+        if (matcher == null) {
+            return name.equals(connectionsFile.toPath().getFileName());
+        }
+        String s = name.toString();
+        return matcher.matches(name) && !ROTATED.matcher(s).matches() &&
+                !s.endsWith(ConnectionsIndex.SUFFIX);
+    }
+
+    /**
+     * Directory and glob modes: starts following the producer files that
+     * appeared since the last look, at most every downTime ms. Rotated
+     * files are not followed on their own, the follower of the active file
+     * reads them to the end before switching, see LogFollower.
+     */
+    private void discoverFiles() {
+        if (matcher == null) {
+            if (sources.isEmpty()) {
+                follow(connectionsFile);
+            }
+            return;
+        }
+        long time = System.currentTimeMillis();
+        if (lastDiscovery != 0 && time - lastDiscovery < downTime) {
+            return;
+        }
+        lastDiscovery = time;
+        for (File f : listProducerFiles()) {
+            if (!followedFiles.contains(f)) {
+                follow(f);
+            }
+        }
+    }
+
+    /**
+     * Directory and glob modes: the producer files there now, sorted.
+     */
+    List<File> listProducerFiles() {
+        List<File> producerFiles = new ArrayList<>();
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return producerFiles;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.isFile() && isFollowed(f.toPath().getFileName())) {
+                producerFiles.add(f);
+            }
+        }
+        return producerFiles;
+    }
+
+    private void follow(File f) {
+        followedFiles.add(f);
+        sources.add(new Source((sharedBuffers != null) ?
+                new LogFollower(f, hosts, sharedBuffers) :
+                new LogFollower(f, hosts)));
+    }
+
+    /**
+     * Reads what was appended to the followed files.
+     * @return true if anything was read.
+     * @throws IOException
+     */
+    private boolean pollFiles() throws IOException {
+        if (pipeline != null) {
+            return pipeline.readChunk();
+        }
+        if (sources.size() == 1) {
+            // Stops when the interval is overrun, so that the results are
+            // dumped before going on, see processRecord.
+            return sources.get(0).follower.poll(this::processRecord);
+        }
+        return pollMerged();
+    }
+
+    /**
+     * Several producers: their records are merged by timestamp into a
+     * single stream, up to MERGE_QUEUE_SIZE records ahead per file. The
+     * oldest record read is held until every file that has nothing more
+     * read ahead has read past it, so that a producer that writes in
+     * batches is not counted after the newer records of the others: the
+     * merged stream is only as out of order as each file is, which the
+     * window modes already handle.
+     * The files are out of order by at most MERGE_DISORDER_BOUND_MS (five
+     * minutes), and a file does not hold back the others for longer than
+     * that: neither once it is further behind them (in the timestamps),
+     * nor once it has not been written to for that long (a stopped
+     * producer). If it resumes, its records are late and treated as such
+     * by the window mode (counted in the current window, or in their own
+     * within the allowed lateness). What is still held when the tailer
+     * stops is processed then, see finish.
+     * @return true if anything was read.
+     * @throws IOException
+     */
+    private boolean pollMerged() throws IOException {
+        boolean progress = false;
+        long time = System.currentTimeMillis();
+        for (Source source : sources) {
+            if (source.queue.size() < MERGE_QUEUE_SIZE) {
+                source.full = false;
+                if (source.follower.poll(source)) {
+                    source.lastRead = time;
+                    progress = true;
+                }
+            }
         }
+        return merge(time) || progress;
     }
 
     /**
-     * Walks the hashtable to identify client who created the largest number
-     * of connections.
-     * NB: There may be more than one client that has this maximum, this
-     * function can easily be modified to reflect that if necessary.
-     * @return
+     * Processes the records read ahead in timestamp order, see pollMerged.
+     * @param time now, or Long.MAX_VALUE to process them all.
+     * @return true if any was processed, or if a file has more to read.
      */
-    private String findClientWhoCreatedMostConnections() {
-        String clientWhoGeneratedMostConnections = null;
-        int maxNumberOfConnections = 0;
-        for (Map.Entry<String, Integer> entry :
-                connectionsPerClient.entrySet()) {
-            String client = entry.getKey();
-            Integer numberOfConnections = entry.getValue();
-            if (clientWhoGeneratedMostConnections == null) {
-                clientWhoGeneratedMostConnections = client;
-                maxNumberOfConnections = numberOfConnections;
+    private boolean merge(long time) {
+        boolean progress = false;
+        while (true) {
+            Source next = null;
+            for (Source source : sources) {
+                PendingRecord head = source.queue.peek();
+                if (head != null && (next == null ||
+                        head.tsc < next.queue.peek().tsc)) {
+                    next = source;
+                }
+            }
+            if (next == null) {
+                return progress;
+            }
+            long tsc = next.queue.peek().tsc;
+            for (Source source : sources) {
+                if (!source.queue.isEmpty() || time == Long.MAX_VALUE) {
+                    continue;
+                }
+                if (source.full) {
+                    // It has more to read, merge again once refilled.
+                    return true;
+                }
+                if (source.mayPrecede(tsc, time)) {
+                    return progress;
+                }
+            }
+            PendingRecord r = next.queue.poll();
+            progress = true;
+            if (processRecord(r.tsc, r.client, r.host, r.clientId,
+                    r.hostId)) {
+                dumpResultsIfIntervalOver();
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the tailer to checkpointFile every checkpointInterval ms
+     * and when run ends, and resumes from it when run starts, instead of
+     * reading the followed files again from the start. To be called before
+     * run.
+     *
+     * Comments:
+     * A checkpoint holds the position in each followed file (with the key
+     * of the file, see LogFollower), the records read ahead but not merged
+     * yet, and the windows in progress, so that no record is counted twice
+     * or lost and the partial window is reported as if there had been no
+     * restart. It is a DataOutputStream snapshot written to a temporary
+     * file, synced, then renamed over the previous one: a crash leaves
+     * either the old or the new checkpoint, never half of one. Its size
+     * only depends on the open windows, so restarting takes the same time
+     * however large the log has grown.
+     * A checkpoint taken with other hosts or window options is ignored.
+     */
+    public void setCheckpoint(File checkpointFile, long checkpointInterval) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    private void checkpointIfDue() throws IOException {
+        long time = System.currentTimeMillis();
+        if (checkpointFile != null &&
+                time - lastCheckpoint >= checkpointInterval) {
+            saveCheckpoint();
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        for (Source source : sources) {
+            if (source.follower.isDraining()) {
+                // Try again on the next loop.
+                return;
             }
-            if (numberOfConnections > maxNumberOfConnections) {
-                maxNumberOfConnections = numberOfConnections;
-                clientWhoGeneratedMostConnections = client;
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(file, 1 << 16))) {
+            writeCheckpoint(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(CHECKPOINT_VERSION);
+        writeOptions(out);
+        out.writeLong(now);
+        out.writeLong(lastDumpTime);
+        aggregate.writeTo(out);
+        out.writeLong(origin);
+        out.writeLong(watermark);
+        out.writeLong(droppedRecords);
+        out.writeInt(windows.size());
+        for (Map.Entry<Long, WindowAggregate> window : windows.entrySet()) {
+            out.writeLong(window.getKey());
+            window.getValue().writeTo(out);
+        }
+        if (slidingWindows != null) {
+            slidingWindows.writeTo(out);
+        }
+        out.writeInt(sources.size());
+        for (Source source : sources) {
+            out.writeUTF(source.follower.getFile().getPath());
+            source.follower.writeTo(out);
+            out.writeInt(source.queue.size());
+            for (PendingRecord r : source.queue) {
+                out.writeLong(r.tsc);
+                out.writeUTF(r.client);
+                out.writeUTF(r.host);
+            }
+        }
+    }
+
+    /* What the windows depend on, a checkpoint is only resumed with the
+       same. */
+    private void writeOptions(DataOutputStream out) throws IOException {
+        out.writeUTF(connectionsFile.getPath());
+        out.writeInt(windowMode.ordinal());
+        out.writeLong(interval);
+        out.writeLong(hop);
+        out.writeLong(allowedLateness);
+        out.writeInt(topK);
+        out.writeInt(peerTracking.ordinal());
+        out.writeInt(graphTopN);
+        out.writeInt(graphMaxEdges);
+        out.writeInt(hosts.size());
+        for (int id = 0; id < hosts.size(); id++) {
+            out.writeUTF(hosts.name(id));
+        }
+    }
+
+    void restoreCheckpoint() throws IOException {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(checkpointFile), 1 << 16))) {
+            ByteArrayOutputStream options = new ByteArrayOutputStream();
+            writeOptions(new DataOutputStream(options));
+            if (in.readInt() != CHECKPOINT_MAGIC ||
+                    in.readInt() != CHECKPOINT_VERSION ||
+                    !Arrays.equals(in.readNBytes(options.size()),
+                            options.toByteArray())) {
+                System.err.println(checkpointFile + ": checkpoint of " +
+                        "other options, starting over");
+                return;
+            }
+            readCheckpoint(in);
+        } catch (IOException e) {
+            System.err.println(checkpointFile + ": unreadable checkpoint, " +
+                    "starting over");
+            e.printStackTrace();
+            resetState();
+        }
+    }
+
+    private void readCheckpoint(DataInputStream in) throws IOException {
+        now = in.readLong();
+        lastDumpTime = in.readLong();
+        aggregate.readFrom(in);
+        origin = in.readLong();
+        watermark = in.readLong();
+        droppedRecords = in.readLong();
+        int openWindows = in.readInt();
+        for (int i = 0; i < openWindows; i++) {
+            WindowAggregate window = newAggregate();
+            windows.put(in.readLong(), window);
+            window.readFrom(in);
+        }
+        if (slidingWindows != null) {
+            slidingWindows.readFrom(in);
+        }
+        int files = in.readInt();
+        for (int i = 0; i < files; i++) {
+            File f = new File(in.readUTF());
+            follow(f);
+            Source source = sources.get(sources.size() - 1);
+            if (!source.follower.readFrom(in)) {
+                System.err.println(f + ": not the checkpointed file " +
+                        "anymore, reading it from the start");
+            }
+            int pending = in.readInt();
+            for (int r = 0; r < pending; r++) {
+                long tsc = in.readLong();
+                String client = in.readUTF();
+                String host = in.readUTF();
+                source.record(tsc, client, host, hosts.find(client),
+                        hosts.find(host));
             }
         }
-        return (clientWhoGeneratedMostConnections + "(" + maxNumberOfConnections + ")");
+    }
+
+    /**
+     * Where the windows are written, stdout as text by default. The sink
+     * is flushed when run ends, but not closed: it may be shared by
+     * several tailers. To be called before run.
+     */
+    public void setSink(ResultSink sink) {
+        this.sink = sink;
+        if (slidingWindows != null) {
+            slidingWindows.setSink(sink);
+        }
+    }
+
+    /**
+     * Reports what the tailer is doing to metrics, see Metrics, or nothing
+     * if null (the default). To be called before run.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        if (slidingWindows != null) {
+            slidingWindows.setMetrics(metrics);
+        }
+    }
+
+    /* On the thread that aggregates. */
+    private void reportRecords() {
+        long dropped = getDroppedRecords();
+        metrics.recordsProcessed(this, recordsProcessed, lateRecords,
+                maxTimestamp);
+        metrics.recordsDropped(dropped - reportedDropped);
+        recordsProcessed = 0;
+        lateRecords = 0;
+        reportedDropped = dropped;
+    }
+
+    /* On the thread that reads. */
+    private void reportPosition() throws IOException {
+        long bytes = 0;
+        long lag = 0;
+        for (Source source : sources) {
+            bytes += source.follower.getBytesConsumed();
+            lag += source.follower.lag();
+        }
+        metrics.bytesRead(bytes - reportedBytes);
+        metrics.lag(this, lag);
+        reportedBytes = bytes;
+    }
+
+    /* Back to the state of a new tailer. */
+    private void resetState() {
+        for (Source source : sources) {
+            source.follower.close();
+        }
+        sources.clear();
+        followedFiles.clear();
+        now = 0;
+        lastDumpTime = 0;
+        aggregate = newAggregate();
+        origin = 0;
+        watermark = Long.MIN_VALUE;
+        droppedRecords = 0;
+        reportedDropped = 0;
+        reportedBytes = 0;
+        windows.clear();
+        if (slidingWindows != null) {
+            slidingWindows = new SlidingWindowAggregator(hosts, interval,
+                    hop, allowedLateness);
+            slidingWindows.setSource(source);
+            slidingWindows.setMetrics(metrics);
+            slidingWindows.setSink(sink);
+        }
+    }
+
+    private void dumpResultsIfIntervalOver() {
+        if ((now - lastDumpTime) > interval) {
+            dumpResults(lastDumpTime, now);
+            lastDumpTime = now;
+            renewDataStructures();
+        }
     }
 
     /**
@@ -158,9 +855,7 @@ public class TailingConnectionsParser implements Runnable {
      * Garbage Collection and cleaned up automatically by GC.
      */
     private void renewDataStructures() {
-        connectionsPerClient = new HashMap<>();
-        connectedToHost = new LinkedList<>();
-        hostConnectedTo = new LinkedList<>();
+        aggregate = newAggregate();
     }
 
     /**
@@ -169,74 +864,190 @@ public class TailingConnectionsParser implements Runnable {
      * @param now
      */
     private void dumpResults(long lastDumpTime, long now) {
-        System.out.println("Results for hour " + lastDumpTime + " to " + now +
-                ":");
-        System.out.println("\tMost connections generated by: " + findClientWhoCreatedMostConnections());
-        System.out.println("\tClients who connected to: " + hostName + ":");
-        for (String s : connectedToHost) {
-            System.out.println("\t\t- " + s);
+        emit(aggregate, lastDumpTime, now);
+    }
+
+    private void emit(WindowAggregate window, long from, long to) {
+        long t0 = (metrics != null) ? System.nanoTime() : 0;
+        try {
+            sink.window(window.result(from, to, source));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        System.out.println("\tHosts who " + hostName + " connected to:");
-        for (String s : hostConnectedTo) {
-            System.out.println("\t\t- " + s);
+        if (metrics != null) {
+            metrics.windowEmitted(System.nanoTime() - t0, window.clients());
         }
-        System.out.println();
     }
 
     /**
-     * Updates the data structures as file is processed.
-     * @return
-     * @throws IOException
+     * Updates the data structures with one connection.
+     * @param clientId the id of client in hosts, or -1.
+     * @param hostId the id of host in hosts, or -1.
+     * @return true if the interval has been overrun, the caller must stop
+     * reading so that the results can be dumped.
      */
-    private long processFileChunk() throws IOException {
-        RandomAccessFile connectionsFileHandle =
-                new RandomAccessFile(connectionsFile, "r");
-        connectionsFileHandle.seek(filePointer);
-        String line = null;
-        while ((line = connectionsFileHandle.readLine()) != null) {
-            String[] tokens = line.split(" ");
-            long tsc = Long.parseLong(tokens[0]);
-            String client = tokens[1];
-            String host = tokens[2];
+    private boolean processRecord(long tsc, String client, String host,
+                                  int clientId, int hostId) {
+        // Plain fields, see setMetrics.
+        recordsProcessed++;
+        if (tsc < maxTimestamp) {
+            lateRecords++;
+        } else {
+            maxTimestamp = tsc;
+        }
+        if (windowMode == WindowMode.WATERMARK) {
+            processRecordWithWatermark(tsc, client, host, clientId, hostId);
+            return false;
+        }
+        if (slidingWindows != null) {
+            slidingWindows.add(tsc, client, host, clientId, hostId);
+            return false;
+        }
 
-            /* Update data structures */
+        /* Update data structures */
+        aggregate.add(tsc, client, host, clientId, hostId);
 
-            if (host.equals(hostName)) {
-                // a client connected to hostname
-                connectedToHost.addFirst(client);
-            }
-            if (client.equals(hostName)) {
-                // hostname connected to host
-                hostConnectedTo.addFirst(host);
-            }
+        // First round
+        if (now == 0) {
+            lastDumpTime = tsc;
+        }
+        now = tsc;
 
-            // Keep track of connections per client.
-            int count = connectionsPerClient.getOrDefault(client, 0);
-            connectionsPerClient.put(client, count + 1);
+        /* Check if we have overrun the interval */
+        // We need to do this here because we have already processed the
+        // line.
+        return now - lastDumpTime > interval;
+    }
 
-            // First round
-            if (now == 0) {
-                lastDumpTime = tsc;
-            }
-            now = tsc;
+    /**
+     * Option 2, see run(): the record goes to the window of its own
+     * timestamp. Windows are [origin + k * interval, origin + (k+1) *
+     * interval), origin being the timestamp of the first record. The
+     * watermark is the largest timestamp seen minus the allowed lateness,
+     * no record older than it is expected anymore, so every window ending
+     * before it is dumped and released. Records that still arrive for a
+     * released window are counted as dropped.
+     */
+    private void processRecordWithWatermark(long tsc, String client,
+                                            String host, int clientId,
+                                            int hostId) {
+        if (windows.isEmpty() && watermark == Long.MIN_VALUE) {
+            origin = tsc;
+        }
+        long windowStart = origin + Math.floorDiv(tsc - origin, interval) *
+                interval;
+        if (windowStart + interval <= watermark) {
+            droppedRecords++;
+            return;
+        }
+        windows.computeIfAbsent(windowStart,
+                k -> newAggregate())
+                .add(tsc, client, host, clientId, hostId);
 
-            /* Check if we have overrun the interval */
-            // We need to do this here because we have already processed the
-            // line.
-            if (now - lastDumpTime > interval) {
-                break;
-            }
+        watermark = Math.max(watermark, tsc - allowedLateness);
+        while (!windows.isEmpty() &&
+                windows.firstKey() + interval <= watermark) {
+            Map.Entry<Long, WindowAggregate> window = windows.pollFirstEntry();
+            emit(window.getValue(), window.getKey(),
+                    window.getKey() + interval);
         }
+    }
+
+    /**
+     * Report the top k clients of each window using bounded memory (see
+     * SpaceSavingTopK) instead of counting every client exactly.
+     * Applies to TUMBLING and WATERMARK windows. To be called before run.
+     */
+    public void setTopK(int k) {
+        topK = k;
+        aggregate = newAggregate();
+    }
 
-        /* Update file pointers */
-        long pointer = connectionsFileHandle.getFilePointer();
-        connectionsFileHandle.close();
-        return pointer;
+    /**
+     * See PeerTracking. To be called before run.
+     */
+    public void setPeerTracking(PeerTracking tracking) {
+        peerTracking = tracking;
+        aggregate = newAggregate();
     }
 
+    /**
+     * Also build the connection graph of each window (see ConnectionGraph)
+     * and report its topN top (client, host) pairs, the topN names with
+     * the largest fan-in and fan-out, and the fans of the monitored hosts.
+     * At most maxEdges pairs are kept per window, about 40 bytes each.
+     * Applies to TUMBLING and WATERMARK windows. To be called before run.
+     */
+    public void setGraph(int topN, int maxEdges) {
+        graphTopN = topN;
+        graphMaxEdges = maxEdges;
+        aggregate = newAggregate();
+    }
+
+    private WindowAggregate newAggregate() {
+        return new WindowAggregate(hosts, topK, peerTracking, graphTopN,
+                graphMaxEdges);
+    }
+
+    /* Records that arrived later than the allowed lateness. */
+    public long getDroppedRecords() {
+        return (slidingWindows != null) ? slidingWindows.getDroppedRecords() :
+                droppedRecords;
+    }
 
     /* To be called externally to gracefully terminate thread. */
     public void terminate() {
         run.set(false);
     }
+
+    /**
+     * One followed file, and the records read ahead from it when merging.
+     */
+    private static class Source implements LogFollower.RecordHandler {
+
+        private final LogFollower follower;
+        private final ArrayDeque<PendingRecord> queue = new ArrayDeque<>();
+        // The last poll stopped because the queue was full.
+        private boolean full = false;
+        // The largest timestamp read, and when anything was last read.
+        private long maxTsc = Long.MIN_VALUE;
+        private long lastRead = System.currentTimeMillis();
+
+        Source(LogFollower follower) {
+            this.follower = follower;
+        }
+
+        @Override
+        public boolean record(long tsc, String client, String host,
+                              int clientId, int hostId) {
+            queue.add(new PendingRecord(tsc, client, host, clientId, hostId));
+            maxTsc = Math.max(maxTsc, tsc);
+            full = queue.size() >= MERGE_QUEUE_SIZE;
+            return full;
+        }
+
+        /* Whether the file may still have a record older than tsc to be
+           read, see pollMerged. */
+        boolean mayPrecede(long tsc, long time) {
+            return maxTsc < tsc && maxTsc >= tsc - MERGE_DISORDER_BOUND_MS &&
+                    time - lastRead <= MERGE_DISORDER_BOUND_MS;
+        }
+    }
+
+    private static class PendingRecord {
+        private final long tsc;
+        private final String client;
+        private final String host;
+        private final int clientId;
+        private final int hostId;
+
+        PendingRecord(long tsc, String client, String host, int clientId,
+                      int hostId) {
+            this.tsc = tsc;
+            this.client = client;
+            this.host = host;
+            this.clientId = clientId;
+            this.hostId = hostId;
+        }
+    }
 }
@@ -0,0 +1,391 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads, parses and aggregates a followed file in three stages running on
+ * their own threads, see TailingConnectionsParser.setPipeline:
+ *      - I/O: the thread calling readChunk copies the complete lines
+ *        appended to the file into byte chunks (see LogFollower.readLines),
+ *      - parsers: each of them decodes whole chunks into RecordBatches,
+ *        columns of timestamps, names and host ids,
+ *      - aggregator: hands the batches to the BatchHandler, in file order.
+ *
+ * Comments:
+ * With a single thread, the time spent printing a dump or updating the
+ * windows is time the file is not read, and the producer gets ahead. Here
+ * each stage only waits for the next when the ring between them is full.
+ * Every pair of stages is connected by SpscRingBuffers, never by a lock:
+ * chunk i goes to parser i % parsers, and the aggregator takes the batches
+ * from the parsers in the same round robin, so the records come out in the
+ * order of the file however many parsers there are. The chunks and batches
+ * are allocated once and go back to their producer through a second ring,
+ * so at most RING_SIZE of them are in flight per parser: that bounds the
+ * memory, and a slow aggregator makes the parsers then the reader wait
+ * (backpressure) rather than queue up the file. A waiting thread spins a
+ * little, then parks for short periods.
+ * Each stage measures what it handled and how long it waited for the
+ * others, see getStats.
+ */
+class TailingPipeline {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Chunks and batches per parser, a power of 2.
+    static final int RING_SIZE = 8;
+    private static final int SPINS = 100;
+    private static final long PARK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int END_OF_STREAM = -1;
+
+    /**
+     * Receives the parsed records, on the aggregator thread.
+     */
+    interface BatchHandler {
+        void batch(RecordBatch batch);
+    }
+
+    /**
+     * Raw complete lines of the file.
+     */
+    private static class Chunk {
+        private byte[] data = new byte[CHUNK_SIZE];
+        private int length;
+    }
+
+    /**
+     * The records of one chunk, one column per field. clientId and hostId
+     * are ids in the HostTable, or -1.
+     */
+    static class RecordBatch {
+        private boolean endOfStream;
+        private int bytes;
+        int size;
+        long[] tsc = new long[0];
+        String[] client = new String[0];
+        String[] host = new String[0];
+        int[] clientId = new int[0];
+        int[] hostId = new int[0];
+
+        private void clear(int lines) {
+            size = 0;
+            if (tsc.length < lines) {
+                int capacity = Math.max(lines, 2 * tsc.length);
+                tsc = new long[capacity];
+                client = new String[capacity];
+                host = new String[capacity];
+                clientId = new int[capacity];
+                hostId = new int[capacity];
+            }
+        }
+    }
+
+    /**
+     * What a stage handled and how long it waited for the others. Only
+     * written by the thread of the stage, read once it is over.
+     */
+    private static class Stage {
+        private final String name;
+        private long records = 0;
+        private long bytes = 0;
+        private long waitNanos = 0;
+        private long start = 0;
+        private long end = 0;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = Math.max(1, end - start);
+            long busy = Math.max(1, elapsed - waitNanos);
+            long seconds = TimeUnit.SECONDS.toNanos(1);
+            // The I/O stage does not split the records.
+            String counted = (records > 0) ? records + " records, " : "";
+            String rate = (records > 0) ? records * seconds / busy +
+                    " records/s and " : "";
+            return name + ": " + counted + bytes / 1024 + " KB, " + rate +
+                    bytes * seconds / busy / (1024 * 1024) + " MB/s when " +
+                    "busy, waiting " + waitNanos * 100 / elapsed + "% of " +
+                    "the time";
+        }
+    }
+
+    private final LogFollower follower;
+    private final HostTable hosts;
+    private final BatchHandler handler;
+    private final int parsers;
+    // By parser.
+    private final SpscRingBuffer<Chunk>[] chunks;
+    private final SpscRingBuffer<Chunk>[] freeChunks;
+    private final SpscRingBuffer<RecordBatch>[] batches;
+    private final SpscRingBuffer<RecordBatch>[] freeBatches;
+    private final Thread[] threads;
+    private final Stage io = new Stage("io");
+    private final Stage[] parserStages;
+    private final Stage aggregator = new Stage("aggregator");
+    private volatile Throwable failure;
+
+    /* I/O stage. */
+    private Chunk current;
+    private int nextParser = 0;
+    private boolean closed = false;
+
+    TailingPipeline(LogFollower follower, HostTable hosts, int parsers,
+                    BatchHandler handler) {
+        this.follower = follower;
+        this.hosts = hosts;
+        this.handler = handler;
+        this.parsers = parsers;
+        chunks = rings(parsers);
+        freeChunks = rings(parsers);
+        batches = rings(parsers);
+        freeBatches = rings(parsers);
+        parserStages = new Stage[parsers];
+        threads = new Thread[parsers + 1];
+        for (int i = 0; i < parsers; i++) {
+            chunks[i] = new SpscRingBuffer<>(RING_SIZE);
+            freeChunks[i] = new SpscRingBuffer<>(RING_SIZE);
+            batches[i] = new SpscRingBuffer<>(RING_SIZE);
+            freeBatches[i] = new SpscRingBuffer<>(RING_SIZE);
+            for (int j = 0; j < RING_SIZE; j++) {
+                freeChunks[i].offer(new Chunk());
+                freeBatches[i].offer(new RecordBatch());
+            }
+            parserStages[i] = new Stage("parser " + i);
+            int parser = i;
+            threads[i] = new Thread(() -> runStage(() -> parse(parser)),
+                    "pipeline-parser-" + i);
+        }
+        threads[parsers] = new Thread(() -> runStage(this::aggregate),
+                "pipeline-aggregator");
+        io.start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /* An array of rings, generic arrays cannot be created. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> SpscRingBuffer<T>[] rings(int n) {
+        return new SpscRingBuffer[n];
+    }
+
+    /**
+     * I/O stage: hands the complete lines appended to the file to the next
+     * parser, waiting if it is RING_SIZE chunks behind.
+     * @return true if anything was read.
+     * @throws IOException
+     */
+    boolean readChunk() throws IOException {
+        if (failure != null) {
+            throw new IOException("Pipeline stage failed", failure);
+        }
+        if (current == null) {
+            current = take(freeChunks[nextParser], io);
+        }
+        int n = follower.readLines(current.data);
+        if (n < 0) {
+            // A line longer than the chunk.
+            current.data = new byte[current.data.length * 2];
+            return true;
+        }
+        if (n == 0) {
+            return false;
+        }
+        current.length = n;
+        io.bytes += n;
+        put(chunks[nextParser], current, io);
+        current = null;
+        nextParser = (nextParser + 1) % parsers;
+        return true;
+    }
+
+    /**
+     * Lets the other stages process everything read so far, then stops
+     * them.
+     * @throws IOException if a stage failed.
+     */
+    void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        io.end = System.nanoTime();
+        try {
+            if (failure == null) {
+                for (int i = 0; i < parsers; i++) {
+                    int parser = (nextParser + i) % parsers;
+                    Chunk last = (i == 0 && current != null) ? current :
+                            take(freeChunks[parser], io);
+                    last.length = END_OF_STREAM;
+                    put(chunks[parser], last, io);
+                }
+                current = null;
+            }
+        } catch (IllegalStateException e) {
+            // A stage failed meanwhile, reported below.
+        } finally {
+            join();
+        }
+        if (failure != null) {
+            throw new IOException("Pipeline stage failed", failure);
+        }
+    }
+
+    /**
+     * Stops the other stages without waiting for them to finish, after
+     * cause on the I/O stage.
+     */
+    void abort(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        closed = true;
+        join();
+    }
+
+    private void join() {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the throughput of each stage, once closed.
+     */
+    String getStats() {
+        StringBuilder stats = new StringBuilder(io.toString());
+        for (Stage stage : parserStages) {
+            stats.append('\n').append(stage);
+        }
+        return stats.append('\n').append(aggregator).toString();
+    }
+
+    /* A failure in any stage stops them all. */
+    private void runStage(Runnable stage) {
+        try {
+            stage.run();
+        } catch (RuntimeException | Error e) {
+            // The first failure, the others are its consequences.
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /* Parser stage. */
+    private void parse(int parser) {
+        Stage stage = parserStages[parser];
+        // Per parser thread, see RecordParser.
+        RecordParser recordParser = new RecordParser();
+        NameCache names = new NameCache(Charset.defaultCharset());
+        stage.start = System.nanoTime();
+        while (true) {
+            Chunk chunk = take(chunks[parser], stage);
+            RecordBatch batch = take(freeBatches[parser], stage);
+            if (chunk.length == END_OF_STREAM) {
+                batch.endOfStream = true;
+                put(batches[parser], batch, stage);
+                break;
+            }
+            parseChunk(chunk, batch, recordParser, names);
+            batch.bytes = chunk.length;
+            stage.records += batch.size;
+            stage.bytes += chunk.length;
+            put(freeChunks[parser], chunk, stage);
+            put(batches[parser], batch, stage);
+        }
+        stage.end = System.nanoTime();
+    }
+
+    /* Same decoding as LogFollower.processLine. */
+    private void parseChunk(Chunk chunk, RecordBatch batch,
+                            RecordParser parser, NameCache names) {
+        byte[] data = chunk.data;
+        // At most one record per 6 bytes ("1 a b\n").
+        batch.clear(chunk.length / 6 + 1);
+        int lineStart = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (!parser.parse(data, lineStart, i)) {
+                throw new NumberFormatException(parser.error() + " " +
+                        new String(data, lineStart, i - lineStart,
+                                Charset.defaultCharset()));
+            }
+            int r = batch.size++;
+            batch.tsc[r] = parser.timestamp();
+            batch.client[r] = parser.client(names);
+            batch.host[r] = parser.host(names);
+            batch.clientId[r] = parser.clientId(hosts);
+            batch.hostId[r] = parser.hostId(hosts);
+            lineStart = i + 1;
+        }
+    }
+
+    /* Aggregator stage. */
+    private void aggregate() {
+        aggregator.start = System.nanoTime();
+        for (int parser = 0; ; parser = (parser + 1) % parsers) {
+            RecordBatch batch = take(batches[parser], aggregator);
+            if (batch.endOfStream) {
+                break;
+            }
+            handler.batch(batch);
+            aggregator.records += batch.size;
+            aggregator.bytes += batch.bytes;
+            put(freeBatches[parser], batch, aggregator);
+        }
+        aggregator.end = System.nanoTime();
+    }
+
+    private <E> void put(SpscRingBuffer<E> ring, E item, Stage stage) {
+        if (ring.offer(item)) {
+            return;
+        }
+        long t0 = System.nanoTime();
+        for (int spins = 0; !ring.offer(item); spins++) {
+            idle(spins);
+        }
+        stage.waitNanos += System.nanoTime() - t0;
+    }
+
+    private <E> E take(SpscRingBuffer<E> ring, Stage stage) {
+        E item = ring.poll();
+        if (item != null) {
+            return item;
+        }
+        long t0 = System.nanoTime();
+        for (int spins = 0; (item = ring.poll()) == null; spins++) {
+            idle(spins);
+        }
+        stage.waitNanos += System.nanoTime() - t0;
+        return item;
+    }
+
+    /**
+     * @throws IllegalStateException if another stage failed, the one
+     * waiting for it would wait forever.
+     */
+    private void idle(int spins) {
+        if (failure != null) {
+            throw new IllegalStateException("Other pipeline stage failed");
+        }
+        if (spins < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NS);
+        }
+    }
+}
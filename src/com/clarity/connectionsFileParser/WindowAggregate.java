@@ -0,0 +1,383 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stats of one window of connections, as reported by the tailer:
+ * connections per client, and for each monitored host the clients who
+ * connected to it and the hosts it connected to.
+ *
+ * Connections per client are either counted exactly in a HashMap (fine for
+ * small deployments), or approximated with bounded memory by a
+ * SpaceSavingTopK that reports the top K clients. Optionally, the
+ * connection graph of the window is built too, see ConnectionGraph.
+ *
+ * Comments:
+ * The clients who connected to hostName (and the hosts it connected to)
+ * used to be LinkedLists with one node per connection, so a chatty client
+ * showed up thousands of times. They are now sets of distinct names, with
+ * optionally a count and the first/last time seen, and every name they
+ * keep is interned in a SymbolTable of the window so that it is stored once
+ * however many structures refer to it. When the number of distinct names is
+ * huge, a HyperLogLog can replace the sets and only report how many there
+ * are. A name no structure keeps (with a SpaceSavingTopK and HyperLogLogs)
+ * is not interned either, so that the memory of the window stays bounded.
+ * With many monitored hosts, the sets of a host are only created once it
+ * shows up in the window.
+ */
+class WindowAggregate {
+
+    private final HostTable hosts;
+    private final TailingConnectionsParser.PeerTracking peerTracking;
+    // Whether the peer sets keep the names, see add.
+    private final boolean peerNames;
+    private final SymbolTable symbols = new SymbolTable();
+    // By host id, see HostTable.
+    private final Peers[] hostConnectedTo;
+    private final Peers[] connectedToHost;
+    // A mutable count per client, so a connection boxes no Integer.
+    private final HashMap<String, int[]> connectionsPerClient;
+    private final SpaceSavingTopK topClients;
+    private final ConnectionGraph graph;
+
+    WindowAggregate(String hostName) {
+        this(HostTable.of(hostName), 0,
+                TailingConnectionsParser.PeerTracking.NAMES);
+    }
+
+    WindowAggregate(HostTable hosts, int topK,
+                    TailingConnectionsParser.PeerTracking peerTracking) {
+        this(hosts, topK, peerTracking, 0, 0);
+    }
+
+    /**
+     * @param topK if > 0, report the topK clients using bounded memory
+     *             instead of counting every client exactly.
+     * @param peerTracking what to keep about the clients who connected to
+     *                     a monitored host and the hosts it connected to.
+     * @param graphTopN if > 0, build the connection graph of the window
+     *                  and report its graphTopN top pairs and fans, with
+     *                  at most graphMaxEdges edges.
+     */
+    WindowAggregate(HostTable hosts, int topK,
+                    TailingConnectionsParser.PeerTracking peerTracking,
+                    int graphTopN, int graphMaxEdges) {
+        this.hosts = hosts;
+        this.peerTracking = peerTracking;
+        this.peerNames = peerTracking !=
+                TailingConnectionsParser.PeerTracking.HYPERLOGLOG;
+        this.connectionsPerClient = (topK > 0) ? null : new HashMap<>();
+        this.topClients = (topK > 0) ? new SpaceSavingTopK(topK) : null;
+        this.hostConnectedTo = new Peers[hosts.size()];
+        this.connectedToHost = new Peers[hosts.size()];
+        this.graph = (graphTopN > 0) ?
+                new ConnectionGraph(graphTopN, graphMaxEdges) : null;
+    }
+
+    /**
+     * Updates the data structures with one connection.
+     * @param clientId the id of client in hosts, or -1.
+     * @param hostId the id of host in hosts, or -1.
+     */
+    void add(long tsc, String client, String host, int clientId,
+             int hostId) {
+        // Only the names kept by the window are interned.
+        if (connectionsPerClient != null || graph != null ||
+                (hostId >= 0 && peerNames)) {
+            client = symbols.intern(client);
+        }
+        if (graph != null || (clientId >= 0 && peerNames)) {
+            host = symbols.intern(host);
+        }
+        if (hostId >= 0) {
+            // a client connected to a monitored host
+            peers(connectedToHost, hostId).add(client, tsc);
+        }
+        if (clientId >= 0) {
+            // a monitored host connected to host
+            peers(hostConnectedTo, clientId).add(host, tsc);
+        }
+        if (graph != null) {
+            graph.add(client, host);
+        }
+
+        // Keep track of connections per client.
+        if (topClients != null) {
+            topClients.add(client);
+            return;
+        }
+        int[] count = connectionsPerClient.get(client);
+        if (count == null) {
+            count = new int[1];
+            connectionsPerClient.put(client, count);
+        }
+        count[0]++;
+    }
+
+    /* The distinct names kept by the peer sets, the exact counts and the
+       graph, not the topK names of a SpaceSavingTopK. */
+    int size() {
+        return symbols.size();
+    }
+
+    /* The distinct clients whose connections are counted, see
+       Metrics.windowEmitted. */
+    int clients() {
+        return (topClients != null) ? topClients.size() :
+                connectionsPerClient.size();
+    }
+
+    private Peers peers(Peers[] peers, int id) {
+        if (peers[id] == null) {
+            peers[id] = new Peers(peerTracking);
+        }
+        return peers[id];
+    }
+
+    /**
+     * Walks the hashtable to identify client who created the largest number
+     * of connections.
+     * NB: There may be more than one client that has this maximum, this
+     * function can easily be modified to reflect that if necessary.
+     * @return
+     */
+    WindowResult.Count findClientWhoCreatedMostConnections() {
+        if (topClients != null) {
+            List<SpaceSavingTopK.Counter> top = topClients.top();
+            return top.isEmpty() ? new WindowResult.Count(null, 0, 0) :
+                    count(top.get(0));
+        }
+        String clientWhoGeneratedMostConnections = null;
+        int maxNumberOfConnections = 0;
+        for (Map.Entry<String, int[]> entry :
+                connectionsPerClient.entrySet()) {
+            String client = entry.getKey();
+            int numberOfConnections = entry.getValue()[0];
+            if (clientWhoGeneratedMostConnections == null) {
+                clientWhoGeneratedMostConnections = client;
+                maxNumberOfConnections = numberOfConnections;
+            }
+            if (numberOfConnections > maxNumberOfConnections) {
+                maxNumberOfConnections = numberOfConnections;
+                clientWhoGeneratedMostConnections = client;
+            }
+        }
+        return new WindowResult.Count(clientWhoGeneratedMostConnections,
+                maxNumberOfConnections, 0);
+    }
+
+    /**
+     * Stats of the window, to be written by a ResultSink.
+     * @param source the followed file, named in the header if not null.
+     */
+    WindowResult result(long from, long to, String source) {
+        List<WindowResult.Count> top = null;
+        if (topClients != null) {
+            top = new ArrayList<>();
+            for (SpaceSavingTopK.Counter counter : topClients.top()) {
+                top.add(count(counter));
+            }
+        }
+        List<WindowResult.HostPeers> hostPeers = new ArrayList<>();
+        for (int id = 0; id < hosts.size(); id++) {
+            Peers clients = connectedToHost[id];
+            Peers connectedTo = hostConnectedTo[id];
+            hostPeers.add(new WindowResult.HostPeers(hosts.name(id),
+                    (clients != null) ? clients.peers() : List.of(),
+                    (clients != null) ? clients.estimate() : -1,
+                    (connectedTo != null) ? connectedTo.peers() : List.of(),
+                    (connectedTo != null) ? connectedTo.estimate() : -1));
+        }
+        GraphResult graphResult = null;
+        if (graph != null) {
+            List<String> hostNames = new ArrayList<>();
+            for (int id = 0; id < hosts.size(); id++) {
+                hostNames.add(hosts.name(id));
+            }
+            graphResult = graph.result(hostNames);
+        }
+        return new WindowResult(false, from, to, source,
+                findClientWhoCreatedMostConnections(), top,
+                (topClients != null) ? topClients.maxError() : 0, hostPeers,
+                graphResult);
+    }
+
+    /**
+     * Checkpoint, see TailingConnectionsParser. It is read back into a
+     * WindowAggregate built with the same hosts and options.
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        if (topClients != null) {
+            topClients.writeTo(out);
+        } else {
+            out.writeInt(connectionsPerClient.size());
+            for (Map.Entry<String, int[]> entry :
+                    connectionsPerClient.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue()[0]);
+            }
+        }
+        for (int id = 0; id < hosts.size(); id++) {
+            writePeers(out, connectedToHost[id]);
+            writePeers(out, hostConnectedTo[id]);
+        }
+        if (graph != null) {
+            graph.writeTo(out);
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        if (topClients != null) {
+            topClients.readFrom(in);
+        } else {
+            int clients = in.readInt();
+            for (int i = 0; i < clients; i++) {
+                connectionsPerClient.put(symbols.intern(in.readUTF()),
+                        new int[]{in.readInt()});
+            }
+        }
+        for (int id = 0; id < hosts.size(); id++) {
+            connectedToHost[id] = readPeers(in);
+            hostConnectedTo[id] = readPeers(in);
+        }
+        if (graph != null) {
+            graph.readFrom(in, symbols);
+        }
+    }
+
+    private static void writePeers(DataOutputStream out, Peers peers)
+            throws IOException {
+        out.writeBoolean(peers != null);
+        if (peers != null) {
+            peers.writeTo(out);
+        }
+    }
+
+    private Peers readPeers(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Peers peers = new Peers(peerTracking);
+        peers.readFrom(in, symbols);
+        return peers;
+    }
+
+    private static WindowResult.Count count(SpaceSavingTopK.Counter counter) {
+        return new WindowResult.Count(counter.getItem(), counter.getCount(),
+                counter.getError());
+    }
+
+    /**
+     * The distinct names on one side of a monitored host.
+     */
+    private static class Peers {
+
+        // In access order: the last name seen comes last.
+        private final LinkedHashMap<String, PeerStats> names;
+        private final boolean withStats;
+        private final HyperLogLog distinct;
+
+        Peers(TailingConnectionsParser.PeerTracking tracking) {
+            boolean hll = tracking ==
+                    TailingConnectionsParser.PeerTracking.HYPERLOGLOG;
+            names = hll ? null : new LinkedHashMap<>(16, 0.75f, true);
+            withStats = tracking == TailingConnectionsParser.PeerTracking.STATS;
+            distinct = hll ? new HyperLogLog() : null;
+        }
+
+        void add(String name, long tsc) {
+            if (distinct != null) {
+                distinct.add(name);
+            } else if (!withStats) {
+                names.putIfAbsent(name, null);
+            } else {
+                PeerStats stats = names.get(name);
+                if (stats == null) {
+                    stats = new PeerStats();
+                    stats.firstSeen = tsc;
+                    stats.lastSeen = tsc;
+                    names.put(name, stats);
+                }
+                stats.count++;
+                stats.firstSeen = Math.min(stats.firstSeen, tsc);
+                stats.lastSeen = Math.max(stats.lastSeen, tsc);
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            if (distinct != null) {
+                distinct.writeTo(out);
+                return;
+            }
+            out.writeInt(names.size());
+            for (Map.Entry<String, PeerStats> entry : names.entrySet()) {
+                out.writeUTF(entry.getKey());
+                if (withStats) {
+                    PeerStats stats = entry.getValue();
+                    out.writeLong(stats.count);
+                    out.writeLong(stats.firstSeen);
+                    out.writeLong(stats.lastSeen);
+                }
+            }
+        }
+
+        void readFrom(DataInputStream in, SymbolTable symbols)
+                throws IOException {
+            if (distinct != null) {
+                distinct.readFrom(in);
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = symbols.intern(in.readUTF());
+                PeerStats stats = null;
+                if (withStats) {
+                    stats = new PeerStats();
+                    stats.count = in.readLong();
+                    stats.firstSeen = in.readLong();
+                    stats.lastSeen = in.readLong();
+                }
+                names.put(name, stats);
+            }
+        }
+
+        /* Last seen first, as the lists used to be. */
+        List<WindowResult.Peer> peers() {
+            if (distinct != null) {
+                return List.of();
+            }
+            List<WindowResult.Peer> peers = new ArrayList<>(names.size());
+            for (Map.Entry<String, PeerStats> entry : names.entrySet()) {
+                PeerStats stats = entry.getValue();
+                peers.add((stats == null) ?
+                        new WindowResult.Peer(entry.getKey(), 0, 0, 0) :
+                        new WindowResult.Peer(entry.getKey(), stats.count,
+                                stats.firstSeen, stats.lastSeen));
+            }
+            Collections.reverse(peers);
+            return peers;
+        }
+
+        /* -1 unless only an estimate is kept. */
+        long estimate() {
+            return (distinct != null) ? distinct.estimate() : -1;
+        }
+    }
+
+    private static class PeerStats {
+        private long count;
+        private long firstSeen;
+        private long lastSeen;
+    }
+}
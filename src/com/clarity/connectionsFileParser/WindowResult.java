@@ -0,0 +1,207 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.util.List;
+
+/**
+ * The results of one window of the tailer, as handed to a ResultSink:
+ * the client with the most connections, optionally the top K clients, and
+ * for each monitored host the clients who connected to it and the hosts it
+ * connected to, optionally the connection graph of the window.
+ *
+ * Comments:
+ * The aggregates used to print themselves to System.out. They now build a
+ * WindowResult, which is immutable, so that a sink can write it later on
+ * another thread (see AsyncSink) while the tailer goes on.
+ */
+public class WindowResult {
+
+    private final boolean hopping;
+    private final long from;
+    private final long to;
+    private final String source;
+    private final Count mostConnections;
+    private final List<Count> topClients;
+    private final long topClientsMaxError;
+    private final List<HostPeers> hosts;
+    private final GraphResult graph;
+
+    /**
+     * @param hopping a HOPPING or SLIDING window, rather than TUMBLING or
+     *                WATERMARK.
+     * @param source the followed file, or null.
+     * @param topClients null unless the top K clients are tracked.
+     */
+    WindowResult(boolean hopping, long from, long to, String source,
+                 Count mostConnections, List<Count> topClients,
+                 long topClientsMaxError, List<HostPeers> hosts) {
+        this(hopping, from, to, source, mostConnections, topClients,
+                topClientsMaxError, hosts, null);
+    }
+
+    /**
+     * @param graph null unless the connection graph is built.
+     */
+    WindowResult(boolean hopping, long from, long to, String source,
+                 Count mostConnections, List<Count> topClients,
+                 long topClientsMaxError, List<HostPeers> hosts,
+                 GraphResult graph) {
+        this.hopping = hopping;
+        this.from = from;
+        this.to = to;
+        this.source = source;
+        this.mostConnections = mostConnections;
+        this.topClients = topClients;
+        this.topClientsMaxError = topClientsMaxError;
+        this.hosts = hosts;
+        this.graph = graph;
+    }
+
+    public boolean isHopping() {
+        return hopping;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Count getMostConnections() {
+        return mostConnections;
+    }
+
+    public List<Count> getTopClients() {
+        return topClients;
+    }
+
+    /* Unlisted clients have at most this many connections. */
+    public long getTopClientsMaxError() {
+        return topClientsMaxError;
+    }
+
+    /* In the order of the monitored hosts. */
+    public List<HostPeers> getHosts() {
+        return hosts;
+    }
+
+    /* null unless asked for. */
+    public GraphResult getGraph() {
+        return graph;
+    }
+
+    /**
+     * The connections of a client, between count - error and count when
+     * approximated, see SpaceSavingTopK.
+     */
+    public static class Count {
+        private final String name;
+        private final long count;
+        private final long error;
+
+        Count(String name, long count, long error) {
+            this.name = name;
+            this.count = count;
+            this.error = error;
+        }
+
+        /* null if there was no connection. */
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A client or host seen on one side of a monitored host, with its
+     * count and first/last time seen if PeerTracking.STATS (count 0
+     * otherwise).
+     */
+    public static class Peer {
+        private final String name;
+        private final long count;
+        private final long firstSeen;
+        private final long lastSeen;
+
+        Peer(String name, long count, long firstSeen, long lastSeen) {
+            this.name = name;
+            this.count = count;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    /**
+     * Both sides of a monitored host. With PeerTracking.HYPERLOGLOG the
+     * peers are not kept, only an estimate of how many there are (-1
+     * otherwise).
+     */
+    public static class HostPeers {
+        private final String host;
+        private final List<Peer> clients;
+        private final long clientsEstimate;
+        private final List<Peer> connectedTo;
+        private final long connectedToEstimate;
+
+        HostPeers(String host, List<Peer> clients, long clientsEstimate,
+                  List<Peer> connectedTo, long connectedToEstimate) {
+            this.host = host;
+            this.clients = clients;
+            this.clientsEstimate = clientsEstimate;
+            this.connectedTo = connectedTo;
+            this.connectedToEstimate = connectedToEstimate;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /* The clients who connected to host. */
+        public List<Peer> getClients() {
+            return clients;
+        }
+
+        public long getClientsEstimate() {
+            return clientsEstimate;
+        }
+
+        /* The hosts host connected to. */
+        public List<Peer> getConnectedTo() {
+            return connectedTo;
+        }
+
+        public long getConnectedToEstimate() {
+            return connectedToEstimate;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds where to start reading a connections file for a given window, so
+ * that a query for the last hour of a 24 hour file does not read the 23
+ * hours before it.
+ *
+ * Comments:
+ * The file is only *nearly* sorted, a line can be up to five minutes older
+ * than the lines written before it. So we cannot binary search for
+ * startTime directly. However, if a line has tsc < startTime - 5m then every
+ * line before it has tsc < startTime, and it is safe to start reading right
+ * after it. We binary search for such a line, as late in the file as we can
+ * find, using random access probes that resync on the next line boundary.
+ * Any line found this way is correct, disorder only makes the result a bit
+ * less tight.
+ */
+class WindowSeeker {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    // Below this, reading sequentially is cheaper than probing.
+    private static final long MIN_RANGE = 64 * 1024;
+    private static final int PROBE_SIZE = 256;
+
+    private WindowSeeker() {
+    }
+
+    /**
+     * @return the offset of a line start such that every line before it
+     * has tsc < startTime.
+     * @throws IOException
+     */
+    static long seek(FileChannel channel, long startTime) throws IOException {
+        return seek(channel, startTime, FIVE_MINUTES);
+    }
+
+    /**
+     * For a file out of order by at most disorderBound ms instead of five
+     * minutes, always 0 if the bound is Long.MAX_VALUE (unknown).
+     * @throws IOException
+     */
+    static long seek(FileChannel channel, long startTime, long disorderBound)
+            throws IOException {
+        if (startTime < Long.MIN_VALUE + disorderBound) {
+            return 0;
+        }
+        long bound = startTime - disorderBound;
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long best = 0;
+        long lo = 0;
+        long hi = channel.size();
+        while (hi - lo > MIN_RANGE) {
+            long mid = (lo + hi) >>> 1;
+            long lineStart = nextLineStart(channel, probe, mid);
+            long[] line = (lineStart < 0) ? null :
+                    readLine(channel, probe, lineStart);
+            if (line != null && line[0] < bound) {
+                best = line[1];
+                lo = line[1];
+            } else {
+                hi = mid;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the offset of the first line starting at or after position,
+     * -1 if none.
+     * @throws IOException
+     */
+    static long nextLineStart(FileChannel channel, long position)
+            throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        return nextLineStart(channel, ByteBuffer.allocate(PROBE_SIZE), position);
+    }
+
+    private static long nextLineStart(FileChannel channel, ByteBuffer probe,
+                                      long position) throws IOException {
+        long p = position - 1;
+        while (true) {
+            probe.clear();
+            int n = channel.read(probe, p);
+            if (n <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+    }
+
+    /*
+     * Parses the timestamp of the line starting at lineStart.
+     * Returns {tsc, start of next line}, or null if the line is not complete
+     * or malformed, in which case it is not a safe place to start from.
+     */
+    private static long[] readLine(FileChannel channel, ByteBuffer probe,
+                                   long lineStart) throws IOException {
+        long tsc = 0;
+        boolean inTimestamp = true;
+        int digits = 0;
+        long p = lineStart;
+        while (true) {
+            probe.clear();
+            int n = channel.read(probe, p);
+            if (n <= 0) {
+                return null;
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = probe.get(i);
+                if (b == '\n') {
+                    return (digits == 0 || inTimestamp) ? null :
+                            new long[]{tsc, p + i + 1};
+                }
+                if (inTimestamp) {
+                    if (b == ' ') {
+                        inTimestamp = false;
+                    } else if (b < '0' || b > '9' || ++digits > 18) {
+                        return null;
+                    } else {
+                        tsc = tsc * 10 + (b - '0');
+                    }
+                }
+            }
+            p += n;
+        }
+    }
+}
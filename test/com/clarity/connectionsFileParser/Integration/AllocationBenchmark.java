@@ -0,0 +1,101 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.BinaryConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: the heap allocated per record by the scanner and by the
+ * tailer (of the text file and of its binary version), read from the allocation counter of the thread that runs them,
+ * and the garbage collections that happened meanwhile. Every name of the
+ * generated file is seen many times, so what is allocated per distinct
+ * name (the entries of the window) is negligible per record, and what is
+ * left is what parsing and counting a record costs. Run with -Xlog:gc to
+ * see the collections as they happen.
+ *
+ * usage: java -Xlog:gc AllocationBenchmark [generated_file_size_in_MB]
+ */
+public class AllocationBenchmark {
+
+    private static final String HOST = "Morrigan";
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        long megaBytes = (args.length > 0) ? Long.parseLong(args[0]) : 64;
+        File file = ConnectionsParserBenchmark.generate(megaBytes * 1024 * 1024);
+        long records = 0;
+        for (byte b : Files.readAllBytes(file.toPath())) {
+            if (b == '\n') {
+                records++;
+            }
+        }
+        File binaryFile = File.createTempFile("connections", ".bin");
+        BinaryConnectionsFormat.convert(file, binaryFile);
+        PrintStream originalOut = System.out;
+        try {
+            for (ConnectionsParser.ScanMode mode : new ConnectionsParser
+                    .ScanMode[]{ConnectionsParser.ScanMode.READER,
+                    ConnectionsParser.ScanMode.MAPPED}) {
+                report("scan " + mode, records, originalOut,
+                        () -> new ConnectionsParser(file, 0,
+                                Long.MAX_VALUE - TimeUnit.HOURS.toMillis(1),
+                                HOST, mode).connectedClients());
+            }
+            // A single window, see ConnectionsParserBenchmark.generate.
+            report("tailer", records, originalOut,
+                    () -> new TailingConnectionsParser(0,
+                            TimeUnit.DAYS.toMillis(1), file, HOST).run());
+            report("tailer bin", records, originalOut,
+                    () -> new TailingConnectionsParser(0,
+                            TimeUnit.DAYS.toMillis(1), binaryFile, HOST)
+                            .run());
+        } finally {
+            System.setOut(originalOut);
+            file.delete();
+            binaryFile.delete();
+        }
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static void report(String name, long records, PrintStream out,
+                               Run run) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        long bytes = Long.MAX_VALUE;
+        long collections = 0;
+        for (int i = 0; i < RUNS; i++) {
+            // The results go nowhere.
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long gc0 = collections();
+            long allocated0 = threads.getCurrentThreadAllocatedBytes();
+            run.run();
+            // The first runs warm up, the last one counts.
+            bytes = threads.getCurrentThreadAllocatedBytes() - allocated0;
+            collections = collections() - gc0;
+        }
+        out.printf("%-12s %,12d bytes allocated, %6.2f bytes per record, " +
+                "%d collections%n", name, bytes, (double) bytes / records,
+                collections);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc :
+                ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
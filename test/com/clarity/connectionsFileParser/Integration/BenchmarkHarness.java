@@ -0,0 +1,198 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: measures the throughput of a benchmark the way JMH
+ * would in throughput mode, without JMH (the project has no build to pull
+ * it in), see BenchmarkSuite.
+ *
+ * Comments:
+ * A benchmark is first run for a few warmup iterations, so that it is
+ * measured once compiled by the JIT, then for the measured iterations. An
+ * iteration calls the benchmark as many times as it takes to last at least
+ * minIterationTime, so short benchmarks are not dominated by the timer.
+ * Whatever a benchmark computes must be written to sink, otherwise the JIT
+ * may find out that it is unused and remove it (the Blackhole of JMH).
+ * Each benchmark is best run in a JVM of its own (see BenchmarkSuite), so
+ * that what the JIT learnt from the previous ones does not bias it.
+ */
+public class BenchmarkHarness {
+
+    /* Written by the benchmarks, never read. */
+    public static volatile long sink;
+
+    /**
+     * One call of a benchmark.
+     */
+    public interface Benchmark {
+        /**
+         * @return the number of operations (records, bytes...) done.
+         * @throws Exception
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Throughput of every measured iteration, in operations per second.
+     */
+    public static class Result {
+        private final String name;
+        private final String unit;
+        private final double[] throughputs;
+
+        Result(String name, String unit, double[] throughputs) {
+            this.name = name;
+            this.unit = unit;
+            this.throughputs = throughputs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double mean() {
+            double sum = 0;
+            for (double t : throughputs) {
+                sum += t;
+            }
+            return sum / throughputs.length;
+        }
+
+        /* Sample standard deviation. */
+        public double stddev() {
+            if (throughputs.length < 2) {
+                return 0;
+            }
+            double mean = mean();
+            double sum = 0;
+            for (double t : throughputs) {
+                sum += (t - mean) * (t - mean);
+            }
+            return Math.sqrt(sum / (throughputs.length - 1));
+        }
+
+        public double min() {
+            double min = Double.MAX_VALUE;
+            for (double t : throughputs) {
+                min = Math.min(min, t);
+            }
+            return min;
+        }
+
+        public double max() {
+            double max = 0;
+            for (double t : throughputs) {
+                max = Math.max(max, t);
+            }
+            return max;
+        }
+
+        /* One JSON object, on one line. */
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"benchmark\": \"").append(name)
+                    .append("\", \"unit\": \"").append(unit)
+                    .append("\", \"iterations\": ").append(throughputs.length)
+                    .append(", \"mean\": ").append(Math.round(mean()))
+                    .append(", \"stddev\": ").append(Math.round(stddev()))
+                    .append(", \"min\": ").append(Math.round(min()))
+                    .append(", \"max\": ").append(Math.round(max()))
+                    .append(", \"raw\": [");
+            for (int i = 0; i < throughputs.length; i++) {
+                json.append((i > 0) ? ", " : "")
+                        .append(Math.round(throughputs[i]));
+            }
+            return json.append("]}").toString();
+        }
+
+        /**
+         * Reads back a line written by toJson.
+         * @throws IllegalArgumentException if it is not one.
+         */
+        public static Result fromJson(String json) {
+            try {
+                String name = field(json, "benchmark");
+                String unit = field(json, "unit");
+                String raw = json.substring(json.indexOf('[') + 1,
+                        json.indexOf(']'));
+                String[] values = raw.isBlank() ? new String[0] :
+                        raw.split(", ");
+                double[] throughputs = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    throughputs[i] = Double.parseDouble(values[i]);
+                }
+                return new Result(name, unit, throughputs);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(json + ": not a result",
+                        e);
+            }
+        }
+
+        private static String field(String json, String key) {
+            int start = json.indexOf("\"" + key + "\": \"") + key.length() + 5;
+            return json.substring(start, json.indexOf('"', start));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %,15.0f %s/s +- %,.0f", name, mean(),
+                    unit, stddev());
+        }
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long minIterationTime;
+
+    /**
+     * @param minIterationTime in ms.
+     */
+    public BenchmarkHarness(int warmupIterations, int iterations,
+                            long minIterationTime) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.minIterationTime = TimeUnit.MILLISECONDS.toNanos(minIterationTime);
+    }
+
+    /**
+     * @param unit what an operation of benchmark is, e.g. "records".
+     * @throws Exception thrown by benchmark.
+     */
+    public Result measure(String name, String unit, Benchmark benchmark)
+            throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(benchmark);
+        }
+        double[] throughputs = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            throughputs[i] = iteration(benchmark);
+        }
+        return new Result(name, unit, throughputs);
+    }
+
+    /* Operations per second. */
+    private double iteration(Benchmark benchmark) throws Exception {
+        long operations = 0;
+        long t0 = System.nanoTime();
+        long elapsed;
+        do {
+            operations += benchmark.run();
+            elapsed = System.nanoTime() - t0;
+        } while (elapsed < minIterationTime);
+        return operations * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /* A JSON array of results, one per line. */
+    public static String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("  ").append(results.get(i).toJson())
+                    .append((i + 1 < results.size()) ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+}
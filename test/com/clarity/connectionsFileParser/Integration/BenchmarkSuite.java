@@ -0,0 +1,334 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.CompressedConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import com.clarity.connectionsFileParser.src.RandomConnectionsSimulator;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Not a unit test: the benchmarks of the hot paths, measured with
+ * BenchmarkHarness and reported as JSON so that runs can be compared:
+ *      - parse.*: decoding lines, String.split against the byte level
+ *        decoding of the scanners and the tailer,
+ *      - scan.<size>.<window>: ConnectionsParser.connectedClients on
+ *        generated files of each size, for the whole file and a five
+ *        minute window at its head, middle and tail,
+ *      - tailer.*: TailingConnectionsParser reading a whole file, on a
+ *        single thread and as a pipeline,
+ *      - topclient.*: the tailer with ten minute windows, the top client
+ *        counted exactly or approximated (top 10),
+ *      - compressed.*: the largest file compressed by
+ *        CompressedConnectionsFormat, the whole file and the five minute
+ *        window at its middle, against scan.<size>.full and .middle,
+ *      - order.full: the whole file scanned in timestamp order (with
+ *        a five minute disorder bound), against scan.<size>.full,
+ *      - graph.*: ConnectionsParser.connectionGraph of the whole file,
+ *        every pair kept or at most 10000 of them.
+ * The files are generated once by RandomConnectionsSimulator: a million
+ * connections per hour between uniformly drawn names, 5% of the records
+ * late by up to five minutes.
+ * Each benchmark runs in a JVM of its own unless -forks 0.
+ *
+ * usage: java BenchmarkSuite [-json <file>] [-filter <regex>]
+ *                            [-sizes <MB>,<MB>,...] [-forks <n>]
+ *                            [-w <warmups>] [-i <iterations>]
+ */
+public class BenchmarkSuite {
+
+    private static final String HOST = "Morrigan";
+    private static final long WRITES_PER_HOUR = 1_000_000;
+    private static final long FIRST_TIMESTAMP = 1565647204351L;
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(5);
+    private static final long MIN_ITERATION_MS = 200;
+    // Every benchmark counts the records it went through.
+    private static final String UNIT = "records";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int warmups = Integer.parseInt(options.getOrDefault("-w", "3"));
+        int iterations = Integer.parseInt(options.getOrDefault("-i", "5"));
+        BenchmarkHarness harness = new BenchmarkHarness(warmups, iterations,
+                MIN_ITERATION_MS);
+        if (options.containsKey("-run")) {
+            // A forked JVM: run one benchmark, report on the last line.
+            PrintStream out = System.out;
+            File data = new File(options.get("-data"));
+            String name = options.get("-run");
+            out.println(harness.measure(name, UNIT,
+                    benchmarks(data).get(name)).toJson());
+            return;
+        }
+
+        int forks = Integer.parseInt(options.getOrDefault("-forks", "1"));
+        Pattern filter = Pattern.compile(options.getOrDefault("-filter", ".*"));
+        File data = Files.createTempDirectory("benchmarks").toFile();
+        List<BenchmarkHarness.Result> results = new ArrayList<>();
+        PrintStream originalOut = System.out;
+        try {
+            for (String size : options.getOrDefault("-sizes", "1,16,64")
+                    .split(",")) {
+                File text = new File(data, size + "MB.txt");
+                generate(text, Long.parseLong(size) * 1024 * 1024, 42);
+                CompressedConnectionsFormat.convert(text,
+                        new File(data, size + "MB.conz"));
+            }
+            for (String name : benchmarks(data).keySet()) {
+                if (!filter.matcher(name).find()) {
+                    continue;
+                }
+                BenchmarkHarness.Result result = (forks > 0) ?
+                        fork(name, data, options) :
+                        harness.measure(name, UNIT,
+                                benchmarks(data).get(name));
+                System.setOut(originalOut);
+                System.out.println(result);
+                results.add(result);
+            }
+        } finally {
+            System.setOut(originalOut);
+            for (File f : data.listFiles()) {
+                f.delete();
+            }
+            data.delete();
+        }
+        String json = BenchmarkHarness.toJson(results);
+        if (options.containsKey("-json")) {
+            try (FileWriter writer = new FileWriter(options.get("-json"))) {
+                writer.write(json);
+            }
+        } else {
+            System.out.print(json);
+        }
+    }
+
+    /* Runs the benchmark name in a new JVM, with the same class path. */
+    private static BenchmarkHarness.Result fork(String name, File data,
+                                                Map<String, String> options)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                BenchmarkSuite.class.getName(), "-run", name,
+                "-data", data.getPath(),
+                "-w", options.getOrDefault("-w", "3"),
+                "-i", options.getOrDefault("-i", "5")));
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String last = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                last = line;
+            }
+        }
+        if (process.waitFor() != 0 || last == null) {
+            throw new IOException(name + ": forked JVM failed");
+        }
+        return BenchmarkHarness.Result.fromJson(last);
+    }
+
+    /**
+     * Every benchmark, by name, on the files of data.
+     * @throws IOException
+     */
+    private static Map<String, BenchmarkHarness.Benchmark> benchmarks(
+            File data) throws IOException {
+        Map<String, BenchmarkHarness.Benchmark> benchmarks =
+                new LinkedHashMap<>();
+        File[] files = data.listFiles((d, name) -> name.endsWith("MB.txt"));
+        Arrays.sort(files, (a, b) -> Long.compare(a.length(), b.length()));
+        if (files.length == 0) {
+            return benchmarks;
+        }
+        File smallest = files[0];
+        File largest = files[files.length - 1];
+
+        byte[] lines = Files.readAllBytes(smallest.toPath());
+        benchmarks.put("parse.split", () -> parseSplit(lines));
+        benchmarks.put("parse.bytes", () -> parseBytes(lines));
+
+        for (File f : files) {
+            String size = f.getName().replace(".txt", "");
+            byte[] content = Files.readAllBytes(f.toPath());
+            long records = count(content);
+            long last = lastTimestamp(content);
+            long middle = (FIRST_TIMESTAMP + last) / 2;
+            benchmarks.put("scan." + size + ".full",
+                    () -> scan(f, 0, Long.MAX_VALUE - WINDOW, records));
+            benchmarks.put("scan." + size + ".head", () -> scan(f,
+                    FIRST_TIMESTAMP, FIRST_TIMESTAMP + WINDOW, records));
+            benchmarks.put("scan." + size + ".middle",
+                    () -> scan(f, middle, middle + WINDOW, records));
+            benchmarks.put("scan." + size + ".tail",
+                    () -> scan(f, last - WINDOW, last, records));
+        }
+
+        long records = count(Files.readAllBytes(largest.toPath()));
+        File compressed = new File(data, largest.getName().replace(".txt",
+                ".conz"));
+        long last = lastTimestamp(Files.readAllBytes(largest.toPath()));
+        long middle = (FIRST_TIMESTAMP + last) / 2;
+        benchmarks.put("compressed.full", () -> scan(compressed, 0,
+                Long.MAX_VALUE - WINDOW, records));
+        benchmarks.put("compressed.middle", () -> scan(compressed, middle,
+                middle + WINDOW, records));
+        benchmarks.put("tailer.single", () -> tail(largest, records,
+                TimeUnit.HOURS.toMillis(1), 0, 0));
+        benchmarks.put("tailer.pipeline1", () -> tail(largest, records,
+                TimeUnit.HOURS.toMillis(1), 0, 1));
+        benchmarks.put("tailer.pipeline2", () -> tail(largest, records,
+                TimeUnit.HOURS.toMillis(1), 0, 2));
+        benchmarks.put("topclient.exact", () -> tail(largest, records,
+                TimeUnit.MINUTES.toMillis(10), 0, 0));
+        benchmarks.put("topclient.top10", () -> tail(largest, records,
+                TimeUnit.MINUTES.toMillis(10), 10, 0));
+        benchmarks.put("order.full", () -> order(largest, records));
+        benchmarks.put("graph.exact", () -> graph(largest, records, 1 << 20));
+        benchmarks.put("graph.bounded", () -> graph(largest, records,
+                10_000));
+        return benchmarks;
+    }
+
+    /* The way Main used to read a line: split, then parse. */
+    private static long parseSplit(byte[] data) throws IOException {
+        long records = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(data)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                long tsc = Long.parseLong(tokens[0]);
+                if (tokens[2].equals(HOST)) {
+                    tsc++;
+                }
+                BenchmarkHarness.sink += tsc;
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /* The way the scanners and the tailer decode a line: no String. */
+    private static long parseBytes(byte[] data) {
+        byte[] host = HOST.getBytes(Charset.defaultCharset());
+        long records = 0;
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            long tsc = 0;
+            int p = lineStart;
+            for (; data[p] != ' '; p++) {
+                tsc = tsc * 10 + (data[p] - '0');
+            }
+            int hostStart = p + 1;
+            while (data[hostStart] != ' ') {
+                hostStart++;
+            }
+            hostStart++;
+            if (Arrays.equals(data, hostStart, i, host, 0, host.length)) {
+                tsc++;
+            }
+            BenchmarkHarness.sink += tsc;
+            records++;
+            lineStart = i + 1;
+        }
+        return records;
+    }
+
+    private static long scan(File f, long start, long end, long records)
+            throws IOException {
+        // The results go nowhere.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        new ConnectionsParser(f, start, end, HOST).connectedClients();
+        return records;
+    }
+
+    /* The reader scan of the whole file, its clients in timestamp order. */
+    private static long order(File f, long records) throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ConnectionsParser cp = new ConnectionsParser(f, 0,
+                Long.MAX_VALUE - WINDOW, HOST);
+        cp.setOrdering(WINDOW, ConnectionsParser.LatePolicy.COUNT, null);
+        cp.connectedClients();
+        return records;
+    }
+
+    /* The connection graph of the whole file. */
+    private static long graph(File f, long records, int maxEdges)
+            throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        new ConnectionsParser(f, 0, Long.MAX_VALUE - WINDOW, HOST)
+                .connectionGraph(10, maxEdges);
+        return records;
+    }
+
+    private static long tail(File f, long records, long interval, int topK,
+                             int parsers) {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                interval, f, HOST);
+        tcp.setTopK(topK);
+        tcp.setPipeline(parsers);
+        tcp.run();
+        return records;
+    }
+
+    private static long lastTimestamp(byte[] data) {
+        int end = data.length - 1;
+        int start = end;
+        while (start > 0 && data[start - 1] != '\n') {
+            start--;
+        }
+        String line = new String(data, start, end - start,
+                Charset.defaultCharset());
+        return Long.parseLong(line.split(" ")[0]);
+    }
+
+    private static long count(byte[] data) {
+        long lines = 0;
+        for (byte b : data) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Writes bytes of connections with RandomConnectionsSimulator.
+     * @throws IOException
+     */
+    static void generate(File f, long bytes, long seed) throws IOException {
+        RandomConnectionsSimulator simulator = new RandomConnectionsSimulator(
+                WRITES_PER_HOUR, new File(RandomConnectionsSimulator.NAMES_FILE),
+                f, seed);
+        simulator.setStartTime(FIRST_TIMESTAMP);
+        try {
+            long written = 0;
+            while (written < bytes) {
+                written += simulator.write(10_000);
+            }
+        } finally {
+            simulator.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.BinaryConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsIndex;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: compares the scan modes of ConnectionsParser on the 10000
+ * line test file and on a generated file of the requested size.
+ *
+ * usage: java ConnectionsParserBenchmark [generated_file_size_in_MB]
+ */
+public class ConnectionsParserBenchmark {
+
+    private static final int RUNS = 5;
+    private static final long FIVE_MINUTES = TimeUnit.MINUTES.toMillis(5);
+
+    public static void main(String[] args) throws IOException {
+        long megaBytes = (args.length > 0) ? Long.parseLong(args[0]) : 2048;
+        File smallFile = new File(
+                "./test/com/clarity/connectionsFileParser" +
+                        "/testFiles/input-file-10000.txt");
+        File bigFile = generate(megaBytes * 1024 * 1024);
+        File binaryFile = File.createTempFile("connections", ".bin");
+        try {
+            PrintStream originalOut = System.out;
+            // Output is not what we are measuring.
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            List<String> results = new ArrayList<>();
+            for (File f : new File[]{smallFile, bigFile}) {
+                long last = lastTimestamp(f);
+                for (ConnectionsParser.ScanMode mode :
+                        ConnectionsParser.ScanMode.values()) {
+                    results.add(f.getName() + " " + mode + " full: " +
+                            time(f, mode, 0, Long.MAX_VALUE - FIVE_MINUTES) +
+                            "ms");
+                    results.add(f.getName() + " " + mode + " last minute: " +
+                            time(f, mode, last - 60000, last) + "ms");
+                }
+            }
+            // Scaling curve of the parallel scan.
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int p = 1; p <= cores; p *= 2) {
+                results.add(bigFile.getName() + " PARALLEL(" + p + ") full: " +
+                        time(bigFile, p, 0, Long.MAX_VALUE - FIVE_MINUTES) +
+                        "ms");
+            }
+            // Same queries on the binary format.
+            BinaryConnectionsFormat.convert(bigFile, binaryFile);
+            results.add(binaryFile.getName() + " size: " +
+                    binaryFile.length() * 100 / bigFile.length() + "% of text");
+            results.add(binaryFile.getName() + " BINARY full: " +
+                    time(binaryFile, ConnectionsParser.ScanMode.READER, 0,
+                            Long.MAX_VALUE - FIVE_MINUTES) + "ms");
+
+            // Same queries with a sidecar index.
+            ConnectionsIndex.build(bigFile);
+            long last = lastTimestamp(bigFile);
+            results.add(bigFile.getName() + " INDEXED full: " +
+                    time(bigFile, ConnectionsParser.ScanMode.READER, 0,
+                            Long.MAX_VALUE - FIVE_MINUTES) + "ms");
+            results.add(bigFile.getName() + " INDEXED last minute: " +
+                    time(bigFile, ConnectionsParser.ScanMode.READER,
+                            last - 60000, last) + "ms");
+            System.setOut(originalOut);
+            results.forEach(System.out::println);
+        } finally {
+            ConnectionsIndex.sidecar(bigFile).delete();
+            binaryFile.delete();
+            bigFile.delete();
+        }
+    }
+
+    /* Best of RUNS scans of the window. */
+    private static long time(File f, ConnectionsParser.ScanMode mode,
+                             long start, long end) throws IOException {
+        return time(f, mode, Runtime.getRuntime().availableProcessors(),
+                start, end);
+    }
+
+    private static long time(File f, int parallelism, long start, long end)
+            throws IOException {
+        return time(f, ConnectionsParser.ScanMode.PARALLEL, parallelism,
+                start, end);
+    }
+
+    private static long time(File f, ConnectionsParser.ScanMode mode,
+                             int parallelism, long start, long end)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            new ConnectionsParser(f, start, end, "Morrigan", mode, parallelism)
+                    .connectedClients();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(best);
+    }
+
+    private static long lastTimestamp(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(Math.max(0, raf.length() - 256));
+            String line;
+            String last = null;
+            while ((line = raf.readLine()) != null) {
+                last = line;
+            }
+            return Long.parseLong(last.split(" ")[0]);
+        }
+    }
+
+    /* Sorted timestamps, ~1ms apart, random names. */
+    static File generate(long bytes) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(
+                "./test/com/clarity/connectionsFileParser/testFiles" +
+                        "/randomNames.txt"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                names.add(line.split(" ")[0]);
+            }
+        }
+        File f = File.createTempFile("connections", ".txt");
+        Random random = new Random(42);
+        long tsc = 1565647204351L;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(f),
+                1 << 16)) {
+            long written = 0;
+            while (written < bytes) {
+                tsc += random.nextInt(3);
+                String line = tsc + " " + names.get(random.nextInt(names.size()))
+                        + " " + names.get(random.nextInt(names.size())) + "\n";
+                writer.write(line);
+                written += line.length();
+            }
+        }
+        return f;
+    }
+}
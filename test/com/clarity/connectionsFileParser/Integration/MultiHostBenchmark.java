@@ -0,0 +1,76 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.ConnectionsParser;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: one pass of ConnectionsParser over a generated file for
+ * 1, 10, 100 and 1000 hosts, against running the single host scan once per
+ * host.
+ *
+ * usage: java MultiHostBenchmark [generated_file_size_in_MB]
+ */
+public class MultiHostBenchmark {
+
+    private static final int RUNS = 3;
+    private static final long FIVE_MINUTES = TimeUnit.MINUTES.toMillis(5);
+
+    public static void main(String[] args) throws IOException {
+        long megaBytes = (args.length > 0) ? Long.parseLong(args[0]) : 512;
+        File file = ConnectionsParserBenchmark.generate(megaBytes * 1024 * 1024);
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(
+                "./test/com/clarity/connectionsFileParser/testFiles" +
+                        "/randomNames.txt"))) {
+            String line;
+            while ((line = reader.readLine()) != null && names.size() < 1000) {
+                String name = line.split(" ")[0];
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        try {
+            PrintStream originalOut = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            List<String> results = new ArrayList<>();
+            long single = time(file, names.subList(0, 1), false);
+            results.add("1 host, single host scan: " + single + "ms");
+            for (int n = 1; n <= names.size(); n *= 10) {
+                results.add(n + " hosts, one pass: " +
+                        time(file, names.subList(0, n), true) + "ms");
+            }
+            results.add(names.size() + " hosts, one scan per host " +
+                    "(estimated): " + single * names.size() + "ms");
+            System.setOut(originalOut);
+            results.forEach(System.out::println);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /* Best of RUNS full scans, MAPPED. */
+    private static long time(File f, List<String> hosts, boolean multiHost)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            if (multiHost) {
+                new ConnectionsParser(f, 0, Long.MAX_VALUE - FIVE_MINUTES,
+                        hosts).connectedClients();
+            } else {
+                new ConnectionsParser(f, 0, Long.MAX_VALUE - FIVE_MINUTES,
+                        hosts.get(0), ConnectionsParser.ScanMode.MAPPED)
+                        .connectedClients();
+            }
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(best);
+    }
+}
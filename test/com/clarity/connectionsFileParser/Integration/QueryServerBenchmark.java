@@ -0,0 +1,90 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.QueryServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: the latency of one minute window queries for a host,
+ * answered by a QueryServer from its cache, against a MAPPED scan of the
+ * file in the same (warm) JVM, which is the best a `java Main` can do.
+ *
+ * usage: java QueryServerBenchmark [generated_file_size_in_MB]
+ */
+public class QueryServerBenchmark {
+
+    private static final int QUERIES = 2000;
+    private static final int SCANS = 20;
+    private static final long FIRST_TIMESTAMP = 1565647204351L;
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(1);
+    private static final String HOST = "Morrigan";
+
+    public static void main(String[] args) throws Exception {
+        long megaBytes = (args.length > 0) ? Long.parseLong(args[0]) : 64;
+        File file = ConnectionsParserBenchmark.generate(megaBytes * 1024 * 1024);
+        // About 1 record per ms, see generate.
+        long span = file.length() / 30;
+        Random random = new Random(42);
+        try (QueryServer server = new QueryServer(0, file.getParentFile(),
+                QueryServer.DEFAULT_CACHE_BYTES * 4)) {
+            new Thread(server).start();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                    server.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(
+                         socket.getInputStream()));
+                 Writer out = new OutputStreamWriter(
+                         socket.getOutputStream())) {
+                long t0 = System.nanoTime();
+                query(in, out, FIRST_TIMESTAMP, FIRST_TIMESTAMP, file);
+                System.out.println("first query (loads the file): " +
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) +
+                        "ms, " + (server.getCachedBytes() >> 20) + "MB cached");
+                long[] latencies = new long[QUERIES];
+                for (int i = 0; i < QUERIES; i++) {
+                    long start = FIRST_TIMESTAMP + (long) (random.nextDouble()
+                            * span);
+                    t0 = System.nanoTime();
+                    query(in, out, start, start + WINDOW, file);
+                    latencies[i] = System.nanoTime() - t0;
+                }
+                Arrays.sort(latencies);
+                System.out.println("cached query p50: " +
+                        latencies[QUERIES / 2] / 1000 + "us, p99: " +
+                        latencies[QUERIES * 99 / 100] / 1000 + "us");
+            }
+        }
+
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long[] scans = new long[SCANS];
+        for (int i = 0; i < SCANS; i++) {
+            long start = FIRST_TIMESTAMP + (long) (random.nextDouble() * span);
+            long t0 = System.nanoTime();
+            new ConnectionsParser(file, start, start + WINDOW, HOST,
+                    ConnectionsParser.ScanMode.MAPPED).connectedClients();
+            scans[i] = System.nanoTime() - t0;
+        }
+        System.setOut(originalOut);
+        Arrays.sort(scans);
+        System.out.println("MAPPED scan p50: " + scans[SCANS / 2] / 1000 +
+                "us");
+        file.delete();
+    }
+
+    private static void query(BufferedReader in, Writer out, long start,
+                              long end, File file) throws IOException {
+        out.write(start + " " + end + " " + HOST + " " + file + "\n");
+        out.flush();
+        while (!in.readLine().isEmpty()) {
+            // The answer.
+        }
+    }
+}
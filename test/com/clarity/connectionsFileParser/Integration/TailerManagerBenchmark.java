@@ -0,0 +1,99 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.TailerManager;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: follows many files with a TailerManager, and reports
+ * the heap used per followed file, the number of threads, and how long it
+ * takes for a record appended to every file to be reported.
+ *
+ * usage: java TailerManagerBenchmark [number_of_files] [threads]
+ */
+public class TailerManagerBenchmark {
+
+    private static final long DOWN_TIME = 500;
+    private static final long INTERVAL = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        File directory = Files.createTempDirectory("tenants").toFile();
+        PrintStream originalOut = System.out;
+        ByteArrayOutputStream dumps = new ByteArrayOutputStream();
+        try {
+            File[] logs = new File[files];
+            for (int i = 0; i < files; i++) {
+                logs[i] = new File(directory, "tenant" + i + ".log");
+                append(logs[i], "1000 a h\n");
+            }
+            long heapBefore = usedHeap();
+            int threadsBefore = Thread.activeCount();
+            System.setOut(new PrintStream(dumps, true));
+            try (TailerManager manager = new TailerManager(threads)) {
+                for (File log : logs) {
+                    manager.follow(new TailingConnectionsParser(DOWN_TIME,
+                            INTERVAL, log, "h"));
+                }
+                // Let every tailer read its first record and go idle.
+                Thread.sleep(2 * DOWN_TIME);
+                long heapAfter = usedHeap();
+                int threadsAfter = Thread.activeCount();
+
+                long t0 = System.nanoTime();
+                for (File log : logs) {
+                    append(log, "2600 b h\n");
+                }
+                while (count(dumps.toString()) < files) {
+                    Thread.sleep(1);
+                }
+                long elapsed = System.nanoTime() - t0;
+
+                originalOut.println("followed files: " + files);
+                originalOut.println("heap per file: " +
+                        (heapAfter - heapBefore) / files + " bytes");
+                originalOut.println("threads: " + (threadsAfter -
+                        threadsBefore) + " (a thread per file: " + files + ")");
+                originalOut.println("all files reported in: " +
+                        TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+            }
+        } finally {
+            System.setOut(originalOut);
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static int count(String dumps) {
+        int n = 0;
+        for (int i = dumps.indexOf("Results"); i >= 0;
+             i = dumps.indexOf("Results", i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+                .getUsed();
+    }
+
+    private static void append(File f, String s) throws IOException {
+        try (FileWriter writer = new FileWriter(f, true)) {
+            writer.write(s);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.ResultSink;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import com.clarity.connectionsFileParser.WindowResult;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: measures the latency from an append to the log to the
+ * tailer reporting it, under bursty writes.
+ *
+ * With interval = 0 every new timestamp closes a window, so the tailer
+ * hands the window ending at tsc to its sink as soon as it has read the
+ * line written at tsc, and the latency is the time it gets there minus tsc.
+ */
+public class TailingLatencyBenchmark {
+
+    private static final int BURSTS = 50;
+    private static final int LINES_PER_BURST = 20;
+
+    public static void main(String[] args) throws Exception {
+        File connectionsFile = File.createTempFile("connections", ".txt");
+        long[] latencies = new long[BURSTS];
+        int[] seen = {0};
+        TailingConnectionsParser tcp = new TailingConnectionsParser(
+                TimeUnit.SECONDS.toMillis(2), 0, connectionsFile, "Morrigan");
+        tcp.setSink(new ResultSink() {
+            @Override
+            public void window(WindowResult window) {
+                if (seen[0] < BURSTS) {
+                    latencies[seen[0]++] =
+                            System.currentTimeMillis() - window.getTo();
+                }
+            }
+
+            @Override
+            public void clients(String host, byte[] names, int offset,
+                                int length, boolean last) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        Thread consumer = new Thread(tcp);
+        consumer.start();
+        try (FileWriter writer = new FileWriter(connectionsFile)) {
+            long tsc = 0;
+            for (int burst = 0; burst <= BURSTS; burst++) {
+                // Idle, then a burst.
+                Thread.sleep(100 + burst % 7 * 50);
+                StringBuilder lines = new StringBuilder();
+                tsc = Math.max(tsc + 1, System.currentTimeMillis());
+                for (int i = 0; i < LINES_PER_BURST; i++) {
+                    lines.append(tsc).append(" Aadvik Morrigan\n");
+                }
+                writer.write(lines.toString());
+                writer.flush();
+            }
+        }
+        Thread.sleep(500);
+        tcp.terminate();
+        consumer.join();
+        connectionsFile.delete();
+
+        Arrays.sort(latencies, 0, seen[0]);
+        System.out.println("windows reported: " + seen[0]);
+        System.out.println("latency p50: " + latencies[seen[0] / 2] + "ms");
+        System.out.println("latency max: " + latencies[seen[0] - 1] + "ms");
+    }
+}
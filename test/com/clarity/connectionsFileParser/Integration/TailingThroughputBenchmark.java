@@ -0,0 +1,76 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Integration;
+
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import com.clarity.connectionsFileParser.src.RandomConnectionsSimulator;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not a unit test: a producer appends to the log as fast as it can while
+ * the tailer follows it, and we report the throughput and the CPU time the
+ * tailer thread spent per record. With parsers > 0 the tailer runs as a
+ * pipeline (see TailingConnectionsParser.setPipeline) and the throughput of
+ * each stage is reported as well. The producer is RandomConnectionsSimulator,
+ * with Zipfian clients and hosts of exponent skew, and rotating the log
+ * every rotate_bytes if given.
+ *
+ * usage: java TailingThroughputBenchmark [number_of_records] [parsers]
+ *                                        [skew] [rotate_bytes]
+ */
+public class TailingThroughputBenchmark {
+
+    private static final long DOWN_TIME = 20;
+    private static final int RECORDS_PER_APPEND = 1000;
+    // Stay in the same hour, we measure ingestion not dumps.
+    private static final long WRITES_PER_HOUR = 3_600_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        long records = (args.length > 0) ? Long.parseLong(args[0]) : 2_000_000;
+        int parsers = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+        double skew = (args.length > 2) ? Double.parseDouble(args[2]) : 1;
+        long rotate = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+        File connectionsFile = File.createTempFile("connections", ".txt");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] cpu = {0};
+        TailingConnectionsParser tcp = new TailingConnectionsParser(DOWN_TIME,
+                TimeUnit.HOURS.toMillis(1), connectionsFile, "Morrigan");
+        tcp.setPipeline(parsers);
+        Thread consumer = new Thread(() -> {
+            tcp.run();
+            cpu[0] = threads.getCurrentThreadCpuTime();
+        });
+
+        long t0 = System.nanoTime();
+        consumer.start();
+        RandomConnectionsSimulator producer = new RandomConnectionsSimulator(
+                WRITES_PER_HOUR, new File(RandomConnectionsSimulator.NAMES_FILE),
+                connectionsFile);
+        producer.setSkew(skew, skew);
+        producer.setOutOfOrder(0, 0);
+        producer.setRotation(rotate);
+        for (long i = 0; i < records; i += RECORDS_PER_APPEND) {
+            producer.write(Math.min(RECORDS_PER_APPEND, records - i));
+        }
+        producer.close();
+        consumer.join();
+        // The tailer gives up after 5 idle checks.
+        long elapsed = System.nanoTime() - t0 - TimeUnit.MILLISECONDS.toNanos(
+                5 * DOWN_TIME);
+        connectionsFile.delete();
+        new File(connectionsFile.getPath() + ".1").delete();
+
+        System.out.println("records: " + records);
+        System.out.println("throughput: " + records * 1000 /
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed)) +
+                " records/s");
+        System.out.println("tailer cpu: " + cpu[0] / records + "ns/record");
+        if (tcp.getPipelineStats() != null) {
+            System.out.println(tcp.getPipelineStats());
+        }
+    }
+}
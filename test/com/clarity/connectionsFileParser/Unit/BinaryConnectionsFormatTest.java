@@ -0,0 +1,80 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.BinaryConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BinaryConnectionsFormatTest {
+
+    private static final File TEXT_FILE = new File(
+            "test/com/clarity/connectionsFileParser/testFiles/input-file-10000.txt");
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File binaryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        binaryFile = File.createTempFile("connections", ".bin");
+        BinaryConnectionsFormat.convert(TEXT_FILE, binaryFile);
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        binaryFile.delete();
+    }
+
+    @Test
+    public void DetectsFormatTest() throws IOException {
+        assertTrue(BinaryConnectionsFormat.isBinary(binaryFile));
+        assertFalse(BinaryConnectionsFormat.isBinary(TEXT_FILE));
+    }
+
+    @Test
+    public void BinaryFileIsSmallerTest() {
+        assertTrue(binaryFile.length() < TEXT_FILE.length() / 2);
+    }
+
+    @Test
+    public void ConnectedClientsMatchesTextFileTest() throws IOException {
+        long start = 1565647204351L;
+        for (String host : new String[]{"Morrigan", "Rehgan", "Nobody"}) {
+            for (long end : new long[]{start, start + 3600000L,
+                    start + 40000000L, Long.MAX_VALUE - 1000000L}) {
+                assertEquals(connectedClients(TEXT_FILE, start, end, host),
+                        connectedClients(binaryFile, start, end, host));
+            }
+        }
+    }
+
+    @Test
+    public void TailerMatchesTextFileTest() {
+        assertEquals(tail(TEXT_FILE), tail(binaryFile));
+    }
+
+    private String connectedClients(File file, long start, long end,
+                                    String host) throws IOException {
+        outContent.reset();
+        System.setOut(new PrintStream(outContent));
+        new ConnectionsParser(file, start, end, host).connectedClients();
+        return outContent.toString();
+    }
+
+    private String tail(File file) {
+        outContent.reset();
+        System.setOut(new PrintStream(outContent));
+        new TailingConnectionsParser(0, TimeUnit.HOURS.toMillis(1), file,
+                "Morrigan").run();
+        return outContent.toString();
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.CompressedConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompressedConnectionsFormatTest {
+
+    private static final File TEXT_FILE = new File(
+            "test/com/clarity/connectionsFileParser/testFiles/input-file-10000.txt");
+    private static final long START = 1565647204351L;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File compressedFile;
+
+    @Before
+    public void setUp() throws IOException {
+        compressedFile = File.createTempFile("connections", ".conz");
+        // Small blocks, so that windows start and end inside the file.
+        CompressedConnectionsFormat.convert(TEXT_FILE, compressedFile, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        compressedFile.delete();
+    }
+
+    @Test
+    public void DetectsFormatTest() throws IOException {
+        assertTrue(CompressedConnectionsFormat.isCompressed(compressedFile));
+        assertFalse(CompressedConnectionsFormat.isCompressed(TEXT_FILE));
+    }
+
+    @Test
+    public void CompressedFileIsSmallerTest() {
+        assertTrue(compressedFile.length() < TEXT_FILE.length() / 2);
+    }
+
+    @Test
+    public void ConnectedClientsMatchesTextFileTest() throws IOException {
+        long[][] windows = {{START, START}, {START, START + 3600000L},
+                {START + 20000000L, START + 40000000L},
+                {START + 40000000L, Long.MAX_VALUE - 1000000L},
+                {0, Long.MAX_VALUE - 1000000L}};
+        for (long[] window : windows) {
+            for (String host : new String[]{"Morrigan", "Rehgan", "Nobody"}) {
+                String expected = scan(new ConnectionsParser(TEXT_FILE,
+                        window[0], window[1], host));
+                assertEquals(expected, scan(new ConnectionsParser(
+                        compressedFile, window[0], window[1], host)));
+                assertEquals(expected, scan(new ConnectionsParser(
+                        compressedFile, window[0], window[1], host,
+                        ConnectionsParser.ScanMode.PARALLEL, 3)));
+            }
+            List<String> hosts = List.of("Morrigan", "Rehgan", "Nobody");
+            assertEquals(scan(new ConnectionsParser(TEXT_FILE, window[0],
+                    window[1], hosts)), scan(new ConnectionsParser(
+                    compressedFile, window[0], window[1], hosts)));
+        }
+    }
+
+    @Test
+    public void GraphAndOrderedScanMatchTextFileTest() throws IOException {
+        long end = START + 20000000L;
+        String[] outputs = new String[2];
+        File[] files = {TEXT_FILE, compressedFile};
+        for (int i = 0; i < files.length; i++) {
+            ConnectionsParser cp = new ConnectionsParser(files[i], START, end,
+                    "Morrigan");
+            cp.setOrdering(600000, ConnectionsParser.LatePolicy.COUNT, null);
+            outputs[i] = scan(cp);
+            cp.connectionGraph(5, 1000);
+            outputs[i] += outContent.toString();
+        }
+        assertTrue(outputs[0].contains("Connection graph"));
+        assertEquals(outputs[0], outputs[1]);
+    }
+
+    private String scan(ConnectionsParser cp) throws IOException {
+        outContent.reset();
+        System.setOut(new PrintStream(outContent));
+        cp.connectedClients();
+        String output = outContent.toString();
+        outContent.reset();
+        return output;
+    }
+}
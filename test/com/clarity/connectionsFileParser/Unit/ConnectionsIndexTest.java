@@ -0,0 +1,98 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.ConnectionsIndex;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConnectionsIndexTest {
+
+    private static final long BASE = 1565647204351L;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File connectionsFile;
+
+    @Before
+    public void setUp() throws IOException {
+        connectionsFile = File.createTempFile("connections", ".txt");
+        // 2 days, 1 connection per second, 5% out of order by up to 5m,
+        // host "rare" only shows up in the first hour.
+        Random random = new Random(3);
+        try (BufferedWriter writer =
+                     new BufferedWriter(new FileWriter(connectionsFile))) {
+            for (long i = 0; i < 2 * 24 * 3600; i++) {
+                long tsc = BASE + i * 1000;
+                if (random.nextInt(100) < 5) {
+                    tsc -= random.nextInt(5 * 60 * 1000);
+                }
+                String host = (i < 3600 && i % 100 == 0) ? "rare" : "h" + (i % 7);
+                writer.write(tsc + " c" + (i % 13) + " " + host + "\n");
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        ConnectionsIndex.sidecar(connectionsFile).delete();
+        connectionsFile.delete();
+    }
+
+    @Test
+    public void IndexedScanMatchesFullScanTest() throws IOException {
+        long[][] windows = {{BASE, BASE + 3600000L},
+                {BASE + 86400000L, BASE + 86400000L + 60000L},
+                {BASE + 10 * 3600000L, BASE + 30 * 3600000L},
+                {0, Long.MAX_VALUE - 1000000L}};
+        String[] hosts = {"h3", "rare", "absent"};
+        String[][] expected = new String[windows.length][hosts.length];
+        for (int w = 0; w < windows.length; w++) {
+            for (int h = 0; h < hosts.length; h++) {
+                expected[w][h] = scan(windows[w], hosts[h]);
+            }
+        }
+
+        ConnectionsIndex.build(connectionsFile, 64 * 1024);
+        assertTrue(ConnectionsIndex.sidecar(connectionsFile).exists());
+        for (int w = 0; w < windows.length; w++) {
+            for (int h = 0; h < hosts.length; h++) {
+                assertEquals(expected[w][h], scan(windows[w], hosts[h]));
+            }
+        }
+        assertTrue(expected[0][1].length() > 0);
+    }
+
+    @Test
+    public void StaleIndexIsIgnoredTest() throws IOException {
+        ConnectionsIndex.build(connectionsFile);
+        try (FileWriter writer = new FileWriter(connectionsFile, true)) {
+            writer.write((BASE + 3 * 86400000L) + " late absent\n");
+        }
+        assertEquals("late ", scan(new long[]{BASE + 3 * 86400000L,
+                BASE + 3 * 86400000L}, "absent"));
+    }
+
+    @Test
+    public void IndexIsSmallTest() throws IOException {
+        ConnectionsIndex.build(connectionsFile);
+        assertTrue(Files.size(ConnectionsIndex.sidecar(connectionsFile).toPath())
+                < connectionsFile.length() / 100);
+    }
+
+    private String scan(long[] window, String host) throws IOException {
+        outContent.reset();
+        System.setOut(new PrintStream(outContent));
+        new ConnectionsParser(connectionsFile, window[0], window[1], host)
+                .connectedClients();
+        return outContent.toString();
+    }
+}
@@ -2,15 +2,27 @@
 
 package com.clarity.connectionsFileParser.Unit;
 
+import com.clarity.connectionsFileParser.BinaryConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsIndex;
 import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.GraphResult;
+import com.clarity.connectionsFileParser.ResultSink;
+import com.clarity.connectionsFileParser.WindowResult;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintStream;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -106,4 +118,432 @@ public class ConnectionsParserTest {
             fail();
         }
     }
+
+    @Test
+    public void MappedScanMatchesReaderScanTest() throws IOException {
+        File bigFile = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-10000.txt");
+        long start = 1565647204351L;
+        long[][] windows = {{start, start + 3600000L},
+                {start + 20000000L, start + 40000000L}, {0, Long.MAX_VALUE - 1000000L}};
+        for (String host : new String[]{"Morrigan", "Rehgan", "Nobody"}) {
+            for (long[] window : windows) {
+                assertEquals(scan(bigFile, window[0], window[1], host,
+                        ConnectionsParser.ScanMode.READER),
+                        scan(bigFile, window[0], window[1], host,
+                                ConnectionsParser.ScanMode.MAPPED));
+            }
+        }
+    }
+
+    @Test
+    public void MappedScanConsidersOutOfOrderConnectionsTest() throws IOException {
+        File file = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-7.txt");
+        String out = scan(file, START_TIME, END_TIME, "Rehgan",
+                ConnectionsParser.ScanMode.MAPPED);
+        assertTrue(out.contains("John"));
+        assertFalse(out.contains("Ronald"));
+    }
+
+    @Test
+    public void MappedScanEmptyFileTest() throws IOException {
+        File emptyFile = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-0.txt");
+        assertEquals("", scan(emptyFile, START_TIME, END_TIME, "Rehgan",
+                ConnectionsParser.ScanMode.MAPPED));
+    }
+
+    private String scan(File file, long start, long end, String host,
+                        ConnectionsParser.ScanMode mode) throws IOException {
+        outContent.reset();
+        System.setOut(new PrintStream(outContent));
+        new ConnectionsParser(file, start, end, host, mode).connectedClients();
+        return outContent.toString();
+    }
+
+    @Test
+    public void SeekingToWindowDoesNotChangeOutputTest() throws IOException {
+        File file = File.createTempFile("connections", ".txt");
+        file.deleteOnExit();
+        // 20 days of 1 connection per second, 5% out of order by up to 5m.
+        Random random = new Random(7);
+        long base = 1565647204351L;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (long i = 0; i < 20 * 24 * 3600; i++) {
+                long tsc = base + i * 1000;
+                if (random.nextInt(100) < 5) {
+                    tsc -= random.nextInt(5 * 60 * 1000);
+                }
+                writer.write(tsc + " c" + (i % 13) + " h" + (i % 7) + "\n");
+            }
+        }
+        long last = base + (20 * 24 * 3600 - 1) * 1000L;
+        long[][] windows = {{last - 3600000L, last},
+                {base + 86400000L, base + 86400000L + 60000L},
+                {base - 1000, base + 1000}, {last + 1, last + 100000}};
+        for (long[] window : windows) {
+            String expected = naiveScan(file, window[0], window[1], "h3");
+            for (ConnectionsParser.ScanMode mode :
+                    ConnectionsParser.ScanMode.values()) {
+                assertEquals(expected, scan(file, window[0], window[1], "h3",
+                        mode));
+            }
+        }
+    }
+
+    @Test
+    public void EveryScanModeParsesLinesAlikeTest() throws IOException {
+        File file = File.createTempFile("connections", ".txt");
+        file.deleteOnExit();
+        // Windows line endings, and no newline at the end.
+        Files.write(file.toPath(), ("1000 Ann Rehgan\r\n1001 Bob Other\r\n" +
+                "1002 Cid Rehgan extra\r\n1003 Dan Rehgan").getBytes());
+        for (ConnectionsParser.ScanMode mode :
+                ConnectionsParser.ScanMode.values()) {
+            assertEquals("Ann Cid Dan ", scan(file, 1000, 2000, "Rehgan",
+                    mode));
+        }
+        Files.write(file.toPath(), ("1000 Ann Rehgan\n1x01 Bob Rehgan\n")
+                .getBytes());
+        for (ConnectionsParser.ScanMode mode :
+                ConnectionsParser.ScanMode.values()) {
+            try {
+                scan(file, 1000, 2000, "Rehgan", mode);
+                fail(mode.toString());
+            } catch (NumberFormatException e) {
+                assertTrue(e.getMessage().contains("offset 16"));
+            }
+        }
+        // The offset is in the file, not from where the scan started.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append(1000000L + i * 1000L).append(" c h\n");
+        }
+        int bad = text.length();
+        text.append("1x01 c h\n");
+        Files.write(file.toPath(), text.toString().getBytes());
+        long last = 1000000L + 99999 * 1000L;
+        for (ConnectionsParser.ScanMode mode :
+                ConnectionsParser.ScanMode.values()) {
+            try {
+                scan(file, last - 3600000L, last, "h", mode);
+                fail(mode.toString());
+            } catch (NumberFormatException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith(
+                        "offset " + bad));
+            }
+        }
+    }
+
+    @Test
+    public void ParallelScanMatchesReaderScanTest() throws IOException {
+        File bigFile = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-10000.txt");
+        long start = 1565647204351L;
+        for (long end : new long[]{start + 3600000L, start + 40000000L,
+                Long.MAX_VALUE - 1000000L}) {
+            String expected = scan(bigFile, start, end, "Morrigan",
+                    ConnectionsParser.ScanMode.READER);
+            for (int parallelism : new int[]{1, 3, 8}) {
+                outContent.reset();
+                System.setOut(new PrintStream(outContent));
+                new ConnectionsParser(bigFile, start, end, "Morrigan",
+                        ConnectionsParser.ScanMode.PARALLEL, parallelism)
+                        .connectedClients();
+                assertEquals(expected, outContent.toString());
+            }
+        }
+    }
+
+    @Test
+    public void MultiHostScanMatchesSingleHostScansTest() throws IOException {
+        File bigFile = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-10000.txt");
+        File indexed = File.createTempFile("connections", ".txt");
+        File binary = File.createTempFile("connections", ".bin");
+        try {
+            Files.copy(bigFile.toPath(), indexed.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            ConnectionsIndex.build(indexed, 4096);
+            BinaryConnectionsFormat.convert(bigFile, binary);
+            List<String> hosts = List.of("Morrigan", "Rehgan", "Nobody",
+                    "Zhane");
+            long start = 1565647204351L;
+            long end = start + 40000000L;
+            StringBuilder expected = new StringBuilder();
+            for (String host : hosts) {
+                expected.append(host).append(": ").append(scan(bigFile, start,
+                        end, host, ConnectionsParser.ScanMode.READER))
+                        .append('\n');
+            }
+            for (File file : new File[]{bigFile, indexed, binary}) {
+                for (ConnectionsParser.ScanMode mode :
+                        ConnectionsParser.ScanMode.values()) {
+                    outContent.reset();
+                    System.setOut(new PrintStream(outContent));
+                    new ConnectionsParser(file, start, end, hosts, mode, 3)
+                            .connectedClients();
+                    assertEquals(expected.toString(), outContent.toString());
+                }
+            }
+        } finally {
+            ConnectionsIndex.sidecar(indexed).delete();
+            indexed.delete();
+            binary.delete();
+        }
+    }
+
+    @Test
+    public void ConsecutiveScansPrintToSystemOutTest() throws IOException {
+        File file = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-5.txt");
+        for (int i = 0; i < 2; i++) {
+            new ConnectionsParser(file, START_TIME, END_TIME, "Rehgan")
+                    .connectedClients();
+        }
+        assertEquals("Tyreonna Heera Tyreonna Heera ", outContent.toString());
+    }
+
+    @Test
+    public void MultiHostScanWritesJsonTest() throws IOException {
+        File file = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-5.txt");
+        for (ConnectionsParser.ScanMode mode :
+                ConnectionsParser.ScanMode.values()) {
+            outContent.reset();
+            ConnectionsParser cp = new ConnectionsParser(file, START_TIME,
+                    END_TIME, List.of("Rehgan", "Nobody"), mode, 2);
+            cp.setSink(ResultSink.stdout(ResultSink.Format.JSON));
+            cp.connectedClients();
+            assertEquals("{\"type\": \"clients\", \"host\": \"Rehgan\", " +
+                    "\"clients\": [\"Tyreonna\", \"Heera\"], \"last\": true}\n" +
+                    "{\"type\": \"clients\", \"host\": \"Nobody\", " +
+                    "\"clients\": [], \"last\": true}\n", outContent.toString());
+        }
+    }
+
+    @Test
+    public void ConnectionGraphMatchesNaiveCountsTest() throws IOException {
+        File textFile = new File("test/com/clarity/connectionsFileParser" +
+                "/testFiles/input-file-10000.txt");
+        File binary = File.createTempFile("connections", ".bin");
+        try {
+            BinaryConnectionsFormat.convert(textFile, binary);
+            long start = 1565647204351L;
+            long end = start + 20000000L;
+            Map<String, Integer> pairs = new HashMap<>();
+            Map<String, Set<String>> clientsOf = new HashMap<>();
+            Map<String, Set<String>> hostsOf = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new FileReader(textFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] tokens = line.split(" ");
+                    long tsc = Long.parseLong(tokens[0]);
+                    if (tsc >= start && tsc <= end) {
+                        pairs.merge(tokens[1] + " " + tokens[2], 1,
+                                Integer::sum);
+                        clientsOf.computeIfAbsent(tokens[2],
+                                k -> new HashSet<>()).add(tokens[1]);
+                        hostsOf.computeIfAbsent(tokens[1],
+                                k -> new HashSet<>()).add(tokens[2]);
+                    }
+                }
+            }
+            int maxFanIn = 0;
+            for (Set<String> clients : clientsOf.values()) {
+                maxFanIn = Math.max(maxFanIn, clients.size());
+            }
+            for (File file : new File[]{textFile, binary}) {
+                GraphResult graph = graph(new ConnectionsParser(file, start,
+                        end, "Morrigan"), 5, 1 << 20);
+                assertEquals(pairs.size(), graph.getPairs());
+                assertEquals(0, graph.getMaxError());
+                assertEquals(5, graph.getTopPairs().size());
+                long previous = Long.MAX_VALUE;
+                for (GraphResult.Pair pair : graph.getTopPairs()) {
+                    assertEquals((long) pairs.get(pair.getClient() + " " +
+                            pair.getHost()), pair.getCount());
+                    assertTrue(pair.getCount() <= previous);
+                    previous = pair.getCount();
+                }
+                assertEquals(maxFanIn, graph.getTopFanIn().get(0).getFanIn());
+                GraphResult.Degree morrigan = graph.getHosts().get(0);
+                assertEquals("Morrigan", morrigan.getName());
+                assertEquals(clientsOf.get("Morrigan").size(),
+                        morrigan.getFanIn());
+                assertEquals(hostsOf.getOrDefault("Morrigan", Set.of()).size(),
+                        morrigan.getFanOut());
+            }
+        } finally {
+            binary.delete();
+        }
+    }
+
+    @Test
+    public void ConnectionGraphBoundsEvictedPairsTest() throws IOException {
+        File file = File.createTempFile("connections", ".txt");
+        file.deleteOnExit();
+        // 2 heavy pairs among 2000 others.
+        Map<String, Integer> pairs = new HashMap<>();
+        Random random = new Random(5);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < 20000; i++) {
+                String pair = (i % 5 == 0) ? "heavy h1" : (i % 5 == 1) ?
+                        "heavy h2" : "c" + random.nextInt(2000) + " h" +
+                        random.nextInt(3);
+                pairs.merge(pair, 1, Integer::sum);
+                writer.write((START_TIME + i) + " " + pair + "\n");
+            }
+        }
+        GraphResult graph = graph(new ConnectionsParser(file, 0,
+                Long.MAX_VALUE - 1000000L, "h1"), 10, 100);
+        assertEquals(100, graph.getPairs());
+        assertTrue(graph.getMaxError() > 0);
+        assertEquals("heavy", graph.getTopPairs().get(0).getClient());
+        assertEquals("heavy", graph.getTopPairs().get(1).getClient());
+        for (GraphResult.Pair pair : graph.getTopPairs()) {
+            long count = pairs.get(pair.getClient() + " " + pair.getHost());
+            assertTrue(pair.getCount() >= count);
+            assertTrue(pair.getCount() - pair.getError() <= count);
+        }
+        assertEquals(20000, graph.getConnections());
+    }
+
+    @Test
+    public void OrderedScanWritesClientsInTimestampOrderTest()
+            throws IOException {
+        File file = File.createTempFile("connections", ".txt");
+        File binary = File.createTempFile("connections", ".bin");
+        file.deleteOnExit();
+        // A day of 1 connection per second, 10% out of order by up to 10m,
+        // more than the scans usually expect.
+        Random random = new Random(11);
+        long bound = 10 * 60 * 1000;
+        List<long[]> records = new ArrayList<>();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (long i = 0; i < 24 * 3600; i++) {
+                long tsc = START_TIME + i * 1000;
+                if (random.nextInt(100) < 10) {
+                    tsc -= random.nextInt((int) bound);
+                }
+                writer.write(tsc + " c" + i + " h" + (i % 7) + "\n");
+                records.add(new long[]{tsc, i});
+            }
+        }
+        try {
+            BinaryConnectionsFormat.convert(file, binary);
+            long start = START_TIME + 3600000L;
+            long end = start + 4 * 3600000L;
+            // Stable, as equal timestamps keep the order of the file.
+            records.sort(Comparator.comparingLong(record -> record[0]));
+            StringBuilder h3 = new StringBuilder();
+            StringBuilder h5 = new StringBuilder();
+            for (long[] record : records) {
+                if (record[0] >= start && record[0] <= end) {
+                    if (record[1] % 7 == 3) {
+                        h3.append('c').append(record[1]).append(' ');
+                    } else if (record[1] % 7 == 5) {
+                        h5.append('c').append(record[1]).append(' ');
+                    }
+                }
+            }
+            for (File f : new File[]{file, binary}) {
+                outContent.reset();
+                ConnectionsParser cp = new ConnectionsParser(f, start, end,
+                        "h3");
+                cp.setOrdering(bound, ConnectionsParser.LatePolicy.COUNT,
+                        null);
+                cp.connectedClients();
+                assertEquals(h3.toString(), outContent.toString());
+                assertEquals(0, cp.getLateRecords());
+
+                outContent.reset();
+                cp = new ConnectionsParser(f, start, end, List.of("h3", "h5"));
+                cp.setOrdering(Long.MAX_VALUE,
+                        ConnectionsParser.LatePolicy.COUNT, null);
+                cp.connectedClients();
+                assertEquals("h3: " + h3 + "\nh5: " + h5 + "\n",
+                        outContent.toString());
+            }
+        } finally {
+            binary.delete();
+        }
+    }
+
+    @Test
+    public void OrderedScanAppliesLatePolicyTest() throws IOException {
+        File file = File.createTempFile("connections", ".txt");
+        file.deleteOnExit();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            // c is older than 5000 - 2000, d is not.
+            writer.write("1000 a h\n5000 b h\n2000 c h\n4000 d h\n" +
+                    "6000 e h\n3000 f x\n");
+        }
+        ByteArrayOutputStream side = new ByteArrayOutputStream();
+        ConnectionsParser.LatePolicy[] policies = {
+                ConnectionsParser.LatePolicy.DROP,
+                ConnectionsParser.LatePolicy.COUNT,
+                ConnectionsParser.LatePolicy.SIDE_OUTPUT};
+        long[] late = {0, 1, 1};
+        for (int i = 0; i < policies.length; i++) {
+            outContent.reset();
+            ConnectionsParser cp = new ConnectionsParser(file, 0, 10000, "h");
+            cp.setOrdering(2000, policies[i],
+                    (policies[i] == ConnectionsParser.LatePolicy.SIDE_OUTPUT) ?
+                            side : null);
+            cp.connectedClients();
+            assertEquals("a d b e ", outContent.toString());
+            assertEquals(late[i], cp.getLateRecords());
+        }
+        assertEquals("2000 c h\n", side.toString());
+    }
+
+    private static GraphResult graph(ConnectionsParser cp, int topN,
+                                     int maxEdges) throws IOException {
+        WindowResult[] result = new WindowResult[1];
+        cp.setSink(new ResultSink() {
+            @Override
+            public void window(WindowResult window) {
+                result[0] = window;
+            }
+
+            @Override
+            public void clients(String host, byte[] names, int offset,
+                                int length, boolean last) {
+                fail();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        cp.connectionGraph(topN, maxEdges);
+        return result[0].getGraph();
+    }
+
+    /* The straightforward full scan, as a reference. */
+    private String naiveScan(File file, long start, long end, String host)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                long tsc = Long.parseLong(tokens[0]);
+                if (tsc >= start && tsc <= end && tokens[2].equals(host)) {
+                    sb.append(tokens[1]).append(' ');
+                }
+                if (tsc > end + 5 * 60 * 1000) {
+                    break;
+                }
+            }
+        }
+        return sb.toString();
+    }
 }
@@ -92,4 +92,40 @@ public class MainTest {
             fail();
         }
     }
-}
\ No newline at end of file
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mainFailsWithInvalidParallelismTest() {
+        try (AutoDeletingTempFile f = new AutoDeletingTempFile("testFile",
+                ".txt", "/tmp")) {
+            Main.main(new String[]{"-p", "0", f.getAbsolutePath(), "0", "1",
+                    "Claudiu"});
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mainFailsWithUnknownOptionTest() {
+        try (AutoDeletingTempFile f = new AutoDeletingTempFile("testFile",
+                ".txt", "/tmp")) {
+            Main.main(new String[]{"-z", "1", f.getAbsolutePath(), "0", "1",
+                    "Claudiu"});
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mainFailsWithManagerOnSingleFileTest() {
+        try (AutoDeletingTempFile f = new AutoDeletingTempFile("testFile",
+                ".txt", "/tmp")) {
+            Main.main(new String[]{"-m", "2", f.getAbsolutePath(), "-f",
+                    "Claudiu"});
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+}
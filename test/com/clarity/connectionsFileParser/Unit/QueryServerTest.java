@@ -0,0 +1,165 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.BinaryConnectionsFormat;
+import com.clarity.connectionsFileParser.CompressedConnectionsFormat;
+import com.clarity.connectionsFileParser.ConnectionsParser;
+import com.clarity.connectionsFileParser.QueryServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryServerTest {
+
+    private static final File TEXT_FILE = new File(
+            "test/com/clarity/connectionsFileParser/testFiles/input-file-10000.txt");
+    private static final long START = 1565647204351L;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File directory;
+    // A copy of TEXT_FILE in the served directory.
+    private File textFile;
+    private QueryServer server;
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setOut(new PrintStream(outContent));
+        directory = Files.createTempDirectory("connections").toFile();
+        textFile = new File(directory, "input.txt");
+        Files.copy(TEXT_FILE.toPath(), textFile.toPath());
+        start(QueryServer.DEFAULT_CACHE_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        socket.close();
+        server.close();
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void AnswersAsTheScannerTest() throws IOException {
+        File binary = new File(directory, "connections.bin");
+        BinaryConnectionsFormat.convert(TEXT_FILE, binary);
+        File compressed = new File(directory, "connections.conz");
+        CompressedConnectionsFormat.convert(TEXT_FILE, compressed);
+        List<String> hosts = List.of("Morrigan", "Rehgan", "Nobody");
+        long[][] windows = {{START, START}, {START, START + 3600000L},
+                {START + 20000000L, START + 40000000L},
+                {0, Long.MAX_VALUE - 1000000L}};
+        for (File file : new File[]{textFile, binary, compressed}) {
+            for (long[] window : windows) {
+                outContent.reset();
+                new ConnectionsParser(TEXT_FILE, window[0], window[1], hosts)
+                        .connectedClients();
+                assertEquals(outContent.toString(), query(window[0] + " " +
+                        window[1] + " Morrigan,Rehgan,Nobody " + file));
+            }
+        }
+        assertEquals(3, server.getCacheMisses());
+        assertEquals(9, server.getCacheHits());
+    }
+
+    @Test
+    public void ReloadsChangedFileTest() throws IOException {
+        File file = new File(directory, "connections.log");
+        append(file, "1000 a h\n2000 b h\n");
+        assertEquals("h: a b \n", query("0 5000 h " + file));
+        append(file, "3000 c h\n");
+        assertEquals("h: a b c \n", query("0 5000 h " + file));
+        assertEquals(2, server.getCacheMisses());
+    }
+
+    @Test
+    public void EvictsLeastRecentlyUsedTest() throws IOException {
+        File a = new File(directory, "a.log");
+        File b = new File(directory, "b.log");
+        Files.copy(textFile.toPath(), a.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(textFile.toPath(), b.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        query("0 0 h " + a);
+        long fileBytes = server.getCachedBytes();
+        assertTrue(fileBytes > 0);
+        // Room for a single file.
+        socket.close();
+        server.close();
+        start(fileBytes + fileBytes / 2);
+        for (File f : new File[]{a, b, a, a}) {
+            query("0 0 h " + f);
+        }
+        assertEquals(3, server.getCacheMisses());
+        assertEquals(1, server.getCacheHits());
+        assertEquals(fileBytes, server.getCachedBytes());
+    }
+
+    @Test
+    public void ReportsErrorsTest() throws IOException {
+        assertEquals("ERROR " + directory + "/none: no such file\n",
+                query("0 1 h " + directory + "/none"));
+        assertTrue(query("0 x h " + textFile).startsWith("ERROR 0 or x"));
+        // The connection is still usable.
+        assertEquals("Nobody: \n", query("0 1 Nobody " + textFile));
+    }
+
+    @Test
+    public void OnlyAnswersFromTheServedDirectoryTest() throws IOException {
+        assertEquals("Nobody: \n", query("0 1 Nobody input.txt"));
+        File link = new File(directory, "link.txt");
+        Files.createSymbolicLink(link.toPath(),
+                TEXT_FILE.getAbsoluteFile().toPath());
+        String[] outside = {TEXT_FILE.getAbsolutePath(),
+                "../" + directory.getName() + "/../" + TEXT_FILE.getName(),
+                directory + "/../" + directory.getName() + "/../x",
+                link.getName()};
+        for (String name : outside) {
+            String answer = query("0 1 Nobody " + name);
+            assertTrue(answer, answer.startsWith("ERROR " + name +
+                    ": not in "));
+        }
+    }
+
+    private void start(long cacheBytes) throws IOException {
+        server = new QueryServer(0, directory, cacheBytes);
+        new Thread(server).start();
+        socket = new Socket(InetAddress.getLoopbackAddress(),
+                server.getPort());
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new OutputStreamWriter(socket.getOutputStream());
+    }
+
+    /* The answer, without the empty line that ends it. */
+    private String query(String query) throws IOException {
+        out.write(query + "\n");
+        out.flush();
+        StringBuilder answer = new StringBuilder();
+        String line;
+        while (!(line = in.readLine()).isEmpty()) {
+            answer.append(line).append('\n');
+        }
+        return answer.toString();
+    }
+
+    private static void append(File f, String s) throws IOException {
+        try (FileWriter writer = new FileWriter(f, true)) {
+            writer.write(s);
+        }
+    }
+}
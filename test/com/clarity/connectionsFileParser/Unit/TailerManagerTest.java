@@ -0,0 +1,179 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.Metrics;
+import com.clarity.connectionsFileParser.TailerManager;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class TailerManagerTest {
+
+    private static final long DOWN_TIME = 50;
+    private static final long INTERVAL = 1000;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setOut(new PrintStream(outContent, true));
+        directory = Files.createTempDirectory("tenants").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void FollowsManyFilesOnSharedThreadsTest() throws Exception {
+        int tenants = 200;
+        try (TailerManager manager = new TailerManager(2)) {
+            for (int i = 0; i < tenants; i++) {
+                File f = new File(directory, "tenant" + i + ".log");
+                append(f, "1000 a" + i + " h\n");
+                manager.follow(tailer(f));
+            }
+            assertEquals(tenants, manager.getFollowedFiles().size());
+            for (int i = 0; i < tenants; i++) {
+                append(new File(directory, "tenant" + i + ".log"),
+                        "1500 b" + i + " h\n2600 c" + i + " h\n");
+            }
+            for (int i = 0; i < tenants; i++) {
+                waitFor("Results for hour 1000 to 2600 (" +
+                        new File(directory, "tenant" + i + ".log") + "):\n" +
+                        "\tMost connections generated by: ");
+            }
+        }
+        // Each dump is printed at once, and only has its own tenant.
+        for (String dump : output().split("\n\n")) {
+            int end = dump.indexOf(".log");
+            String tenant = dump.substring(dump.lastIndexOf("tenant", end) +
+                    6, end);
+            assertTrue(dump, dump.contains("- a" + tenant + "\n"));
+            assertTrue(dump, dump.contains("- b" + tenant + "\n"));
+        }
+    }
+
+    @Test
+    public void FilesAreAddedAndRemovedAtRuntimeTest() throws Exception {
+        File first = new File(directory, "first.log");
+        File second = new File(directory, "second.log");
+        append(first, "1000 a h\n");
+        try (TailerManager manager = new TailerManager(1)) {
+            manager.follow(tailer(first));
+            append(first, "2600 b h\n");
+            waitFor("Results for hour 1000 to 2600 (" + first + ")");
+
+            append(second, "1000 c h\n");
+            manager.follow(tailer(second));
+            assertTrue(manager.unfollow(first));
+            assertFalse(manager.unfollow(first));
+            append(first, "4000 d h\n");
+            append(second, "2600 e h\n");
+            waitFor("Results for hour 1000 to 2600 (" + second + ")");
+            assertEquals(1, manager.getFollowedFiles().size());
+        }
+        assertFalse(output().contains("2600 to 4000"));
+    }
+
+    @Test
+    public void NewFilesOfADirectoryAreFollowedTest() throws Exception {
+        File first = new File(directory, "first.log");
+        append(first, "1000 a h\n");
+        try (TailerManager manager = new TailerManager(1)) {
+            manager.followAll(tailer(directory), TailerManagerTest::tailer);
+            assertEquals(1, manager.getFollowedFiles().size());
+
+            File second = new File(directory, "second.log");
+            append(second, "1000 b h\n2600 c h\n");
+            waitFor("Results for hour 1000 to 2600 (" + second + ")");
+            assertEquals(2, manager.getFollowedFiles().size());
+        }
+    }
+
+    @Test
+    public void RejectedTailerIsLeftUnchangedTest() throws Exception {
+        File f = new File(directory, "tenant.log");
+        append(f, "1000 a h\n2600 b h\n");
+        TailingConnectionsParser duplicate = tailer(f);
+        try (TailerManager manager = new TailerManager(1)) {
+            manager.follow(tailer(f));
+            try {
+                manager.follow(duplicate);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("already followed"));
+            }
+            waitFor("Results for hour 1000 to 2600 (" + f + ")");
+        }
+        // Run on its own, it still prints without the managed source.
+        duplicate.run();
+        assertTrue(output(), output().contains(
+                "Results for hour 1000 to 2600:"));
+    }
+
+    @Test
+    public void SharedMetricsReportTheTailerFurthestBehindTest()
+            throws Exception {
+        File stalled = new File(directory, "stalled.log");
+        File fresh = new File(directory, "fresh.log");
+        long now = System.currentTimeMillis();
+        append(stalled, "1000 a h\n");
+        append(fresh, now + " b h\n");
+        try (Metrics metrics = new Metrics();
+             TailerManager manager = new TailerManager(2)) {
+            for (File f : new File[] {stalled, fresh}) {
+                TailingConnectionsParser tailer = tailer(f);
+                tailer.setMetrics(metrics);
+                manager.follow(tailer);
+            }
+            for (int i = 0; i < 300 && metrics.getRecords() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, metrics.getRecords());
+            // Not hidden by the fresh one.
+            assertTrue(metrics.getLagMillis() >= now - 1000);
+            assertEquals(0, metrics.getLagBytes());
+
+            assertTrue(manager.unfollow(stalled));
+            for (int i = 0; i < 300 && metrics.getLagMillis() > 60000; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(metrics.getLagMillis() < 60000);
+        }
+    }
+
+    private static TailingConnectionsParser tailer(File f) {
+        return new TailingConnectionsParser(DOWN_TIME, INTERVAL, f, "h");
+    }
+
+    private String output() {
+        return outContent.toString();
+    }
+
+    private void waitFor(String s) throws InterruptedException {
+        for (int i = 0; i < 300 && !output().contains(s); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(output(), output().contains(s));
+    }
+
+    private static void append(File f, String s) throws IOException {
+        try (FileWriter writer = new FileWriter(f, true)) {
+            writer.write(s);
+        }
+    }
+}
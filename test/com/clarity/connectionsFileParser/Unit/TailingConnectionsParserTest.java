@@ -0,0 +1,549 @@
+// Copyright 2020, David Cattle, All rights reserved.
+
+package com.clarity.connectionsFileParser.Unit;
+
+import com.clarity.connectionsFileParser.AsyncSink;
+import com.clarity.connectionsFileParser.Metrics;
+import com.clarity.connectionsFileParser.ResultSink;
+import com.clarity.connectionsFileParser.TailingConnectionsParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TailingConnectionsParserTest {
+
+    private static final long DOWN_TIME = 200;
+    private static final long INTERVAL = 1000;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final PrintStream originalOut = System.out;
+    private File directory;
+    private File connectionsFile;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setOut(new PrintStream(outContent, true));
+        directory = Files.createTempDirectory("connections").toFile();
+        connectionsFile = new File(directory, "connections.log");
+    }
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void PartialLinesAreCarriedOverTest() throws Exception {
+        append(connectionsFile, "1000 a h\n15");
+        Thread tailer = startTailer();
+        Thread.sleep(DOWN_TIME / 2);
+        append(connectionsFile, "00 b h\n2600 c h\n");
+        waitFor("Results for hour 1000 to 2600:");
+        tailer.join();
+        assertTrue(output().contains("\t\t- b\n"));
+        assertFalse(output().contains("- 00"));
+    }
+
+    @Test
+    public void FollowsRotatedFileTest() throws Exception {
+        append(connectionsFile, "1000 a h\n1500 b h\n2600 c h\n");
+        Thread tailer = startTailer();
+        waitFor("Results for hour 1000 to 2600:");
+        // Rotate: the old file is renamed and a new one takes its place.
+        append(connectionsFile, "2650 late h\n");
+        assertTrue(connectionsFile.renameTo(new File(directory,
+                "connections.log.1")));
+        append(connectionsFile, "2700 d h\n4000 e h\n");
+        waitFor("Results for hour 2600 to 4000:");
+        tailer.join();
+        String results = output().substring(output().indexOf("2600 to 4000"));
+        assertTrue(results.contains("\t\t- late\n"));
+        assertTrue(results.contains("\t\t- d\n"));
+        assertTrue(results.contains("\t\t- e\n"));
+    }
+
+    @Test
+    public void WatermarkCountsLateRecordsInTheirOwnWindowTest()
+            throws IOException {
+        append(connectionsFile, "1000 a h\n2100 b h\n1900 c h\n" +
+                "2600 d h\n1200 x h\n3600 e h\n");
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h",
+                TailingConnectionsParser.WindowMode.WATERMARK, 500);
+        tcp.run();
+        String first = output().substring(
+                output().indexOf("Results for hour 1000 to 2000:"),
+                output().indexOf("Results for hour 2000 to 3000:"));
+        String second = output().substring(
+                output().indexOf("Results for hour 2000 to 3000:"));
+        assertTrue(first.contains("\t\t- a\n"));
+        assertTrue(first.contains("\t\t- c\n"));
+        assertFalse(first.contains("\t\t- b\n"));
+        assertTrue(second.contains("\t\t- b\n"));
+        assertTrue(second.contains("\t\t- d\n"));
+        assertFalse(output().contains("\t\t- x\n"));
+        // The window of e is still open.
+        assertFalse(output().contains("\t\t- e\n"));
+        assertEquals(1, tcp.getDroppedRecords());
+    }
+
+    @Test
+    public void MetricsCountRecordsAndWindowsTest() throws Exception {
+        append(connectionsFile, "1000 a h\n2100 b h\n1900 c h\n" +
+                "2600 d h\n1200 x h\n3600 e h\n");
+        for (int parsers = 0; parsers <= 1; parsers++) {
+            try (Metrics metrics = new Metrics()) {
+                TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                        INTERVAL, connectionsFile, "h",
+                        TailingConnectionsParser.WindowMode.WATERMARK, 500);
+                tcp.setPipeline(parsers);
+                tcp.setMetrics(metrics);
+                metrics.register("test");
+                tcp.run();
+                assertEquals(6, metrics.getRecords());
+                // 1900 and 1200.
+                assertEquals(2, metrics.getLateRecords());
+                assertEquals(1, metrics.getDroppedRecords());
+                assertEquals(connectionsFile.length(), metrics.getBytes());
+                assertEquals(0, metrics.getLagBytes());
+                assertEquals(2, metrics.getWindowsEmitted());
+                // The distinct clients of a window: a and c, or b and d.
+                assertEquals(2, metrics.getLargestWindow());
+                assertEquals(6L, ManagementFactory.getPlatformMBeanServer()
+                        .getAttribute(new ObjectName("com.clarity." +
+                                "connectionsFileParser:type=Metrics,name=" +
+                                "\"test\""), "Records"));
+
+                File report = new File(directory, "metrics.json");
+                metrics.append(report);
+                String line = new String(Files.readAllBytes(report.toPath()));
+                assertTrue(line, line.contains("\"records\": 6, "));
+                assertTrue(line, line.contains("\"emitLatencyMicros\": " +
+                        "{\"count\": 2, "));
+                report.delete();
+            }
+        }
+    }
+
+    @Test
+    public void WritesJsonLinesThroughAsyncSinkTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1500 b x\n2600 c h\n" +
+                "3700 \"q\" h\n4800 d h\n");
+        File results = new File(directory, "results.json");
+        try (ResultSink sink = new AsyncSink(ResultSink.file(results,
+                ResultSink.Format.JSON, 0, 0))) {
+            TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                    INTERVAL, connectionsFile, "h");
+            tcp.setSink(sink);
+            tcp.run();
+            // run flushes the sink.
+            assertEquals(3, Files.readAllLines(results.toPath()).size());
+        }
+        List<String> lines = Files.readAllLines(results.toPath());
+        assertEquals("{\"type\": \"window\", \"hopping\": false, " +
+                "\"from\": 1000, \"to\": 2600, \"mostConnections\": " +
+                "{\"name\": \"a\", \"count\": 1}, \"hosts\": [{\"host\": " +
+                "\"h\", \"clients\": [{\"name\": \"c\"}, {\"name\": \"a\"}], " +
+                "\"connectedTo\": []}]}", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).contains(
+                "\"clients\": [{\"name\": \"\\\"q\\\"\"}]"));
+        // Nothing went to System.out.
+        assertEquals("", output());
+    }
+
+    @Test
+    public void ReportsConnectionGraphOfEachWindowTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1100 a h\n1200 b h\n" +
+                "1300 h x\n1400 a x\n2600 c h\n");
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h");
+        tcp.setGraph(1, 100);
+        tcp.run();
+        assertTrue(output(), output().contains(
+                "\tConnection graph: 6 connections, 5 names, 5 pairs\n" +
+                "\tTop 1 pairs:\n" +
+                "\t\t- a -> h(2)\n" +
+                "\tTop 1 hosts by fan-in:\n" +
+                "\t\t- h: in 3 clients (4 connections), out 1 hosts " +
+                "(1 connections)\n" +
+                "\tTop 1 clients by fan-out:\n" +
+                "\t\t- a: in 0 clients (0 connections), out 2 hosts " +
+                "(3 connections)\n" +
+                "\tFans of h: in 3 clients (4 connections), out 1 hosts " +
+                "(1 connections)\n\n"));
+    }
+
+    @Test
+    public void HoppingWindowsMergeSlicesTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1500 b x\n2200 c h\n" +
+                "3100 d h\n4100 e h\n5000 f h\n");
+        new TailingConnectionsParser(0, 3000, 1000, connectionsFile, "h",
+                TailingConnectionsParser.WindowMode.HOPPING, 0).run();
+        String third = output().substring(
+                output().indexOf("Results for window 1000 to 4000:"),
+                output().indexOf("Results for window 2000 to 5000:"));
+        String fourth = output().substring(
+                output().indexOf("Results for window 2000 to 5000:"));
+        // Last seen first, as in a tumbling window.
+        assertTrue(third.contains("\t\t- d\n\t\t- c\n\t\t- a\n"));
+        assertTrue(fourth.contains("\t\t- e\n\t\t- d\n\t\t- c\n"));
+        assertFalse(fourth.contains("\t\t- a\n"));
+        // The window ending at 6000 is still open.
+        assertFalse(output().contains("\t\t- f\n"));
+    }
+
+    @Test
+    public void LargestWindowCountsDistinctClientsTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1500 b x\n2200 c h\n" +
+                "3100 d h\n3200 a x\n4100 e h\n5000 f h\n");
+        try (Metrics metrics = new Metrics()) {
+            TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                    3000, 1000, connectionsFile, "h",
+                    TailingConnectionsParser.WindowMode.HOPPING, 0);
+            tcp.setMetrics(metrics);
+            tcp.run();
+            // a, b, c and d from 1000 to 4000, as in a tumbling window.
+            assertEquals(4, metrics.getLargestWindow());
+        }
+        try (Metrics metrics = new Metrics()) {
+            TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                    3000, connectionsFile, "h");
+            tcp.setMetrics(metrics);
+            tcp.run();
+            // a, b, c, d and e from 1000 to 4100.
+            assertEquals(5, metrics.getLargestWindow());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void HopMustDivideWindowSizeTest() {
+        new TailingConnectionsParser(0, 3000, 700, connectionsFile, "h",
+                TailingConnectionsParser.WindowMode.HOPPING, 0);
+    }
+
+    @Test
+    public void TopKFindsHeavyHittersInBoundedMemoryTest() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String client = (i % 3 == 0) ? "heavy" : (i % 10 == 1) ?
+                    "second" : "c" + i;
+            lines.append(1000 + i / 100).append(' ').append(client)
+                    .append(" x\n");
+        }
+        lines.append("5000 last x\n");
+        append(connectionsFile, lines.toString());
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h");
+        tcp.setTopK(2);
+        tcp.run();
+        assertTrue(output().contains("Most connections generated by: heavy("));
+        String top = output().substring(output().indexOf("\tTop 2 clients"));
+        assertTrue(top.indexOf("- heavy(") < top.indexOf("- second("));
+    }
+
+    @Test
+    public void MalformedLineReportsItsFileOffsetTest() throws IOException {
+        // Past the first read buffer, so it is found after a refill, in a
+        // single window so that the tailer does not stop before it.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("1000 c").append(i).append(" h\n");
+        }
+        int bad = text.length();
+        append(connectionsFile, text + "1x01 c h\n");
+        ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+        PrintStream originalErr = System.err;
+        System.setErr(new PrintStream(errContent, true));
+        try {
+            new TailingConnectionsParser(0, INTERVAL, connectionsFile, "h")
+                    .run();
+        } finally {
+            System.setErr(originalErr);
+        }
+        assertTrue(errContent.toString(), errContent.toString().contains(
+                "Malformed timestamp at offset " + bad + "\n"));
+    }
+
+    @Test
+    public void PeersAreListedOnceTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1001 b h\n1002 a h\n1003 h x\n" +
+                "1004 h x\n5000 last x\n");
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h");
+        tcp.run();
+        String window = output();
+        assertEquals(window, window.indexOf("\t\t- a\n"),
+                window.lastIndexOf("\t\t- a\n"));
+        // Last seen first: a came back after b.
+        assertTrue(window.indexOf("\t\t- a\n") < window.indexOf("\t\t- b\n"));
+        assertEquals(window, window.indexOf("\t\t- x\n"),
+                window.lastIndexOf("\t\t- x\n"));
+    }
+
+    @Test
+    public void PeerStatsAndEstimateTest() throws IOException {
+        StringBuilder lines = new StringBuilder("1000 a h\n1002 a h\n");
+        for (int i = 0; i < 5000; i++) {
+            lines.append(1500).append(" h x").append(i).append('\n');
+        }
+        lines.append("5000 last x\n");
+        append(connectionsFile, lines.toString());
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h");
+        tcp.setPeerTracking(TailingConnectionsParser.PeerTracking.STATS);
+        tcp.run();
+        assertTrue(output().contains("\t\t- a (2 connections, 1000 to 1002)\n"));
+
+        outContent.reset();
+        System.setOut(new PrintStream(outContent, true));
+        tcp = new TailingConnectionsParser(0, INTERVAL, connectionsFile, "h");
+        tcp.setPeerTracking(TailingConnectionsParser.PeerTracking.HYPERLOGLOG);
+        tcp.run();
+        String estimate = output().substring(output().indexOf("~",
+                output().indexOf("Hosts who")) + 1);
+        long distinct = Long.parseLong(estimate.substring(0,
+                estimate.indexOf(" distinct")));
+        assertTrue(estimate, Math.abs(distinct - 5000) < 250);
+    }
+
+    @Test
+    public void FollowsSeveralHostsInOnePassTest() throws IOException {
+        append(connectionsFile, "1000 a h\n1001 b g\n1002 h g\n1003 c x\n" +
+                "5000 last x\n");
+        new TailingConnectionsParser(0, INTERVAL, INTERVAL, connectionsFile,
+                List.of("h", "g"), TailingConnectionsParser.WindowMode.TUMBLING,
+                0).run();
+        assertTrue(output(), output().contains(
+                "\tClients who connected to: h:\n\t\t- a\n" +
+                "\tHosts who h connected to:\n\t\t- g\n" +
+                "\tClients who connected to: g:\n\t\t- h\n\t\t- b\n" +
+                "\tHosts who g connected to:\n"));
+        assertFalse(output().contains("- c\n"));
+    }
+
+    @Test
+    public void MergesProducerFilesByTimestampTest() throws IOException {
+        append(new File(directory, "a.log"), "1000 a h\n1500 a h\n2500 a h\n");
+        append(new File(directory, "b.log"), "1200 b h\n2200 b h\n5000 last x\n");
+        // Rotated files are read by the follower of their active file.
+        append(new File(directory, "a.log.1"), "1100 old h\n");
+        new TailingConnectionsParser(0, INTERVAL, directory, "h").run();
+        String first = output().substring(0, output().indexOf("Results", 1));
+        assertTrue(output(), first.startsWith("Results for hour 1000 to 2200"));
+        assertTrue(first.contains("\t\t- b\n"));
+        assertFalse(output().contains("old"));
+
+        outContent.reset();
+        new TailingConnectionsParser(0, INTERVAL,
+                new File(directory, "b.*"), "h").run();
+        assertFalse(output().contains("- a\n"));
+        assertTrue(output().contains("- b\n"));
+    }
+
+    @Test
+    public void MergeWaitsForProducersWritingInBatchesTest()
+            throws Exception {
+        File a = new File(directory, "a.log");
+        File b = new File(directory, "b.log");
+        append(a, "1000 a1 h\n");
+        append(b, "1000 b1 h\n");
+        Thread tailer = new Thread(new TailingConnectionsParser(DOWN_TIME,
+                INTERVAL, directory, "h"));
+        tailer.start();
+        Thread.sleep(DOWN_TIME / 2);
+        append(a, "1500 a2 h\n2600 a3 h\n");
+        Thread.sleep(DOWN_TIME / 2);
+        // b flushes its batch after a has written past it: a3 is held.
+        assertFalse(output(), output().contains("Results"));
+        append(b, "1800 b2 h\n2700 b3 h\n");
+        waitFor("Results for hour 1000 to 2600:");
+        tailer.join();
+        // In the window of its timestamp, not after it.
+        assertTrue(output(), output().contains("\t\t- b2\n"));
+    }
+
+    @Test
+    public void ReadsCopyAfterCopyTruncateTest() throws Exception {
+        append(connectionsFile, "1000 a h\n1001 a h\n1002 a h\n");
+        Thread tailer = startTailer();
+        Thread.sleep(DOWN_TIME);
+        append(connectionsFile, "1003 b h\n");
+        Files.copy(connectionsFile.toPath(),
+                new File(directory, connectionsFile.getName() + ".1").toPath());
+        new FileWriter(connectionsFile).close();
+        append(connectionsFile, "1004 c h\n5000 last x\n");
+        waitFor("Results for hour 1000 to 5000");
+        tailer.join();
+        assertTrue(output(), output().contains("\t\t- b\n"));
+        assertTrue(output().contains("\t\t- c\n"));
+    }
+
+    @Test
+    public void ResumesFromCheckpointTest() throws IOException {
+        File checkpoint = new File(directory, "tailer.ckpt");
+        append(connectionsFile, "1000 a h\n1500 b h\n");
+        checkpointedTailer(checkpoint).run();
+        assertTrue(checkpoint.exists());
+        assertFalse(output().contains("Results"));
+
+        // The window in progress is restored, nothing is read twice.
+        append(connectionsFile, "1800 a h\n5000 last x\n");
+        checkpointedTailer(checkpoint).run();
+        assertTrue(output(), output().contains("Results for hour 1000 to 5000"));
+        assertTrue(output().contains("\t\t- a (2 connections, 1000 to 1800)"));
+        assertTrue(output().contains("\t\t- b (1 connections, 1500 to 1500)"));
+    }
+
+    @Test
+    public void ResumesInRotatedFileTest() throws IOException {
+        File checkpoint = new File(directory, "tailer.ckpt");
+        append(connectionsFile, "1000 a h\n");
+        checkpointedTailer(checkpoint).run();
+        append(connectionsFile, "1001 b h\n");
+        assertTrue(connectionsFile.renameTo(new File(directory,
+                connectionsFile.getName() + ".1")));
+        append(connectionsFile, "1002 c h\n5000 last x\n");
+        checkpointedTailer(checkpoint).run();
+        assertTrue(output(), output().contains(
+                "\t\t- c (1 connections, 1002 to 1002)\n" +
+                "\t\t- b (1 connections, 1001 to 1001)\n" +
+                "\t\t- a (1 connections, 1000 to 1000)\n"));
+    }
+
+    @Test
+    public void CheckpointDoesNotChangeResultsTest() throws IOException {
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+        Random random = new Random(3);
+        for (int i = 0; i < 400; i++) {
+            long tsc = 1000 + i * 20 - random.nextInt(300);
+            String line = tsc + " c" + random.nextInt(5) + " " +
+                    ((i % 3 == 0) ? "h" : "x" + i % 7) + "\n";
+            (i < 200 ? first : second).append(line);
+        }
+        File checkpoint = new File(directory, "tailer.ckpt");
+        for (TailingConnectionsParser.WindowMode mode :
+                TailingConnectionsParser.WindowMode.values()) {
+            connectionsFile.delete();
+            checkpoint.delete();
+            append(connectionsFile, first.toString() + second);
+            outContent.reset();
+            windowTailer(mode, null).run();
+            String expected = output();
+
+            connectionsFile.delete();
+            append(connectionsFile, first.toString());
+            outContent.reset();
+            windowTailer(mode, checkpoint).run();
+            append(connectionsFile, second.toString());
+            windowTailer(mode, checkpoint).run();
+            assertEquals(mode.toString(), expected, output());
+        }
+    }
+
+    @Test
+    public void PipelineDoesNotChangeResultsTest() throws IOException {
+        // Several chunks, so that every parser gets some.
+        StringBuilder lines = new StringBuilder();
+        Random random = new Random(5);
+        for (int i = 0; i < 40000; i++) {
+            long tsc = 1000 + i - random.nextInt(300);
+            lines.append(tsc).append(" c").append(random.nextInt(50))
+                    .append(' ').append((i % 3 == 0) ? "h" : "x" + i % 7)
+                    .append('\n');
+        }
+        append(connectionsFile, lines.toString());
+        for (TailingConnectionsParser.WindowMode mode :
+                TailingConnectionsParser.WindowMode.values()) {
+            outContent.reset();
+            windowTailer(mode, null).run();
+            String expected = output();
+            for (int parsers = 1; parsers <= 3; parsers += 2) {
+                outContent.reset();
+                TailingConnectionsParser tcp = windowTailer(mode, null);
+                tcp.setPipeline(parsers);
+                tcp.run();
+                assertEquals(mode + ", " + parsers + " parsers", expected,
+                        output());
+                assertTrue(tcp.getPipelineStats(),
+                        tcp.getPipelineStats().contains("aggregator: 40000 " +
+                                "records"));
+            }
+        }
+    }
+
+    @Test
+    public void PipelineFollowsRotatedFileTest() throws Exception {
+        append(connectionsFile, "1000 a h\n1500 b h\n2600 c h\n");
+        TailingConnectionsParser tcp = new TailingConnectionsParser(DOWN_TIME,
+                INTERVAL, connectionsFile, "h");
+        tcp.setPipeline(2);
+        Thread tailer = new Thread(tcp);
+        tailer.start();
+        waitFor("Results for hour 1000 to 2600:");
+        append(connectionsFile, "2650 late h\n");
+        assertTrue(connectionsFile.renameTo(new File(directory,
+                "connections.log.1")));
+        append(connectionsFile, "2700 d h\n4000 e h\n");
+        waitFor("Results for hour 2600 to 4000:");
+        tailer.join();
+        String results = output().substring(output().indexOf("2600 to 4000"));
+        assertTrue(results.contains("\t\t- late\n"));
+        assertTrue(results.contains("\t\t- d\n"));
+        assertTrue(results.contains("\t\t- e\n"));
+    }
+
+    private TailingConnectionsParser windowTailer(
+            TailingConnectionsParser.WindowMode mode, File checkpoint) {
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, 500, connectionsFile, "h", mode, 500);
+        if (checkpoint != null) {
+            tcp.setCheckpoint(checkpoint, 0);
+        }
+        return tcp;
+    }
+
+    private TailingConnectionsParser checkpointedTailer(File checkpoint) {
+        TailingConnectionsParser tcp = new TailingConnectionsParser(0,
+                INTERVAL, connectionsFile, "h");
+        tcp.setPeerTracking(TailingConnectionsParser.PeerTracking.STATS);
+        tcp.setCheckpoint(checkpoint, 0);
+        return tcp;
+    }
+
+    private Thread startTailer() {
+        Thread tailer = new Thread(new TailingConnectionsParser(DOWN_TIME,
+                INTERVAL, connectionsFile, "h"));
+        tailer.start();
+        return tailer;
+    }
+
+    private String output() {
+        return outContent.toString();
+    }
+
+    private void waitFor(String s) throws InterruptedException {
+        for (int i = 0; i < 100 && !output().contains(s); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(output(), output().contains(s));
+    }
+
+    private static void append(File f, String s) throws IOException {
+        try (FileWriter writer = new FileWriter(f, true)) {
+            writer.write(s);
+        }
+    }
+}
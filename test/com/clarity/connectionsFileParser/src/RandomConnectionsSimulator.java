@@ -3,108 +3,403 @@
 package com.clarity.connectionsFileParser.src;
 
 import java.io.*;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.concurrent.ThreadLocalRandom;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class is to generate files that simulate a log file but also
  * can potentially be used for integration testing as well, although I believe
  * it is fair for integration testing to be out of scope of this exercise.
+ *
+ * Records are written either as fast as possible (write, for datasets and
+ * throughput tests), or paced in real time at writesPerHour (run, for
+ * latency tests). Either way the content only depends on the seed and the
+ * start time: the timestamps follow a simulated clock advancing by
+ * 3.6e6 / writesPerHour ms per record on average (uniformly from half to
+ * one and a half times that), of which outOfOrderRate are late by up to
+ * maxLateness. Clients and hosts are drawn from the names file with a
+ * Zipfian skew (exponent 0 for uniform), and the log can be rotated to
+ * <file>.1 every rotateBytes.
+ *
+ * Comments:
+ * It used to sleep between writes (so at most about 1000 records per
+ * second) and shuffle the whole list of names for every record. Now
+ * records are drawn in O(1) (alias tables, see Zipfian) from a seeded
+ * SplittableRandom, encoded straight into a byte buffer, and written in
+ * large batches: millions of records per second.
+ *
+ * usage: java RandomConnectionsSimulator <output_file> [options]
+ *        -records <n>         write n records as fast as possible (default),
+ *        -rate <per_second>   or write them paced at that rate until killed
+ *        -seed <seed>, -start <first_timestamp>, -skew <clients>,<hosts>,
+ *        -ooo <rate>,<max_ms>, -rotate <bytes>, -names <file>
  */
 public class RandomConnectionsSimulator implements Runnable {
 
-    private LinkedList<String> names;
-    private static final int PERCENTAGE_OUT_OF_ORDER = 5;
-    private File connectionsOutputFile;
-    private long currentTime = 0;
+    public static final int PERCENTAGE_OUT_OF_ORDER = 5;
+    public static final long MAX_OUT_OF_ORDER_MS = TimeUnit.MINUTES.toMillis(5);
+    public static final String NAMES_FILE =
+            "./test/com/clarity/connectionsFileParser/testFiles/randomNames.txt";
+    private static final int BUFFER_SIZE = 1 << 18;
+    // Longest line: a timestamp, two names and separators.
+    private static final int MAX_TIMESTAMP_LENGTH = 20;
+    private static final String ROTATED_SUFFIX = ".1";
+
+    private final byte[][] names;
+    private final File connectionsOutputFile;
+    private final SplittableRandom random;
+    private final double averageGap;
+    private Zipfian clients;
+    private Zipfian hosts;
+    private double outOfOrderRate = PERCENTAGE_OUT_OF_ORDER / 100.0;
+    private long maxLateness = MAX_OUT_OF_ORDER_MS;
+    private long rotateBytes = 0;
+    private long startTime = System.currentTimeMillis();
+    // Simulated time since startTime, in ms.
+    private double clock = 0;
+    private long recordsWritten = 0;
+
+    private FileOutputStream writer;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered = 0;
+    private long fileBytes = 0;
     private AtomicBoolean run = new AtomicBoolean(true);
-    private BufferedWriter writer;
-    private long windowLo;
-    private long windowHi;
-
-    // WritesPerHour cannot be greater than 1M
-    // For the purpose of this exercise this is ok
-    // If this value needs to be higher, use nano seconds instead of milli in
-    // the computations and in the sleep system call.
-    RandomConnectionsSimulator(long writesPerHour, File nameFile,
-                               File connectionsOutputFile) throws IOException {
-        assert(writesPerHour <= (long) 1e6);
+
+    public RandomConnectionsSimulator(long writesPerHour, File nameFile,
+                                      File connectionsOutputFile)
+            throws IOException {
+        this(writesPerHour, nameFile, connectionsOutputFile, 42);
+    }
+
+    public RandomConnectionsSimulator(long writesPerHour, File nameFile,
+                                      File connectionsOutputFile, long seed)
+            throws IOException {
         this.connectionsOutputFile = connectionsOutputFile;
-        double avgTime = 3.6e6 / writesPerHour;
-        long half = (long) avgTime / 2;
-        windowLo = (long) avgTime - half;
-        windowHi = (long) avgTime + half;
+        this.averageGap = 3.6e6 / writesPerHour;
+        this.random = new SplittableRandom(seed);
 
         // Read in list of random names.
-        names = new LinkedList<>();
+        List<byte[]> list = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(nameFile))) {
             String line;
-            String[] tokens;
             while ((line = reader.readLine()) != null) {
-                tokens = line.split(" ");
-                names.addFirst(tokens[0]);
+                list.add(line.split(" ")[0].getBytes(Charset.defaultCharset()));
             }
         }
-        writer =
-                new BufferedWriter(new OutputStreamWriter(new
-                        FileOutputStream(connectionsOutputFile)));
+        if (list.size() < 2) {
+            throw new IllegalArgumentException(nameFile + ": fewer than two " +
+                    "names");
+        }
+        names = list.toArray(new byte[0][]);
+        setSkew(0, 0);
+        writer = new FileOutputStream(connectionsOutputFile);
     }
 
-    /*
-    Generate two random host names.
+    /**
+     * Zipfian exponents of the clients and of the hosts, 0 for uniform, 1
+     * for the usual "few clients make most connections".
      */
-    String[] getTwoRandomClients() {
-        Collections.shuffle(names);
-        return new String[]{names.get(0), names.get(1)};
+    public void setSkew(double clientExponent, double hostExponent) {
+        clients = new Zipfian(names.length, clientExponent, random.split());
+        hosts = new Zipfian(names.length, hostExponent, random.split());
     }
 
+    /**
+     * @param rate the fraction of records that are late.
+     * @param maxLateness how late they are at most, in ms.
+     */
+    public void setOutOfOrder(double rate, long maxLateness) {
+        this.outOfOrderRate = rate;
+        this.maxLateness = maxLateness;
+    }
 
-    /* To be called externally to gracefully terminate thread. */
-    public void terminate() {
-        run.set(false);
+    /**
+     * Renames the log to <file>.1 and starts a new one every bytes, 0 to
+     * never rotate.
+     */
+    public void setRotation(long bytes) {
+        this.rotateBytes = bytes;
     }
 
-    /* Uniform random distribution centered around average. */
-    long getRandomSleepTime() {
-        return ThreadLocalRandom.current().nextLong(windowLo,
-                windowHi + 1);
+    /* The first timestamp. */
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
     }
 
-    /* Returns true PERCENTAGE_OUT_OF_ORDER% of the time. */
-    boolean outOfOrder() {
-        return ThreadLocalRandom.current().nextInt(0, 100) < PERCENTAGE_OUT_OF_ORDER;
+    public long getRecordsWritten() {
+        return recordsWritten;
     }
 
-    /* Random time in [0,5]m interval */
-    long randomTimeIntervalInFiveMinuteWindow() {
-        return ThreadLocalRandom.current().nextLong(0,
-                TimeUnit.MINUTES.toMillis(5));
+    /**
+     * Batch mode: writes records as fast as possible.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public long write(long records) throws IOException {
+        long bytes = 0;
+        for (long i = 0; i < records; i++) {
+            bytes += append();
+        }
+        flush();
+        return bytes;
     }
 
-    /* Generates and write random connections with some out of order by a max
-     of 5m. */
+    /* To be called externally to gracefully terminate thread. */
+    public void terminate() {
+        run.set(false);
+    }
+
+    /**
+     * Paced mode: writes at writesPerHour in real time, flushing every
+     * millisecond, until terminated.
+     */
     @Override
     public void run() {
-        String[] twoRandomNames;
-        while (run.get()) {
-            try {
-                Thread.sleep(getRandomSleepTime());
-                twoRandomNames = getTwoRandomClients();
-                long tsc = (outOfOrder()) ?
-                        (System.currentTimeMillis() - randomTimeIntervalInFiveMinuteWindow()) : System.currentTimeMillis();
-                writer.write((tsc + " " + twoRandomNames[0] +
-                        " " + twoRandomNames[1] + "\n"));
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+        long wallStart = System.nanoTime();
+        double recordsPerNano = 1 / (averageGap * 1e6);
+        try {
+            while (run.get()) {
+                long due = (long) ((System.nanoTime() - wallStart) *
+                        recordsPerNano);
+                while (recordsWritten < due) {
+                    append();
+                }
+                flush();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
         }
+    }
+
+    public void close() {
         try {
+            flush();
             writer.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /* Encodes the next record into the buffer, returns its length. */
+    private int append() throws IOException {
+        clock += averageGap * (0.5 + random.nextDouble());
+        long tsc = startTime + (long) clock;
+        if (outOfOrderRate > 0 && random.nextDouble() < outOfOrderRate) {
+            tsc -= (long) (random.nextDouble() * maxLateness);
+        }
+        int host = hosts.next();
+        int client = clients.next();
+        if (client == host) {
+            // Two different names, as before.
+            client = (client + 1) % names.length;
+        }
+        byte[] c = names[client];
+        byte[] h = names[host];
+        if (buffered + MAX_TIMESTAMP_LENGTH + c.length + h.length + 3 >
+                buffer.length) {
+            flush();
+        }
+        int start = buffered;
+        buffered = writeLong(tsc, buffered);
+        buffer[buffered++] = ' ';
+        System.arraycopy(c, 0, buffer, buffered, c.length);
+        buffered += c.length;
+        buffer[buffered++] = ' ';
+        System.arraycopy(h, 0, buffer, buffered, h.length);
+        buffered += h.length;
+        buffer[buffered++] = '\n';
+        recordsWritten++;
+        return buffered - start;
+    }
+
+    /* The decimal digits of value at buffer[at], returns the end. */
+    private int writeLong(long value, int at) {
+        if (value < 0) {
+            buffer[at++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = at + digits - 1; i >= at; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return at + digits;
+    }
+
+    private void flush() throws IOException {
+        writer.write(buffer, 0, buffered);
+        fileBytes += buffered;
+        buffered = 0;
+        if (rotateBytes > 0 && fileBytes >= rotateBytes) {
+            rotate();
+        }
+    }
+
+    /* As logrotate without copytruncate: rename, then a new file. */
+    private void rotate() throws IOException {
+        writer.close();
+        Files.move(connectionsOutputFile.toPath(), new File(
+                        connectionsOutputFile.getPath() + ROTATED_SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        writer = new FileOutputStream(connectionsOutputFile);
+        fileBytes = 0;
+    }
+
+    /**
+     * Zipfian ranks in [0, n): rank k has probability proportional to
+     * 1 / (k + 1)^exponent. Drawn in O(1) with Vose's alias method, then
+     * mapped to names by a random permutation so that the popular names
+     * are not the first ones of the file.
+     */
+    private static class Zipfian {
+
+        private final SplittableRandom random;
+        private final double[] probability;
+        private final int[] alias;
+        private final int[] name;
+
+        Zipfian(int n, double exponent, SplittableRandom random) {
+            this.random = random;
+            double[] weights = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                weights[k] = 1 / Math.pow(k + 1, exponent);
+                total += weights[k];
+            }
+            probability = new double[n];
+            alias = new int[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smalls = 0;
+            int larges = 0;
+            double[] scaled = new double[n];
+            for (int k = 0; k < n; k++) {
+                scaled[k] = weights[k] * n / total;
+                if (scaled[k] < 1) {
+                    small[smalls++] = k;
+                } else {
+                    large[larges++] = k;
+                }
+            }
+            while (smalls > 0 && larges > 0) {
+                int s = small[--smalls];
+                int l = large[--larges];
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = scaled[l] + scaled[s] - 1;
+                if (scaled[l] < 1) {
+                    small[smalls++] = l;
+                } else {
+                    large[larges++] = l;
+                }
+            }
+            while (larges > 0) {
+                probability[large[--larges]] = 1;
+            }
+            while (smalls > 0) {
+                probability[small[--smalls]] = 1;
+            }
+            name = new int[n];
+            for (int k = 0; k < n; k++) {
+                name[k] = k;
+            }
+            for (int k = n - 1; k > 0; k--) {
+                int j = random.nextInt(k + 1);
+                int t = name[k];
+                name[k] = name[j];
+                name[j] = t;
+            }
+        }
+
+        int next() {
+            int k = random.nextInt(probability.length);
+            return name[(random.nextDouble() < probability[k]) ? k : alias[k]];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: java RandomConnectionsSimulator " +
+                    "<output_file> [-records <n> | -rate <per_second>] " +
+                    "[-seed <seed>] [-start <first_timestamp>] " +
+                    "[-skew <clients>,<hosts>] " +
+                    "[-ooo <rate>,<max_ms>] [-rotate <bytes>] [-names <file>]");
+            System.exit(1);
+        }
+        long records = 1_000_000;
+        long rate = 0;
+        long seed = 42;
+        long start = System.currentTimeMillis();
+        String[] skew = {"0", "0"};
+        String[] ooo = {String.valueOf(PERCENTAGE_OUT_OF_ORDER / 100.0),
+                String.valueOf(MAX_OUT_OF_ORDER_MS)};
+        long rotate = 0;
+        String namesFile = NAMES_FILE;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-records":
+                    records = Long.parseLong(value);
+                    break;
+                case "-rate":
+                    rate = Long.parseLong(value);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "-start":
+                    start = Long.parseLong(value);
+                    break;
+                case "-skew":
+                    skew = value.split(",");
+                    break;
+                case "-ooo":
+                    ooo = value.split(",");
+                    break;
+                case "-rotate":
+                    rotate = Long.parseLong(value);
+                    break;
+                case "-names":
+                    namesFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException(args[i] + ": unknown " +
+                            "option");
+            }
+        }
+        RandomConnectionsSimulator simulator = new RandomConnectionsSimulator(
+                (rate > 0) ? rate * 3600 : 3_600_000_000L,
+                new File(namesFile), new File(args[0]), seed);
+        simulator.setSkew(Double.parseDouble(skew[0]),
+                Double.parseDouble(skew[1]));
+        simulator.setOutOfOrder(Double.parseDouble(ooo[0]),
+                Long.parseLong(ooo[1]));
+        simulator.setRotation(rotate);
+        simulator.setStartTime(start);
+        if (rate > 0) {
+            simulator.run();
+            return;
+        }
+        long t0 = System.nanoTime();
+        long bytes = simulator.write(records);
+        simulator.close();
+        long elapsed = Math.max(1, System.nanoTime() - t0);
+        System.err.println(records + " records, " + bytes / (1024 * 1024) +
+                " MB in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms: " +
+                records * TimeUnit.SECONDS.toNanos(1) / elapsed +
+                " records/s");
+    }
 }